@@ -0,0 +1,17 @@
+#!/bin/sh
+#
+# Runs the benchmarks single-threaded and on all cores, writing the results
+# as JSON to RESULTS_DIR (default target/results), named by release version.
+# Any further arguments are passed to JMH, e.g. a regex to select benchmarks.
+# Build first with: mvn -B package -DskipTests
+
+BASE="$(dirname "$0")/target"
+OUT="${RESULTS_DIR:-$BASE/results}"
+# The version the jar was built from, as recorded in its manifest
+VERSION="$(unzip -p "$BASE/benchmarks.jar" META-INF/MANIFEST.MF | sed -n 's/^Implementation-Version: *//p' | tr -d '\r')"
+
+[ -n "$VERSION" ] || { echo "$(basename "$0"): no version in $BASE/benchmarks.jar, build it first" >&2; exit 1; }
+
+mkdir -p "$OUT" &&
+java -jar $BASE/benchmarks.jar -t 1 -rf json -rff "$OUT/benchmarks-$VERSION-t1.json" "$@" &&
+java -jar $BASE/benchmarks.jar -t max -rf json -rff "$OUT/benchmarks-$VERSION-tmax.json" "$@"
@@ -0,0 +1,97 @@
+package it.zwets.sms.crypto;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link CrockEncoder} and {@link PhoneNumberEncoder}.
+ *
+ * Each thread cycles through its own set of random inputs, so that the
+ * results are not skewed by branch prediction on a single value.
+ *
+ * @author zwets
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class CrockEncoderBenchmark {
+
+	private static final int INPUTS = 1024;
+
+	private final CrockEncoder crockEncoder = new CrockEncoder();
+	private final PhoneNumberEncoder phoneEncoder = new PhoneNumberEncoder();
+
+	private long[] values = new long[INPUTS];
+	private String[] crocks = new String[INPUTS];
+	private String[] phoneNumbers = new String[INPUTS];
+	private String[] phoneCodes = new String[INPUTS];
+	private long[] numbers = new long[INPUTS];
+	private char[] codes = new char[INPUTS * PhoneNumberEncoder.CODE_WIDTH];
+	private long[] decoded = new long[INPUTS];
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		for (int i = 0; i < INPUTS; ++i) {
+			values[i] = random.nextLong() >>> 1;
+			crocks[i] = crockEncoder.encode(values[i]);
+			numbers[i] = random.nextInt(1000000000);
+			phoneNumbers[i] = "%09d".formatted(numbers[i]);
+			phoneCodes[i] = phoneEncoder.encode(phoneNumbers[i]);
+		}
+		phoneEncoder.encodeAll(numbers, 0, INPUTS, codes, 0);
+	}
+
+	private int next() {
+		return next = (next + 1) & (INPUTS - 1);
+	}
+
+	@Benchmark
+	public String crockEncode() {
+		return crockEncoder.encode(values[next()]);
+	}
+
+	@Benchmark
+	public long crockDecode() {
+		return crockEncoder.decode(crocks[next()]);
+	}
+
+	@Benchmark
+	public String phoneEncode() {
+		return phoneEncoder.encode(phoneNumbers[next()]);
+	}
+
+	@Benchmark
+	public String phoneDecode() {
+		return phoneEncoder.decode(phoneCodes[next()]);
+	}
+
+	/* Encodes all inputs in one call; divide by 1024 for the time per number. */
+	@Benchmark
+	public char[] phoneEncodeAll() {
+		phoneEncoder.encodeAll(numbers, 0, INPUTS, codes, 0);
+		return codes;
+	}
+
+	/* Decodes all inputs in one call; divide by 1024 for the time per number. */
+	@Benchmark
+	public long[] phoneDecodeAll() {
+		phoneEncoder.decodeAll(codes, 0, decoded, 0, INPUTS);
+		return decoded;
+	}
+}
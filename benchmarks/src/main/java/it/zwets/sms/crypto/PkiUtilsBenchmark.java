@@ -0,0 +1,99 @@
+package it.zwets.sms.crypto;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the RSA encryption and envelope sealing in {@link PkiUtils}.
+ *
+ * Encrypt and decrypt use a 140 byte payload, the maximum size of a
+ * single SMS.  Seal and unseal are measured over a range of payload sizes.
+ *
+ * @author zwets
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PkiUtilsBenchmark {
+
+	private static final int SMS_BYTES = 140;
+
+	@State(Scope.Benchmark)
+	public static class Keys {
+
+		@Param({ "2048", "4096" })
+		public int keySize;
+
+		KeyPair keyPair;
+		byte[] plaintext;
+		byte[] ciphertext;
+
+		@Setup
+		public void setup() throws NoSuchAlgorithmException {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(keySize);
+			keyPair = generator.generateKeyPair();
+			plaintext = randomBytes(SMS_BYTES);
+			ciphertext = PkiUtils.encrypt(keyPair.getPublic(), plaintext);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Payload {
+
+		@Param({ "140", "1600", "65536" })
+		public int payloadSize;
+
+		byte[] plaintext;
+		byte[] envelope;
+
+		@Setup
+		public void setup(Keys keys) {
+			plaintext = randomBytes(payloadSize);
+			envelope = PkiUtils.seal(keys.keyPair.getPublic(), plaintext);
+		}
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(42).nextBytes(bytes);
+		return bytes;
+	}
+
+	@Benchmark
+	public byte[] encrypt(Keys keys) {
+		return PkiUtils.encrypt(keys.keyPair.getPublic(), keys.plaintext);
+	}
+
+	@Benchmark
+	public byte[] decrypt(Keys keys) {
+		return PkiUtils.decrypt(keys.keyPair.getPrivate(), keys.ciphertext);
+	}
+
+	@Benchmark
+	public byte[] seal(Keys keys, Payload payload) {
+		return PkiUtils.seal(keys.keyPair.getPublic(), payload.plaintext);
+	}
+
+	@Benchmark
+	public byte[] unseal(Keys keys, Payload payload) {
+		return PkiUtils.unseal(keys.keyPair.getPrivate(), payload.envelope);
+	}
+}
@@ -0,0 +1,88 @@
+package it.zwets.sms.crypto;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for decryption through the {@link Vault}.
+ *
+ * The setup creates a temporary keystore with keytool, the way
+ * make-keystore.sh does, so this includes the cost of the keystore lookup
+ * and modification check on every call.
+ *
+ * @author zwets
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VaultBenchmark {
+
+	private static final String ALIAS = "bench";
+	private static final String PASSWORD = "123456";
+
+	@Param({ "2048", "4096" })
+	public int keySize;
+
+	private Path keyStore;
+	private Vault vault;
+	private byte[] ciphertext;
+	private byte[] envelope;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		keyStore = Files.createTempDirectory("vault-bench").resolve("bench.keystore");
+
+		String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-keyalg", "RSA", "-keysize", Integer.toString(keySize),
+				"-validity", "36500", "-storepass", PASSWORD, "-keystore", keyStore.toString(),
+				"-alias", ALIAS, "-dname", "CN=" + ALIAS)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool failed to create the keystore");
+		}
+
+		vault = new Vault(keyStore.toString(), PASSWORD);
+
+		byte[] plaintext = new byte[140];
+		new Random(42).nextBytes(plaintext);
+		ciphertext = PkiUtils.encrypt(vault.getPublicKey(ALIAS), plaintext);
+		envelope = PkiUtils.seal(vault.getPublicKey(ALIAS), plaintext);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(keyStore);
+		Files.deleteIfExists(keyStore.getParent());
+	}
+
+	@Benchmark
+	public byte[] decrypt() {
+		return vault.decrypt(ALIAS, ciphertext);
+	}
+
+	@Benchmark
+	public byte[] unseal() {
+		return vault.unseal(ALIAS, envelope);
+	}
+}
@@ -0,0 +1,84 @@
+package it.zwets.sms.utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for parsing, serialising and writing an {@link SmsMessage}.
+ *
+ * The message has the headers the broker typically sets on an outgoing
+ * message, and a body of bodySize characters spread over lines of at most
+ * 160 characters.  Every thread writes to its own temporary file.
+ *
+ * @author zwets
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmsMessageBenchmark {
+
+	@Param({ "70", "160", "1600" })
+	public int bodySize;
+
+	private SmsMessage message;
+	private String messageString;
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < bodySize; ++i) {
+			body.append(i % 160 == 159 ? '\n' : (char) ('a' + i % 26));
+		}
+
+		message = new SmsMessage(body.toString());
+		message.setHeader(SmsUtil.HEADER.TO, "255712345678");
+		message.setHeader(SmsUtil.HEADER.FROM, "SECSMS");
+		message.setHeader(SmsUtil.HEADER.MESSAGE_ID, "8a1c6e4f-3b2d-4c8e-9f1a-2b3c4d5e6f70");
+		message.setHeader(SmsUtil.HEADER.VALID_UNTIL, "2030-01-01T00:00:00Z");
+		message.setHeader(SmsUtil.HEADER.VALIDITY, "167");
+		messageString = message.asString();
+		file = Files.createTempFile("sms-bench", ".sms");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public SmsMessage read() {
+		SmsMessage msg = new SmsMessage();
+		msg.read(messageString);
+		return msg;
+	}
+
+	@Benchmark
+	public String asString() {
+		return message.asString();
+	}
+
+	@Benchmark
+	public Path writeFile() throws IOException {
+		message.writeFile(file);
+		return file;
+	}
+}
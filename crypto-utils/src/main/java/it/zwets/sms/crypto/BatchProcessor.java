@@ -0,0 +1,133 @@
+package it.zwets.sms.crypto;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+/**
+ * Applies an operation to a stream of frames, in parallel but preserving order.
+ *
+ * Used by the batch mode of the {@link PkiUtils} and {@link Vault} command
+ * line tools, so that a single JVM with warm keys and ciphers can process
+ * any number of messages.
+ *
+ * Frames are lines holding the base64 encoded input.  Each input line
+ * produces exactly one output line, in the same order: the base64 encoded
+ * result, or <code>ERROR</code> followed by a message if the operation
+ * failed for that frame.  Output is flushed whenever the next result is
+ * not yet available, so the tools can be driven interactively as a coprocess.
+ *
+ * @author zwets
+ */
+class BatchProcessor {
+
+	/* Marks the end of the input in the queue of pending results. */
+	private static final Future<String> END = CompletableFuture.completedFuture(null);
+
+	private final UnaryOperator<byte[]> operation;
+	private final int threads;
+
+	/**
+	 * Create a processor that applies operation on the given number of threads.
+	 * @param operation a thread-safe operation on a frame
+	 * @param threads the number of worker threads
+	 */
+	BatchProcessor(UnaryOperator<byte[]> operation, int threads) {
+		this.operation = operation;
+		this.threads = threads;
+	}
+
+	/**
+	 * Process all frames on in, writing the results to out.
+	 * @param in the input frames
+	 * @param out the output frames
+	 * @throws IOException when reading or writing fails
+	 */
+	void run(InputStream in, OutputStream out) throws IOException {
+		ExecutorService workers = Executors.newFixedThreadPool(threads, (r) -> {
+			Thread t = new Thread(r, "batch-worker");
+			t.setDaemon(true);
+			return t;
+		});
+
+		// Bounds the read-ahead, and hence the memory used, to a few frames per worker
+		BlockingQueue<Future<String>> pending = new ArrayBlockingQueue<>(4 * threads);
+
+		Thread reader = new Thread(() -> readFrames(in, workers, pending), "batch-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		try {
+			writeResults(out, pending);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	private void readFrames(InputStream in, ExecutorService workers, BlockingQueue<Future<String>> pending) {
+		BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+		try {
+			try {
+				String line;
+				while ((line = lines.readLine()) != null) {
+					String frame = line;
+					pending.put(workers.submit(() -> process(frame)));
+				}
+				pending.put(END);
+			} catch (IOException e) {
+				pending.put(CompletableFuture.failedFuture(e));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeResults(OutputStream out, BlockingQueue<Future<String>> pending) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII));
+		try {
+			Future<String> next;
+			while ((next = pending.take()) != END) {
+				writer.write(next.get());
+				writer.write('\n');
+				Future<String> peek = pending.peek();
+				if (peek == null || !peek.isDone()) {
+					writer.flush();
+				}
+			}
+			writer.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while processing batch", e);
+		} catch (ExecutionException e) {
+			// Only reading the input can fail, the frames themselves never throw
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	/* Returns the output line for one input line. */
+	private String process(String frame) {
+		try {
+			byte[] input = Base64.getDecoder().decode(frame.trim());
+			return Base64.getEncoder().encodeToString(operation.apply(input));
+		} catch (RuntimeException e) {
+			String message = String.valueOf(e.getMessage()).replaceAll("\\s+", " ");
+			return "ERROR " + message;
+		}
+	}
+}
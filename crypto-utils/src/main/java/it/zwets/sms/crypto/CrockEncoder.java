@@ -1,13 +1,17 @@
 package it.zwets.sms.crypto;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.function.LongFunction;
+import java.util.function.LongUnaryOperator;
 
 /**
  * Implements a Crockford Base32 encoder with optional encryption.
  *
  * Use {@link #encode(long)} to convert a long to a Base32 Crockford
- * string (a <i>crock code</i>), and {@link #decode(String)} to convert
- * back from crock code to long.
+ * string (a <i>crock code</i>), and {@link #decode(CharSequence)} to convert
+ * back from crock code to long.  The encodeTo and ranged decode methods
+ * work on caller-provided buffers, and create no garbage.
  * 
  * The class offers two levels of encryption: shuffling the letters in
  * the encoding alphabet, and mixing the bits in the input value.
@@ -32,17 +36,30 @@ public class CrockEncoder {
 			 0,  1,  2,  3,  4,  5,  6,  7,  8,  9, 10, 11, 12, 13, 14, 15,
 			16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31,  };
 	
+	/* The longest crock code, for a 64-bit value. */
+	private static final int MAX_LENGTH = 13;
+
+	/* Marks invalid and ignored characters in the decode table. */
+	private static final byte INVALID = -1;
+	private static final byte IGNORED = -2;
+
 	/* Map of nyckle to encrypted nyckle. */
 	private int[] mangle;
 
 	/* Map of encrypted nyckle to nyckle. */
 	private int[] unmangle;
+
+	/* Map of nyckle to its character in the mangled alphabet. */
+	private final char[] encodeTable = new char[32];
+
+	/* Map of ASCII character to its unmangled nyckle, or INVALID or IGNORED. */
+	private final byte[] decodeTable = new byte[128];
 	
 	/* User function to mix the bits in the long. */
-	private LongFunction<Long> bitMixer;
+	private final LongUnaryOperator bitMixer;
 	
 	/* User function to undo the bit mixing. */
-	private LongFunction<Long> unMixer;
+	private final LongUnaryOperator unMixer;
 
 	/** 
 	 * Create a standard, non-encrypting Crockford Base32 Encoder.
@@ -60,14 +77,33 @@ public class CrockEncoder {
 	 * an order of your choosing.  Values mangleTable[i] give the indices
 	 * into the crockford alphabet of the nyckles with value i.
 	 * 
-	 * Use {@link #CrockEncoder(LongFunction, LongFunction, int[])}
+	 * Use {@link #withMixers(LongUnaryOperator, LongUnaryOperator, int[])}
 	 * for more advanced encryption.
 	 * 
 	 * @param mangleTable an randomised array of the set [0..31]
 	 * @see  for details
 	 */
 	public CrockEncoder(int[] mangleTable) {
-		this(x -> x, x -> x, mangleTable);
+		this(mangleTable, LongUnaryOperator.identity(), LongUnaryOperator.identity());
+	}
+
+	/**
+	 * Create an encrypting CrockEncoder with boxing mixer functions.
+	 * Use {@link #withMixers(LongUnaryOperator, LongUnaryOperator, int[])}
+	 * to avoid boxing every value that is encoded or decoded.
+	 * 
+	 * @param bitMixer the encoding (bit mixing) function 
+	 * @param unMixer the decoding (bit unmixing) function
+	 * @param mangleTable the mangle table to use, null for no mangling
+	 */
+	public CrockEncoder(LongFunction<Long> bitMixer, LongFunction<Long> unMixer, int[] mangleTable) {
+		this(mangleTable, bitMixer::apply, unMixer::apply);
+	}
+
+	private CrockEncoder(int[] mangleTable, LongUnaryOperator bitMixer, LongUnaryOperator unMixer) {
+		this.bitMixer= bitMixer;
+		this.unMixer= unMixer;
+		setMangle(mangleTable == null ? NO_MANGLE : mangleTable);
 	}
 
 	/**
@@ -90,11 +126,10 @@ public class CrockEncoder {
 	 * @param bitMixer the encoding (bit mixing) function 
 	 * @param unMixer the decoding (bit unmixing) function
 	 * @param mangleTable the mangle table to use, null for no mangling
+	 * @return the encoder
 	 */
-	public CrockEncoder(LongFunction<Long> bitMixer, LongFunction<Long> unMixer, int[] mangleTable) {
-		this.bitMixer= bitMixer;
-		this.unMixer= unMixer;
-		setMangle(mangleTable == null ? NO_MANGLE : mangleTable);
+	public static CrockEncoder withMixers(LongUnaryOperator bitMixer, LongUnaryOperator unMixer, int[] mangleTable) {
+		return new CrockEncoder(mangleTable, bitMixer, unMixer);
 	}
 
 	/**
@@ -118,15 +153,113 @@ public class CrockEncoder {
 	 * @return the crock code
 	 */
 	public String encode(long value, int width) {
-		StringBuilder b = new StringBuilder();
+		char[] buf = new char[Math.max(width, MAX_LENGTH)];
+		return new String(buf, 0, encodeTo(value, width, buf, 0));
+	}
+
+	/**
+	 * Encode long value to crock code into a character array.
+	 * 
+	 * Writes the crock code, left-padded with zeros to at least width
+	 * characters, at dst[offset].  This allocates nothing, so it can be
+	 * used for encoding in tight loops.  A width of 13 or more is always
+	 * large enough for any value.
+	 * 
+	 * @param value the value to encode
+	 * @param width the minimum width of the crock code
+	 * @param dst the array to write to
+	 * @param offset the position in dst to write the first character
+	 * @return the number of characters written
+	 * @throws ArrayIndexOutOfBoundsException if dst is too small
+	 */
+	public int encodeTo(long value, int width, char[] dst, int offset) {
+		long n = bitMixer.applyAsLong(value);
+		int length = Math.max(width, length(n));
 		
-		long n = bitMixer.apply(value);
-		do {
-			b.insert(0, CROCKFORD_CODES[mangle[(int)(n & 31)]]);
-			n >>= 5;
-		} while (--width > 0 || n != 0L);
+		for (int i = offset + length - 1; i >= offset; --i) {
+			dst[i] = encodeTable[(int)(n & 31)];
+			n >>>= 5;
+		}
 		
-		return b.toString();
+		return length;
+	}
+
+	/**
+	 * Encode long value to crock code onto an Appendable.
+	 * 
+	 * @param value the value to encode
+	 * @param width the minimum width of the crock code
+	 * @param out the Appendable (e.g. a StringBuilder) to append to
+	 * @return the number of characters appended
+	 * @throws UncheckedIOException if out throws an IOException
+	 */
+	public int encodeTo(long value, int width, Appendable out) {
+		long n = bitMixer.applyAsLong(value);
+		int length = Math.max(width, length(n));
+		
+		try {
+			for (int i = length - 1; i >= 0; --i) {
+				int shift = 5 * i;
+				out.append(encodeTable[shift < 64 ? (int)((n >>> shift) & 31) : 0]);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		
+		return length;
+	}
+
+	/* Writes the low width nyckles of the already mixed value n as
+	 * characters at dst[offset], used by the bulk methods in PhoneNumberEncoder. */
+	void writeMixed(long n, int width, char[] dst, int offset) {
+		for (int i = offset + width - 1; i >= offset; --i) {
+			dst[i] = encodeTable[(int)(n & 31)];
+			n >>>= 5;
+		}
+	}
+
+	/* Writes the low width nyckles of the already mixed value n as
+	 * ASCII bytes at dst[offset]. */
+	void writeMixed(long n, int width, byte[] dst, int offset) {
+		for (int i = offset + width - 1; i >= offset; --i) {
+			dst[i] = (byte) encodeTable[(int)(n & 31)];
+			n >>>= 5;
+		}
+	}
+
+	/* Reads width characters at src[offset] as a crock code without dashes,
+	 * and returns its value before unmixing. */
+	long readMixed(char[] src, int offset, int width) {
+		long r = 0L;
+		for (int i = offset; i < offset + width; ++i) {
+			char c = src[i];
+			int x = c < 128 ? decodeTable[c] : INVALID;
+			if (x < 0) {
+				throw new IllegalArgumentException("Invalid character in Base32 Crockford string: '" + c + "'");
+			}
+			r = (r << 5) | x;
+		}
+		return r;
+	}
+
+	/* Reads width ASCII bytes at src[offset] as a crock code without dashes,
+	 * and returns its value before unmixing. */
+	long readMixed(byte[] src, int offset, int width) {
+		long r = 0L;
+		for (int i = offset; i < offset + width; ++i) {
+			int c = src[i] & 0xff;
+			int x = c < 128 ? decodeTable[c] : INVALID;
+			if (x < 0) {
+				throw new IllegalArgumentException("Invalid character in Base32 Crockford string: '" + (char) c + "'");
+			}
+			r = (r << 5) | x;
+		}
+		return r;
+	}
+
+	/* The number of nyckles needed to encode n, at least one. */
+	private static int length(long n) {
+		return Math.max(1, (68 - Long.numberOfLeadingZeros(n)) / 5);
 	}
 	
 	/**
@@ -141,13 +274,37 @@ public class CrockEncoder {
 	 * @param crock the crock code to decode
 	 * @return the long value
 	 */
-	public long decode(String crock) {
-		return unMixer.apply(crock.chars()
-				.filter(c -> c != '-')
-				.mapToLong(c -> unmangle[charIndex((char)c)])
-				.reduce(0L, (r,x) -> (r << 5) | x));
+	public long decode(CharSequence crock) {
+		return decode(crock, 0, crock.length());
 	}
 
+	/**
+	 * Decode the crock code in chars [start, end) of a sequence to its long value
+	 * 
+	 * @param chars the sequence containing the crock code
+	 * @param start the index of the first character of the crock code
+	 * @param end the index after the last character of the crock code
+	 * @return the long value
+	 * @see #decode(CharSequence)
+	 */
+	public long decode(CharSequence chars, int start, int end) {
+		long r = 0L;
+		
+		for (int i = start; i < end; ++i) {
+			char c = chars.charAt(i);
+			int x = c < 128 ? decodeTable[c] : INVALID;
+			if (x >= 0) {
+				r = (r << 5) | x;
+			}
+			else if (x == INVALID) {
+				throw new IllegalArgumentException("Invalid character in Base32 Crockford string: '" + c + "'");
+			}
+		}
+		
+		return unMixer.applyAsLong(r);
+	}
+
+	/* Returns the index in the Crockford alphabet of c, or -1 if it is not valid. */
 	private int charIndex(char c) {
 		switch (c) {
 		case '0': case 'O': case 'o': return 0;
@@ -182,8 +339,7 @@ public class CrockEncoder {
 		case 'X': case 'x': return 29;
 		case 'Y': case 'y': return 30;
 		case 'Z': case 'z': return 31;
-		default:
-			throw new IllegalArgumentException("Invalid character in Base32 Crockford string: '" + c + "'");
+		default: return -1;
 		}
 	}
 
@@ -192,6 +348,11 @@ public class CrockEncoder {
 		this.unmangle = new int[32];
 		for (int i = 0; i < 32; ++i) {
 			this.unmangle[mangle[i]] = i;
+			this.encodeTable[i] = CROCKFORD_CODES[mangle[i]];
+		}
+		for (char c = 0; c < 128; ++c) {
+			int index = charIndex(c);
+			this.decodeTable[c] = c == '-' ? IGNORED : index < 0 ? INVALID : (byte) unmangle[index];
 		}
 	}
 	
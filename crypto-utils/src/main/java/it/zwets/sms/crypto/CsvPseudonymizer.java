@@ -0,0 +1,450 @@
+package it.zwets.sms.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replaces phone number columns in CSV or TSV files by their crock codes.
+ *
+ * Reads its input as a stream of large chunks cut at line boundaries,
+ * and converts the chunks on a pool of worker threads, writing them out
+ * in their original order.  Fields are located by scanning the bytes,
+ * so no strings are created per line, and the phone numbers of a chunk
+ * are converted in one go with {@link PhoneNumberEncoder#encodeAll}.
+ *
+ * In the selected columns, 9-digit phone numbers are replaced by their
+ * crock code (ABC-DEF), or in decode mode, crock codes with or without
+ * the dash are replaced by their 9-digit phone numbers.  Fields may be
+ * double-quoted, in which case the quotes are kept.  Empty fields stay
+ * empty, and other values are left unchanged and counted.
+ *
+ * Records must not contain embedded newlines.
+ *
+ * @author zwets
+ */
+public class CsvPseudonymizer {
+
+	/* Default size of the chunks handed to the workers. */
+	static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/* Length of an encoded field: the crock code with its dash. */
+	private static final int ENCODED_LENGTH = PhoneNumberEncoder.CODE_WIDTH + 1;
+
+	/* Length of a decoded field: the phone number. */
+	private static final int DECODED_LENGTH = 9;
+
+	/* Marks the end of the input in the queue of pending chunks. */
+	private static final Future<Chunk> END = CompletableFuture.completedFuture(null);
+
+	private final PhoneNumberEncoder encoder;
+	private final boolean[] selected;
+	private final byte separator;
+	private final boolean decode;
+	private final boolean header;
+	private final int chunkSize;
+
+	private long rows = 0;
+	private long unchanged = 0;
+
+	/* A converted chunk of output. */
+	private static class Chunk {
+		final byte[] data;
+		final int rows;
+		final int unchanged;
+
+		Chunk(byte[] data, int rows, int unchanged) {
+			this.data = data;
+			this.rows = rows;
+			this.unchanged = unchanged;
+		}
+	}
+
+	/**
+	 * Create a pseudonymizer for the given columns.
+	 * @param encoder the encoder to use
+	 * @param columns the 1-based numbers of the columns to convert
+	 * @param separator the field separator, typically ',' or '\t'
+	 * @param decode true to decode crock codes rather than encode phone numbers
+	 * @param header true if the first line is a header to copy unchanged
+	 */
+	public CsvPseudonymizer(PhoneNumberEncoder encoder, int[] columns, char separator, boolean decode, boolean header) {
+		this(encoder, columns, separator, decode, header, CHUNK_SIZE);
+	}
+
+	/* Package-private to allow tests to use small chunks. */
+	CsvPseudonymizer(PhoneNumberEncoder encoder, int[] columns, char separator, boolean decode, boolean header, int chunkSize) {
+		if (separator > 127 || separator == '"' || separator == '\n' || separator == '\r') {
+			throw new IllegalArgumentException("Invalid separator: '%c'".formatted(separator));
+		}
+
+		this.selected = new boolean[Arrays.stream(columns).max().orElse(0) + 1];
+		for (int column : columns) {
+			if (column < 1) {
+				throw new IllegalArgumentException("Invalid column number: %d".formatted(column));
+			}
+			this.selected[column] = true;
+		}
+
+		this.encoder = encoder;
+		this.separator = (byte) separator;
+		this.decode = decode;
+		this.header = header;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Convert all of in to out, using the given number of worker threads.
+	 * @param in the input, which is read to its end but not closed
+	 * @param out the output, which is flushed but not closed
+	 * @param threads the number of worker threads
+	 * @return the number of rows processed, not counting the header
+	 * @throws IOException when reading or writing fails
+	 */
+	public long run(InputStream in, OutputStream out, int threads) throws IOException {
+		ExecutorService workers = Executors.newFixedThreadPool(threads, (r) -> {
+			Thread t = new Thread(r, "csv-worker");
+			t.setDaemon(true);
+			return t;
+		});
+
+		// Bounds the read-ahead, and hence the memory used, to a few chunks per worker
+		BlockingQueue<Future<Chunk>> pending = new ArrayBlockingQueue<>(2 * threads);
+
+		Thread reader = new Thread(() -> readChunks(in, workers, pending), "csv-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		try {
+			Future<Chunk> next;
+			while ((next = pending.take()) != END) {
+				Chunk chunk = next.get();
+				out.write(chunk.data);
+				rows += chunk.rows;
+				unchanged += chunk.unchanged;
+			}
+			out.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while converting", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+		} finally {
+			workers.shutdownNow();
+		}
+
+		return rows;
+	}
+
+	/**
+	 * The number of non-empty fields in the selected columns that were
+	 * left unchanged because they were not valid phone numbers or crock codes.
+	 * @return the count over all runs of this instance
+	 */
+	public long getUnchangedCount() {
+		return unchanged;
+	}
+
+	/* Reads in as chunks that end at a newline, and queues their conversion. */
+	private void readChunks(InputStream in, ExecutorService workers, BlockingQueue<Future<Chunk>> pending) {
+		try {
+			try {
+				byte[] buf = new byte[chunkSize];
+				int len = 0;
+				boolean first = true;
+
+				while (true) {
+					len += in.readNBytes(buf, len, buf.length - len);
+					boolean eof = len < buf.length;
+					int end = eof ? len : lastNewline(buf, len) + 1;
+
+					if (end == 0 && !eof) { // line longer than the buffer
+						buf = Arrays.copyOf(buf, 2 * buf.length);
+						continue;
+					}
+
+					if (end > 0) {
+						byte[] data = buf;
+						int size = end;
+						boolean skipHeader = first && header;
+						pending.put(workers.submit(() -> convert(data, size, skipHeader)));
+						first = false;
+					}
+
+					if (eof) {
+						break;
+					}
+
+					byte[] next = new byte[chunkSize + len - end];
+					System.arraycopy(buf, end, next, 0, len - end);
+					len -= end;
+					buf = next;
+				}
+				pending.put(END);
+			} catch (IOException e) {
+				pending.put(CompletableFuture.failedFuture(e));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static int lastNewline(byte[] buf, int len) {
+		int i = len - 1;
+		while (i >= 0 && buf[i] != '\n') {
+			--i;
+		}
+		return i;
+	}
+
+	/* Converts the lines in data[0, end), optionally copying the first one as is. */
+	private Chunk convert(byte[] data, int end, boolean skipHeader) {
+		int pos = 0;
+		if (skipHeader) {
+			while (pos < end && data[pos++] != '\n');
+		}
+
+		// Positions of the fields to convert, and their value or code bytes
+		int count = 0;
+		int[] starts = new int[256];
+		int[] ends = new int[256];
+		long[] numbers = new long[256];
+		byte[] codes = new byte[256 * PhoneNumberEncoder.CODE_WIDTH];
+		int rows = 0;
+		int unchanged = 0;
+
+		while (pos < end) {
+			++rows;
+			int column = 1;
+			boolean lineEnd = false;
+
+			while (!lineEnd) {
+				int start = pos;
+				boolean quoted = pos < end && data[pos] == '"';
+				if (quoted) {
+					++pos;
+					while (pos < end && data[pos] != '\n') {
+						if (data[pos] == '"') {
+							if (pos + 1 < end && data[pos + 1] == '"') {
+								pos += 2;
+								continue;
+							}
+							break;
+						}
+						++pos;
+					}
+				}
+				while (pos < end && data[pos] != separator && data[pos] != '\n') {
+					++pos;
+				}
+
+				int fieldEnd = pos;
+				lineEnd = pos >= end || data[pos] == '\n';
+				++pos;
+
+				if (column < selected.length && selected[column]) {
+					int s = start, e = fieldEnd;
+					if (lineEnd && e > s && data[e - 1] == '\r') {
+						--e;
+					}
+					if (quoted && e - s >= 2 && data[e - 1] == '"') {
+						++s;
+						--e;
+					}
+
+					if (count == starts.length) {
+						starts = Arrays.copyOf(starts, 2 * count);
+						ends = Arrays.copyOf(ends, 2 * count);
+						numbers = Arrays.copyOf(numbers, 2 * count);
+						codes = Arrays.copyOf(codes, 2 * codes.length);
+					}
+
+					if (decode ? readCode(data, s, e, codes, count) : readNumber(data, s, e, numbers, count)) {
+						starts[count] = s;
+						ends[count++] = e;
+					}
+					else if (e > s) {
+						++unchanged;
+					}
+				}
+				++column;
+			}
+		}
+
+		if (decode) {
+			unchanged += decodeCodes(codes, numbers, count);
+		}
+		else {
+			encoder.encodeAll(numbers, 0, count, codes, 0);
+		}
+
+		return new Chunk(assemble(data, end, starts, ends, numbers, codes, count), rows, unchanged);
+	}
+
+	/* Parses data[s, e) into numbers[i] if it is a 9-digit number. */
+	private static boolean readNumber(byte[] data, int s, int e, long[] numbers, int i) {
+		if (e - s != DECODED_LENGTH) {
+			return false;
+		}
+		long n = 0L;
+		for (int j = s; j < e; ++j) {
+			int d = data[j] - '0';
+			if (d < 0 || d > 9) {
+				return false;
+			}
+			n = n * 10 + d;
+		}
+		numbers[i] = n;
+		return true;
+	}
+
+	/* Copies data[s, e) into codes at slot i if it is shaped like a crock code. */
+	private static boolean readCode(byte[] data, int s, int e, byte[] codes, int i) {
+		int w = PhoneNumberEncoder.CODE_WIDTH;
+		if (e - s == w) {
+			System.arraycopy(data, s, codes, i * w, w);
+			return true;
+		}
+		if (e - s == w + 1 && data[s + w / 2] == '-') {
+			System.arraycopy(data, s, codes, i * w, w / 2);
+			System.arraycopy(data, s + w / 2 + 1, codes, i * w + w / 2, w / 2);
+			return true;
+		}
+		return false;
+	}
+
+	/* Decodes count codes into numbers, setting invalid ones to -1.  Returns the number invalid. */
+	private int decodeCodes(byte[] codes, long[] numbers, int count) {
+		try {
+			encoder.decodeAll(codes, 0, numbers, 0, count);
+			return 0;
+		} catch (IllegalArgumentException e) {
+			int invalid = 0;
+			for (int i = 0; i < count; ++i) {
+				try {
+					encoder.decodeAll(codes, i * PhoneNumberEncoder.CODE_WIDTH, numbers, i, i + 1);
+				} catch (IllegalArgumentException x) {
+					numbers[i] = -1L;
+					++invalid;
+				}
+			}
+			return invalid;
+		}
+	}
+
+	/* Returns data[0, end) with the count fields at starts/ends replaced. */
+	private byte[] assemble(byte[] data, int end, int[] starts, int[] ends, long[] numbers, byte[] codes, int count) {
+		int size = end;
+		for (int i = 0; i < count; ++i) {
+			if (numbers[i] >= 0) {
+				size += (decode ? DECODED_LENGTH : ENCODED_LENGTH) - (ends[i] - starts[i]);
+			}
+		}
+
+		byte[] out = new byte[size];
+		int from = 0, to = 0;
+		for (int i = 0; i < count; ++i) {
+			if (numbers[i] < 0) {
+				continue;
+			}
+			System.arraycopy(data, from, out, to, starts[i] - from);
+			to += starts[i] - from;
+			from = ends[i];
+
+			if (decode) {
+				long n = numbers[i];
+				for (int j = DECODED_LENGTH - 1; j >= 0; --j, n /= 10) {
+					out[to + j] = (byte) ('0' + n % 10);
+				}
+				to += DECODED_LENGTH;
+			}
+			else {
+				int w = PhoneNumberEncoder.CODE_WIDTH;
+				System.arraycopy(codes, i * w, out, to, w / 2);
+				out[to + w / 2] = '-';
+				System.arraycopy(codes, i * w + w / 2, out, to + w / 2 + 1, w / 2);
+				to += ENCODED_LENGTH;
+			}
+		}
+		System.arraycopy(data, from, out, to, end - from);
+
+		return out;
+	}
+
+	/* Parses the comma-separated list of column numbers. */
+	private static int[] parseColumns(String spec) {
+		return Arrays.stream(spec.split(",")).mapToInt((s) -> Integer.parseInt(s.trim())).toArray();
+	}
+
+	/**
+	 * Command-line invocation.
+	 *
+	 * Encodes (or with -d decodes) the given 1-based columns of INFILE
+	 * to OUTFILE, either of which may be - for standard input or output.
+	 * The separator defaults to tab for .tsv files and comma otherwise.
+	 * Use -H to copy a header line, and -j to set the number of threads.
+	 *
+	 * @param args see usage
+	 */
+	public static void main(String[] args) {
+		boolean decode = false;
+		boolean header = false;
+		Character separator = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		int i = 0;
+		try {
+			for (; i < args.length && args[i].startsWith("-") && args[i].length() > 1; ++i) {
+				switch (args[i]) {
+					case "-d" -> decode = true;
+					case "-H" -> header = true;
+					case "-s" -> separator = args[++i].equals("\\t") ? '\t' : args[i].charAt(0);
+					case "-j" -> threads = Integer.parseInt(args[++i]);
+					default -> throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			i = -1;
+		}
+
+		if (i < 0 || args.length - i != 3) {
+			System.err.println("Usage: CsvPseudonymizer [-d] [-H] [-s SEP] [-j THREADS] COLUMNS INFILE|- OUTFILE|-");
+		}
+		else {
+			String inFile = args[i + 1];
+			String outFile = args[i + 2];
+			if (separator == null) {
+				separator = inFile.toLowerCase().endsWith(".tsv") ? '\t' : ',';
+			}
+
+			try (InputStream in = inFile.equals("-") ? System.in : Files.newInputStream(Path.of(inFile));
+				 OutputStream out = outFile.equals("-") ? System.out : Files.newOutputStream(Path.of(outFile)))
+			{
+				CsvPseudonymizer pseudonymizer = new CsvPseudonymizer(
+						new PhoneNumberEncoder(), parseColumns(args[i]), separator, decode, header);
+
+				long start = System.nanoTime();
+				long rows = pseudonymizer.run(in, out, threads);
+				double seconds = (System.nanoTime() - start) / 1e9;
+
+				System.err.println("Processed %d rows in %.1f s (%.0f rows/s), %d fields left unchanged".formatted(
+						rows, seconds, rows / Math.max(seconds, 1e-9), pseudonymizer.getUnchangedCount()));
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package it.zwets.sms.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Input stream that reads the payload from a streaming envelope.
+ *
+ * See {@link EnvelopeOutputStream} for the envelope format.  Each segment
+ * is authenticated before any of its bytes are returned.  A stream that
+ * was tampered with, truncated, or has trailing data, yields an
+ * <code>IOException</code>.
+ *
+ * Use {@link PkiContext#newUnsealingStream(InputStream)} to obtain one.
+ *
+ * @author zwets
+ * @see EnvelopeOutputStream
+ */
+public class EnvelopeInputStream extends InputStream {
+
+	private static final int TAG_BYTES = PkiContext.GCM_TAG_BITS / 8;
+
+	private final InputStream in;
+	private final Cipher cipher;
+	private final SecretKeySpec key;
+	private final byte[] header;
+	private final byte[] lengthWord = new byte[4];
+	private final byte[] sealed = new byte[EnvelopeOutputStream.SEGMENT_SIZE + TAG_BYTES];
+	private final byte[] plain = new byte[EnvelopeOutputStream.SEGMENT_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	private int sequence = 0;
+	private boolean last = false;
+
+	/* Reads the envelope header from in.  Called by PkiContext. */
+	EnvelopeInputStream(PkiContext context, InputStream in) throws IOException {
+		this.in = in;
+
+		byte[] start = readFully(new byte[3], 3);
+		if (start[0] != EnvelopeOutputStream.STREAM_VERSION) {
+			throw new IOException("PKI error during decryption: not a version %d envelope".formatted(EnvelopeOutputStream.STREAM_VERSION));
+		}
+
+		int keyLength = ((start[1] & 0xff) << 8) | (start[2] & 0xff);
+		this.header = Arrays.copyOf(start, 3 + keyLength);
+		System.arraycopy(readFully(new byte[keyLength], keyLength), 0, header, 3, keyLength);
+
+		byte[] keyBytes;
+		try {
+			keyBytes = context.decrypt(Arrays.copyOfRange(header, 3, header.length));
+		} catch (RuntimeException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		this.key = new SecretKeySpec(keyBytes, "AES");
+		Arrays.fill(keyBytes, (byte) 0);
+
+		try {
+			this.cipher = Cipher.getInstance(PkiContext.AES_TRANSFORMATION);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("PKI error during decryption: %s".formatted(e.getMessage()), e);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return fill() ? plain[pos++] & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(plain, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return limit - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/* Makes sure there is plaintext available, returns false at the end. */
+	private boolean fill() throws IOException {
+		while (pos == limit) {
+			if (last) {
+				return false;
+			}
+			readSegment();
+		}
+		return true;
+	}
+
+	private void readSegment() throws IOException {
+		readFully(lengthWord, 4);
+		int word = ((lengthWord[0] & 0xff) << 24) | ((lengthWord[1] & 0xff) << 16) | ((lengthWord[2] & 0xff) << 8) | (lengthWord[3] & 0xff);
+		int length = word & ~EnvelopeOutputStream.LAST_SEGMENT;
+
+		if (length > EnvelopeOutputStream.SEGMENT_SIZE) {
+			throw new IOException("PKI error during decryption: invalid segment length %d".formatted(length));
+		}
+
+		readFully(sealed, length + TAG_BYTES);
+
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, key, EnvelopeOutputStream.nonce(sequence));
+			if (sequence == 0) {
+				cipher.updateAAD(header);
+			}
+			cipher.updateAAD(lengthWord);
+			limit = cipher.doFinal(sealed, 0, length + TAG_BYTES, plain, 0);
+			pos = 0;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("PKI error during decryption: %s".formatted(e.getMessage()), e);
+		}
+
+		++sequence;
+		last = (word & EnvelopeOutputStream.LAST_SEGMENT) != 0;
+
+		if (last && in.read() != -1) {
+			throw new IOException("PKI error during decryption: trailing data after envelope");
+		}
+	}
+
+	private byte[] readFully(byte[] buf, int len) throws IOException {
+		if (in.readNBytes(buf, 0, len) != len) {
+			throw new EOFException("PKI error during decryption: envelope is truncated");
+		}
+		return buf;
+	}
+}
@@ -0,0 +1,164 @@
+package it.zwets.sms.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Output stream that seals everything written to it into a streaming envelope.
+ *
+ * The streaming envelope is the counterpart of the single-shot envelope
+ * described in {@link PkiContext}, but cuts the payload into segments
+ * of at most {@link #SEGMENT_SIZE} bytes that are encrypted separately,
+ * so that payloads of any size can be processed in constant memory.
+ * The layout is:
+ * <pre>
+ * byte       version (2)
+ * short      length N of the wrapped key
+ * byte[N]    the RSA-encrypted AES key
+ * segments:
+ *   int      the plaintext length L of the segment, high bit set on the last segment
+ *   byte[L]  the AES-GCM encrypted segment, followed by its 16 byte tag
+ * </pre>
+ * The GCM nonce of each segment is its sequence number, and the segment
+ * length word is authenticated along with it, so that segments cannot be
+ * reordered, and truncation at a segment boundary is detected.  The first
+ * segment also authenticates the version and the wrapped key.
+ *
+ * The stream must be closed to write the final segment.  Use
+ * {@link PkiContext#newSealingStream(OutputStream)} to obtain one.
+ *
+ * @author zwets
+ * @see EnvelopeInputStream
+ */
+public class EnvelopeOutputStream extends OutputStream {
+
+	/** The maximum plaintext size of a segment. */
+	public static final int SEGMENT_SIZE = 64 * 1024;
+
+	/* Version byte of the streaming envelope. */
+	static final byte STREAM_VERSION = 2;
+
+	/* Flags the final segment in the segment length word. */
+	static final int LAST_SEGMENT = 0x80000000;
+
+	private final OutputStream out;
+	private final Cipher cipher;
+	private final SecretKeySpec key;
+	private final byte[] header;
+	private final byte[] plain = new byte[SEGMENT_SIZE];
+	private final byte[] sealed = new byte[4 + SEGMENT_SIZE + PkiContext.GCM_TAG_BITS / 8];
+	private int count = 0;
+	private int sequence = 0;
+	private boolean closed = false;
+
+	/* Writes the envelope header to out.  Called by PkiContext. */
+	EnvelopeOutputStream(PkiContext context, OutputStream out) throws IOException {
+		byte[] keyBytes = new byte[PkiContext.AES_KEY_BYTES];
+		PkiContext.randomBytes(keyBytes);
+		byte[] wrappedKey = context.encrypt(keyBytes);
+
+		this.out = out;
+		this.key = new SecretKeySpec(keyBytes, "AES");
+		Arrays.fill(keyBytes, (byte) 0);
+
+		this.header = new byte[3 + wrappedKey.length];
+		ByteBuffer.wrap(header).put(STREAM_VERSION).putShort((short) wrappedKey.length).put(wrappedKey);
+
+		try {
+			this.cipher = Cipher.getInstance(PkiContext.AES_TRANSFORMATION);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("PKI error during encryption: %s".formatted(e.getMessage()), e);
+		}
+
+		out.write(header);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (count == SEGMENT_SIZE) {
+			writeSegment(false);
+		}
+		plain[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			if (count == SEGMENT_SIZE) {
+				writeSegment(false);
+			}
+			int n = Math.min(len, SEGMENT_SIZE - count);
+			System.arraycopy(b, off, plain, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Flushes the underlying stream.  Buffered plaintext is only written
+	 * when a segment fills up or the stream is closed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Writes the final segment and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			try {
+				writeSegment(true);
+				out.flush();
+			} finally {
+				closed = true;
+				out.close();
+			}
+		}
+	}
+
+	private void writeSegment(boolean last) throws IOException {
+		int lengthWord = last ? (count | LAST_SEGMENT) : count;
+		ByteBuffer.wrap(sealed).putInt(lengthWord);
+
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key, nonce(sequence));
+			if (sequence == 0) {
+				cipher.updateAAD(header);
+			}
+			cipher.updateAAD(sealed, 0, 4);
+			int n = cipher.doFinal(plain, 0, count, sealed, 4);
+			out.write(sealed, 0, 4 + n);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("PKI error during encryption: %s".formatted(e.getMessage()), e);
+		}
+
+		++sequence;
+		count = 0;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	/* The GCM nonce for segment number sequence. */
+	static GCMParameterSpec nonce(int sequence) {
+		byte[] iv = new byte[PkiContext.GCM_NONCE_BYTES];
+		ByteBuffer.wrap(iv).putInt(iv.length - 4, sequence);
+		return new GCMParameterSpec(PkiContext.GCM_TAG_BITS, iv);
+	}
+}
@@ -1,6 +1,11 @@
 package it.zwets.sms.crypto;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntFunction;
 import java.util.function.LongFunction;
+import java.util.function.LongUnaryOperator;
+import java.util.stream.IntStream;
 
 /**
  * Utility class to encode phone numbers to secure crock codes.
@@ -22,6 +27,13 @@ import java.util.function.LongFunction;
  * If you need to accommodate larger phone numbers, you'll have to adapt the code.
  * If your numbers are smaller, use zero-padding, or better use random padding.
  * 
+ * For converting large numbers of phone numbers, the encodeAll and decodeAll
+ * methods work on arrays of longs and fixed-width (dashless) crock codes in
+ * char or byte arrays, and the parallel variants split the work across cores.
+ * When built with the <code>vector</code> Maven profile and run with
+ * <code>--add-modules jdk.incubator.vector</code>, these use SIMD
+ * instructions for the default bit mixing.
+ * 
  * @author zwets
  */
 public class PhoneNumberEncoder {
@@ -33,9 +45,40 @@ public class PhoneNumberEncoder {
 			0, 2, 9, 7, 28, 12, 30, 25, 13, 6, 10, 15, 19, 23, 14, 18,
 			5, 21, 3, 11, 26, 4, 16, 8, 22, 29, 20, 17, 31, 1, 27, 24 };
 
+	/* Lookup tables for the default bit mixer and unmixer.  As these move
+	 * every input bit to its own output bit, the result for a value is the
+	 * OR of the results for each of its bytes.  Entry [k][b] holds the
+	 * result for byte value b at byte position k. */
+	private static final int[][] MIX_TABLE = permutationTable(PhoneNumberEncoder::mixBitwise);
+	private static final int[][] UNMIX_TABLE = permutationTable(PhoneNumberEncoder::unmixBitwise);
+
+	/* The default mixer and unmixer as functions, so we can recognise them. */
+	private static final LongUnaryOperator DEFAULT_MIXER = PhoneNumberEncoder::mixBits;
+	private static final LongUnaryOperator DEFAULT_UNMIXER = PhoneNumberEncoder::unmixBits;
+
+	/* SIMD versions of the default mixer and unmixer, null if the vector API is absent. */
+	private static final BulkMixer VECTOR_MIXER = vectorMixer(PhoneNumberEncoder::mixBitwise);
+	private static final BulkMixer VECTOR_UNMIXER = vectorMixer(PhoneNumberEncoder::unmixBitwise);
+
+	/* The optional SIMD mixer, compiled only by the vector profile. */
+	private static final String VECTOR_MIXER_CLASS = "it.zwets.sms.crypto.VectorBitMixer";
+
+	/** The width of the crock codes read and written by the bulk methods. */
+	public static final int CODE_WIDTH = 6;
+
+	/* Number of values the bulk methods process at a time. */
+	private static final int CHUNK_SIZE = 1024;
+
+	/* Number of values the parallel bulk methods give to each task. */
+	private static final int PARALLEL_CHUNK_SIZE = 16 * CHUNK_SIZE;
+
 	/* Default encoder, used if you do not set your own */
 	private CrockEncoder crockEncoder;
 
+	/* The mixer and unmixer that crockEncoder uses. */
+	private final LongUnaryOperator mixer;
+	private final LongUnaryOperator unmixer;
+
 	/**
 	 * Construct an encoder that uses the default bit mixer and shuffle.
 	 */
@@ -47,22 +90,42 @@ public class PhoneNumberEncoder {
 	 * Construct an encoder with a custom shuffled alphabet.
 	 * 
 	 * @param shuffle array specifying the shuffled order of the alphabet
-	 * @see #PhoneNumberEncoder(LongFunction, LongFunction, int[])
+	 * @see #withMixers(LongUnaryOperator, LongUnaryOperator, int[])
 	 */
 	public PhoneNumberEncoder(int[] shuffle) {
-		this(PhoneNumberEncoder::mixBits, PhoneNumberEncoder::unmixBits, shuffle);
+		this(shuffle, DEFAULT_MIXER, DEFAULT_UNMIXER);
 	}
 
 	/**
-	 * Construct an encoder with a custom bit mixer and shuffled alphabet.
+	 * Construct an encoder with a custom boxing bit mixer and shuffled alphabet.
+	 * Use {@link #withMixers(LongUnaryOperator, LongUnaryOperator, int[])}
+	 * to avoid boxing every value that is encoded or decoded.
 	 * 
 	 * @param mixer function to mix the input bits
 	 * @param unmixer function to demix the bits on decode
 	 * @param shuffle array specifying the shuffled order of the alphabet
-	 * @see CrockEncoder#CrockEncoder(LongFunction, LongFunction, int[])
 	 */
 	public PhoneNumberEncoder(LongFunction<Long> mixer, LongFunction<Long> unmixer, int[] shuffle) {
-		this.crockEncoder = new CrockEncoder(mixer, unmixer, shuffle);
+		this(shuffle, mixer::apply, unmixer::apply);
+	}
+
+	private PhoneNumberEncoder(int[] shuffle, LongUnaryOperator mixer, LongUnaryOperator unmixer) {
+		this.crockEncoder = CrockEncoder.withMixers(mixer, unmixer, shuffle);
+		this.mixer = mixer;
+		this.unmixer = unmixer;
+	}
+
+	/**
+	 * Construct an encoder with a custom bit mixer and shuffled alphabet.
+	 * 
+	 * @param mixer function to mix the input bits
+	 * @param unmixer function to demix the bits on decode
+	 * @param shuffle array specifying the shuffled order of the alphabet
+	 * @return the encoder
+	 * @see CrockEncoder#withMixers(LongUnaryOperator, LongUnaryOperator, int[])
+	 */
+	public static PhoneNumberEncoder withMixers(LongUnaryOperator mixer, LongUnaryOperator unmixer, int[] shuffle) {
+		return new PhoneNumberEncoder(shuffle, mixer, unmixer);
 	}
 
 	/**
@@ -75,13 +138,28 @@ public class PhoneNumberEncoder {
 	 */
 	public String encode(String phoneNumber) {
 		
-		if (!phoneNumber.matches("^[0-9]{9}$")) {
+		long value = 0L;
+		
+		if (phoneNumber.length() != 9) {
 			throw new IllegalArgumentException("Not a 9-digit phone number: %s".formatted(phoneNumber));
 		}
+		for (int i = 0; i < 9; ++i) {
+			char c = phoneNumber.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new IllegalArgumentException("Not a 9-digit phone number: %s".formatted(phoneNumber));
+			}
+			value = 10 * value + (c - '0');
+		}
 		
-		String code = crockEncoder.encode(Long.parseLong(phoneNumber), 6);
+		// Encode at offset 1, then move the first three characters left to make room for the dash
+		char[] code = new char[14];
+		crockEncoder.encodeTo(value, 6, code, 1);
+		code[0] = code[1];
+		code[1] = code[2];
+		code[2] = code[3];
+		code[3] = '-';
 
-		return code.substring(0, 3) + "-" + code.substring(3, 6);
+		return new String(code, 0, 7);
 	}
 
 	/**
@@ -91,7 +169,7 @@ public class PhoneNumberEncoder {
 	 */
 	public String decode(String crockCode) {
 
-		if (!crockCode.matches("^[A-Za-z0-9]{3}-?[A-Za-z0-9]{3}$")) {
+		if (!isCrockCode(crockCode)) {
 			throw new IllegalArgumentException("Not a valid crock code: %s".formatted(crockCode));
 		}
 		
@@ -101,12 +179,290 @@ public class PhoneNumberEncoder {
 			throw new IllegalArgumentException("Crock code doesn't decode to a valid phone number: %s".formatted(crockCode));
 		}
 
-		return String.format("%09d",value);
+		char[] digits = new char[9];
+		for (int i = 8; i >= 0; --i, value /= 10) {
+			digits[i] = (char) ('0' + value % 10);
+		}
+
+		return new String(digits);
+	}
+
+	/**
+	 * Encode phone numbers to crock codes in a character array.
+	 * 
+	 * Encodes numbers[from, to) and writes their crock codes, without dashes
+	 * and each {@link #CODE_WIDTH} characters wide, consecutively from
+	 * codes[offset].
+	 * 
+	 * @param numbers the phone numbers, each in the range 0..999999999
+	 * @param from the index of the first number to encode
+	 * @param to the index after the last number to encode
+	 * @param codes the array to write the crock codes to
+	 * @param offset the position in codes of the first crock code
+	 * @throws IllegalArgumentException if a number is out of range
+	 */
+	public void encodeAll(long[] numbers, int from, int to, char[] codes, int offset) {
+		long[] mixed = new long[Math.min(CHUNK_SIZE, to - from)];
+		for (int lo = from; lo < to; lo += CHUNK_SIZE) {
+			int count = Math.min(CHUNK_SIZE, to - lo);
+			mixChunk(numbers, lo, count, mixed);
+			int pos = offset + (lo - from) * CODE_WIDTH;
+			for (int i = 0; i < count; ++i, pos += CODE_WIDTH) {
+				crockEncoder.writeMixed(mixed[i], CODE_WIDTH, codes, pos);
+			}
+		}
+	}
+
+	/**
+	 * Encode phone numbers to crock codes in a byte array.
+	 * 
+	 * As {@link #encodeAll(long[], int, int, char[], int)}, but writes the
+	 * crock codes as ASCII bytes.
+	 * 
+	 * @param numbers the phone numbers, each in the range 0..999999999
+	 * @param from the index of the first number to encode
+	 * @param to the index after the last number to encode
+	 * @param codes the array to write the crock codes to
+	 * @param offset the position in codes of the first crock code
+	 * @throws IllegalArgumentException if a number is out of range
+	 */
+	public void encodeAll(long[] numbers, int from, int to, byte[] codes, int offset) {
+		long[] mixed = new long[Math.min(CHUNK_SIZE, to - from)];
+		for (int lo = from; lo < to; lo += CHUNK_SIZE) {
+			int count = Math.min(CHUNK_SIZE, to - lo);
+			mixChunk(numbers, lo, count, mixed);
+			int pos = offset + (lo - from) * CODE_WIDTH;
+			for (int i = 0; i < count; ++i, pos += CODE_WIDTH) {
+				crockEncoder.writeMixed(mixed[i], CODE_WIDTH, codes, pos);
+			}
+		}
+	}
+
+	/**
+	 * Decode crock codes in a character array to phone numbers.
+	 * 
+	 * Reads to - from crock codes, without dashes and each {@link #CODE_WIDTH}
+	 * characters wide, consecutively from codes[offset], and writes their
+	 * phone numbers to numbers[from, to).
+	 * 
+	 * @param codes the array holding the crock codes
+	 * @param offset the position in codes of the first crock code
+	 * @param numbers the array to write the phone numbers to
+	 * @param from the index to write the first number
+	 * @param to the index after the last number
+	 * @throws IllegalArgumentException if a crock code is invalid
+	 */
+	public void decodeAll(char[] codes, int offset, long[] numbers, int from, int to) {
+		for (int i = from, pos = offset; i < to; ++i, pos += CODE_WIDTH) {
+			numbers[i] = crockEncoder.readMixed(codes, pos, CODE_WIDTH);
+		}
+		unmixRange(numbers, from, to, (i) -> new String(codes, offset + (i - from) * CODE_WIDTH, CODE_WIDTH));
+	}
+
+	/**
+	 * Decode crock codes in a byte array to phone numbers.
+	 * 
+	 * As {@link #decodeAll(char[], int, long[], int, int)}, but reads the
+	 * crock codes from ASCII bytes.
+	 * 
+	 * @param codes the array holding the crock codes
+	 * @param offset the position in codes of the first crock code
+	 * @param numbers the array to write the phone numbers to
+	 * @param from the index to write the first number
+	 * @param to the index after the last number
+	 * @throws IllegalArgumentException if a crock code is invalid
+	 */
+	public void decodeAll(byte[] codes, int offset, long[] numbers, int from, int to) {
+		for (int i = from, pos = offset; i < to; ++i, pos += CODE_WIDTH) {
+			numbers[i] = crockEncoder.readMixed(codes, pos, CODE_WIDTH);
+		}
+		unmixRange(numbers, from, to, (i) -> new String(codes, offset + (i - from) * CODE_WIDTH, CODE_WIDTH, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Parallel version of {@link #encodeAll(long[], int, int, char[], int)}.
+	 * 
+	 * @param numbers the phone numbers, each in the range 0..999999999
+	 * @param from the index of the first number to encode
+	 * @param to the index after the last number to encode
+	 * @param codes the array to write the crock codes to
+	 * @param offset the position in codes of the first crock code
+	 * @throws IllegalArgumentException if a number is out of range
+	 */
+	public void parallelEncodeAll(long[] numbers, int from, int to, char[] codes, int offset) {
+		inParallel(from, to, (lo, hi) -> encodeAll(numbers, lo, hi, codes, offset + (lo - from) * CODE_WIDTH));
+	}
+
+	/**
+	 * Parallel version of {@link #encodeAll(long[], int, int, byte[], int)}.
+	 * 
+	 * @param numbers the phone numbers, each in the range 0..999999999
+	 * @param from the index of the first number to encode
+	 * @param to the index after the last number to encode
+	 * @param codes the array to write the crock codes to
+	 * @param offset the position in codes of the first crock code
+	 * @throws IllegalArgumentException if a number is out of range
+	 */
+	public void parallelEncodeAll(long[] numbers, int from, int to, byte[] codes, int offset) {
+		inParallel(from, to, (lo, hi) -> encodeAll(numbers, lo, hi, codes, offset + (lo - from) * CODE_WIDTH));
+	}
+
+	/**
+	 * Parallel version of {@link #decodeAll(char[], int, long[], int, int)}.
+	 * 
+	 * @param codes the array holding the crock codes
+	 * @param offset the position in codes of the first crock code
+	 * @param numbers the array to write the phone numbers to
+	 * @param from the index to write the first number
+	 * @param to the index after the last number
+	 * @throws IllegalArgumentException if a crock code is invalid
+	 */
+	public void parallelDecodeAll(char[] codes, int offset, long[] numbers, int from, int to) {
+		inParallel(from, to, (lo, hi) -> decodeAll(codes, offset + (lo - from) * CODE_WIDTH, numbers, lo, hi));
+	}
+
+	/**
+	 * Parallel version of {@link #decodeAll(byte[], int, long[], int, int)}.
+	 * 
+	 * @param codes the array holding the crock codes
+	 * @param offset the position in codes of the first crock code
+	 * @param numbers the array to write the phone numbers to
+	 * @param from the index to write the first number
+	 * @param to the index after the last number
+	 * @throws IllegalArgumentException if a crock code is invalid
+	 */
+	public void parallelDecodeAll(byte[] codes, int offset, long[] numbers, int from, int to) {
+		inParallel(from, to, (lo, hi) -> decodeAll(codes, offset + (lo - from) * CODE_WIDTH, numbers, lo, hi));
+	}
+
+	/* Validates and mixes count numbers starting at from into mixed[0, count). */
+	private void mixChunk(long[] numbers, int from, int count, long[] mixed) {
+		for (int i = from; i < from + count; ++i) {
+			if (numbers[i] < 0L || numbers[i] > 999999999L) {
+				throw new IllegalArgumentException("Not a 9-digit phone number: %d".formatted(numbers[i]));
+			}
+		}
+		if (mixer == DEFAULT_MIXER && VECTOR_MIXER != null) {
+			VECTOR_MIXER.mix(numbers, from, mixed, 0, count);
+		}
+		else {
+			for (int i = 0; i < count; ++i) {
+				mixed[i] = mixer.applyAsLong(numbers[from + i]);
+			}
+		}
+	}
+
+	/* Unmixes numbers[from, to) in place and validates the results, using
+	 * codeAt to produce the offending crock code for the error message. */
+	private void unmixRange(long[] numbers, int from, int to, IntFunction<String> codeAt) {
+		if (unmixer == DEFAULT_UNMIXER && VECTOR_UNMIXER != null) {
+			VECTOR_UNMIXER.mix(numbers, from, numbers, from, to - from);
+		}
+		else {
+			for (int i = from; i < to; ++i) {
+				numbers[i] = unmixer.applyAsLong(numbers[i]);
+			}
+		}
+		for (int i = from; i < to; ++i) {
+			if (numbers[i] < 0L || numbers[i] > 999999999L) {
+				throw new IllegalArgumentException("Crock code doesn't decode to a valid phone number: %s".formatted(codeAt.apply(i)));
+			}
+		}
+	}
+
+	/* Task on the index range [from, to). */
+	private interface RangeTask {
+		void run(int from, int to);
+	}
+
+	/* Splits [from, to) in chunks and runs task on these in parallel. */
+	private static void inParallel(int from, int to, RangeTask task) {
+		int chunks = (to - from + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+		IntStream.range(0, chunks).parallel().forEach((c) -> {
+			int lo = from + c * PARALLEL_CHUNK_SIZE;
+			task.run(lo, Math.min(to, lo + PARALLEL_CHUNK_SIZE));
+		});
+	}
+
+	/* True if s is three alphanumerics, an optional dash, and three alphanumerics. */
+	private static boolean isCrockCode(String s) {
+		int length = s.length();
+		if (length != 6 && (length != 7 || s.charAt(3) != '-')) {
+			return false;
+		}
+		for (int i = 0; i < length; ++i) {
+			char c = s.charAt(i);
+			boolean alnum = (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+			if (!alnum && !(length == 7 && i == 3)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/* Default bit mixer function.  Makes sure that the bits of each input nyckle
-	   end up spread across all output nyckles. */
-	private static long mixBits(long n) {
+	   end up spread across all output nyckles.  Looks up the mixed bits for each
+	   byte of the 30 bit input, see mixBitwise for the actual permutation. */
+	static long mixBits(long n) {
+		return permute(MIX_TABLE, n);
+	}
+
+	/* Default bit unmixer, undoes the default bit mixer. */	
+	static long unmixBits(long n) {
+		return permute(UNMIX_TABLE, n);
+	}
+
+	private static long permute(int[][] table, long n) {
+		int i = (int) n;
+		return table[0][i & 0xff] | table[1][(i >>> 8) & 0xff] | table[2][(i >>> 16) & 0xff] | table[3][(i >>> 24) & 0xff];
+	}
+
+	private static int[][] permutationTable(LongUnaryOperator permutation) {
+		int[][] table = new int[4][256];
+		for (int k = 0; k < 4; ++k) {
+			for (int b = 0; b < 256; ++b) {
+				table[k][b] = (int) permutation.applyAsLong((long) b << (8 * k));
+			}
+		}
+		return table;
+	}
+
+	/* Returns a VectorBitMixer for permutation, or null if it or the vector API is absent.
+	 * Groups the bits that move over the same distance, so the vector mixer
+	 * needs one mask and shift per distance rather than per bit.  The class
+	 * is loaded reflectively, so that the default build needs no incubator module. */
+	private static BulkMixer vectorMixer(LongUnaryOperator permutation) {
+		if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			return null;
+		}
+
+		long[] groups = new long[64];
+		for (int bit = 0; bit < 30; ++bit) {
+			int target = 63 - Long.numberOfLeadingZeros(permutation.applyAsLong(1L << bit));
+			groups[target - bit + 32] |= 1L << bit;
+		}
+
+		int count = (int) Arrays.stream(groups).filter((g) -> g != 0L).count();
+		long[] masks = new long[count];
+		int[] shifts = new int[count];
+		for (int d = 0, g = 0; d < 64; ++d) {
+			if (groups[d] != 0L) {
+				masks[g] = groups[d];
+				shifts[g++] = d - 32;
+			}
+		}
+
+		try {
+			return (BulkMixer) Class.forName(VECTOR_MIXER_CLASS)
+					.getDeclaredConstructor(long[].class, int[].class)
+					.newInstance(masks, shifts);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/* The default bit mixing, one bit at a time, used to fill MIX_TABLE. */
+	private static long mixBitwise(long n) {
 		// We mix the 30 bits, which would be encoded as 6 groups of 5 bits, by
 		// 'going down the columns', thus creating each target nyckle by taking
 		// a bit from five different input nyckles.
@@ -118,8 +474,8 @@ public class PhoneNumberEncoder {
 		return r;
 	}
 
-	/* Default bit unmixer, undoes the default bit mixer. */	
-	private static long unmixBits(long n) {
+	/* The default bit unmixing, one bit at a time, used to fill UNMIX_TABLE. */	
+	private static long unmixBitwise(long n) {
 		// The inverse of mixBits; we transpose back the 5 by 6 to 6 by 5.
 		// So, we successively see bits for: 29, 24, 19, 14, 9, 4; 28, 23, ....
 		long r = 0;
@@ -128,4 +484,9 @@ public class PhoneNumberEncoder {
 				r |= (n & 1) << (29 - (5*j + i));
 		return r;
 	}
+
+	/* Applies a bit permutation to a range of values in bulk. */
+	interface BulkMixer {
+		void mix(long[] src, int from, long[] dst, int to, int count);
+	}
 }
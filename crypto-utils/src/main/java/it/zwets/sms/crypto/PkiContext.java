@@ -0,0 +1,358 @@
+package it.zwets.sms.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Holds a key (pair) and the ciphers to encrypt and decrypt with it.
+ *
+ * Obtaining and initialising a JCE cipher involves a provider lookup
+ * and a fair amount of allocation.  A <code>PkiContext</code> does this
+ * once per thread, and then reuses the initialised cipher for every
+ * subsequent call on that thread.
+ *
+ * Hold on to a context for as long as you use its key.  Instances are
+ * thread-safe: each thread gets its own cipher objects.
+ *
+ * The static methods in {@link PkiUtils} use a cache of contexts weakly
+ * keyed by key, so they get the same benefit without the caller having
+ * to manage contexts.
+ *
+ * Plain {@link #encrypt(byte[])} can handle at most one RSA block (214
+ * bytes for a 2048 bit key).  Use {@link #seal(byte[])} for payloads of
+ * any size.  It produces an <i>envelope</i>: the payload encrypted with
+ * a fresh random AES-256 key in GCM mode, and that key encrypted with
+ * RSA.  The envelope layout is:
+ * <pre>
+ * byte       version (1)
+ * short      length N of the wrapped key
+ * byte[N]    the RSA-encrypted AES key
+ * byte[...]  the AES-GCM encrypted payload, followed by its 16 byte tag
+ * </pre>
+ * The version and wrapped key are authenticated along with the payload.
+ * As every envelope has its own AES key, the GCM nonce is fixed at zero.
+ *
+ * For payloads that should not be held in memory, the stream and channel
+ * variants of seal and unseal use the segmented streaming envelope that
+ * is described in {@link EnvelopeOutputStream}.  {@link #unseal(byte[])}
+ * accepts both formats.
+ *
+ * @author zwets
+ */
+public class PkiContext {
+
+	/* The asymmetric cipher used throughout. */
+	static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWithSHA1AndMGF1Padding";
+
+	/* The symmetric cipher used for envelope payloads. */
+	static final String AES_TRANSFORMATION = "AES/GCM/NoPadding";
+
+	/* Envelope format parameters. */
+	static final byte ENVELOPE_VERSION = 1;
+	static final int AES_KEY_BYTES = 32;
+	static final int GCM_NONCE_BYTES = 12;
+	static final int GCM_TAG_BITS = 128;
+
+	/* Per-thread AES ciphers, shared by all contexts as they are
+	 * initialised with a fresh key for every envelope anyway. */
+	private static final ThreadLocal<Cipher> AES_CIPHERS = new ThreadLocal<>();
+
+	/* Per-thread random generators for the envelope keys. */
+	private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(SecureRandom::new);
+
+	private final PublicKey publicKey;
+	private final PrivateKey privateKey;
+
+	/* Per-thread ciphers initialised with publicKey and privateKey. */
+	private final ThreadLocal<Cipher> encryptor = new ThreadLocal<>();
+	private final ThreadLocal<Cipher> decryptor = new ThreadLocal<>();
+
+	/**
+	 * Create a context that can only encrypt.
+	 * @param publicKey an RSA public key
+	 */
+	public PkiContext(PublicKey publicKey) {
+		this(publicKey, null);
+	}
+
+	/**
+	 * Create a context that can only decrypt.
+	 * @param privateKey an RSA private key
+	 */
+	public PkiContext(PrivateKey privateKey) {
+		this(null, privateKey);
+	}
+
+	/**
+	 * Create a context that can encrypt and decrypt.
+	 * @param keyPair an RSA key pair
+	 */
+	public PkiContext(KeyPair keyPair) {
+		this(keyPair.getPublic(), keyPair.getPrivate());
+	}
+
+	private PkiContext(PublicKey publicKey, PrivateKey privateKey) {
+		this.publicKey = publicKey;
+		this.privateKey = privateKey;
+	}
+
+	/**
+	 * The public key of this context.
+	 * @return the public key or null if this is a decrypt-only context
+	 */
+	public PublicKey getPublicKey() {
+		return publicKey;
+	}
+
+	/**
+	 * The private key of this context.
+	 * @return the private key or null if this is an encrypt-only context
+	 */
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+
+	/**
+	 * Encrypt plaintext to ciphertext using the public key.
+	 *
+	 * @param plaintext the bytes to encode
+	 * @return the encoded plaintext
+	 * @throws RuntimeException for all underlying JCE exceptions
+	 * @throws IllegalStateException if the context has no public key
+	 */
+	public byte[] encrypt(byte[] plaintext) {
+		Cipher cipher = getCipher(encryptor, Cipher.ENCRYPT_MODE, publicKey, "encryption");
+		try {
+			return cipher.doFinal(plaintext);
+		} catch (IllegalBlockSizeException | BadPaddingException e) {
+			encryptor.remove();
+			throw new RuntimeException("PKI error during encryption: %s".formatted(e.getMessage()), e);
+		}
+	}
+
+	/**
+	 * Decrypt ciphertext to plaintext using the private key.
+	 *
+	 * @param ciphertext the ciphertext to decrypt
+	 * @return the decoded ciphertext
+	 * @throws RuntimeException for all underlying JCE exceptions
+	 * @throws IllegalStateException if the context has no private key
+	 */
+	public byte[] decrypt(byte[] ciphertext) {
+		Cipher cipher = getCipher(decryptor, Cipher.DECRYPT_MODE, privateKey, "decryption");
+		try {
+			return cipher.doFinal(ciphertext);
+		} catch (IllegalBlockSizeException | BadPaddingException e) {
+			// A cipher may need a reset after a failed doFinal, so drop it
+			decryptor.remove();
+			throw new RuntimeException("PKI error during decryption: %s".formatted(e.getMessage()), e);
+		}
+	}
+
+	/**
+	 * Encrypt a payload of any size into an envelope using the public key.
+	 *
+	 * @param plaintext the bytes to encode
+	 * @return the envelope
+	 * @throws RuntimeException for all underlying JCE exceptions
+	 * @throws IllegalStateException if the context has no public key
+	 */
+	public byte[] seal(byte[] plaintext) {
+		byte[] keyBytes = new byte[AES_KEY_BYTES];
+		randomBytes(keyBytes);
+		byte[] wrappedKey = encrypt(keyBytes);
+
+		int headerLength = 3 + wrappedKey.length;
+		byte[] envelope = new byte[headerLength + plaintext.length + GCM_TAG_BITS / 8];
+		ByteBuffer.wrap(envelope).put(ENVELOPE_VERSION).putShort((short) wrappedKey.length).put(wrappedKey);
+
+		try {
+			Cipher cipher = initAesCipher(Cipher.ENCRYPT_MODE, keyBytes);
+			cipher.updateAAD(envelope, 0, headerLength);
+			cipher.doFinal(plaintext, 0, plaintext.length, envelope, headerLength);
+			return envelope;
+		} catch (GeneralSecurityException e) {
+			AES_CIPHERS.remove();
+			throw new RuntimeException("PKI error during encryption: %s".formatted(e.getMessage()), e);
+		} finally {
+			Arrays.fill(keyBytes, (byte) 0);
+		}
+	}
+
+	/**
+	 * Decrypt an envelope produced by {@link #seal(byte[])} using the private key.
+	 *
+	 * @param envelope the envelope to decrypt
+	 * @return the decoded payload
+	 * @throws RuntimeException for all underlying JCE exceptions, and when
+	 *   the envelope is malformed or fails authentication
+	 * @throws IllegalStateException if the context has no private key
+	 */
+	public byte[] unseal(byte[] envelope) {
+		if (envelope.length > 0 && envelope[0] == EnvelopeOutputStream.STREAM_VERSION) {
+			try (InputStream in = newUnsealingStream(new ByteArrayInputStream(envelope))) {
+				return in.readAllBytes();
+			} catch (IOException e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
+		}
+		if (envelope.length < 3 || envelope[0] != ENVELOPE_VERSION) {
+			throw new RuntimeException("PKI error during decryption: not a version %d envelope".formatted(ENVELOPE_VERSION));
+		}
+
+		int keyLength = ((envelope[1] & 0xff) << 8) | (envelope[2] & 0xff);
+		int headerLength = 3 + keyLength;
+		if (envelope.length < headerLength + GCM_TAG_BITS / 8) {
+			throw new RuntimeException("PKI error during decryption: envelope is truncated");
+		}
+
+		byte[] keyBytes = decrypt(Arrays.copyOfRange(envelope, 3, headerLength));
+		try {
+			Cipher cipher = initAesCipher(Cipher.DECRYPT_MODE, keyBytes);
+			cipher.updateAAD(envelope, 0, headerLength);
+			return cipher.doFinal(envelope, headerLength, envelope.length - headerLength);
+		} catch (GeneralSecurityException e) {
+			AES_CIPHERS.remove();
+			throw new RuntimeException("PKI error during decryption: %s".formatted(e.getMessage()), e);
+		} finally {
+			Arrays.fill(keyBytes, (byte) 0);
+		}
+	}
+
+	/**
+	 * Return an output stream that seals everything written to it into a
+	 * streaming envelope on out.  The envelope is complete when the stream
+	 * is closed, which also closes out.
+	 *
+	 * @param out the stream to write the envelope to
+	 * @return the sealing stream
+	 * @throws IOException when writing the envelope header fails
+	 * @throws IllegalStateException if the context has no public key
+	 */
+	public EnvelopeOutputStream newSealingStream(OutputStream out) throws IOException {
+		return new EnvelopeOutputStream(this, out);
+	}
+
+	/**
+	 * Return an input stream that reads the payload from the streaming
+	 * envelope on in.
+	 *
+	 * @param in the stream to read the envelope from
+	 * @return the unsealing stream
+	 * @throws IOException when the envelope header cannot be read or decrypted
+	 * @throws IllegalStateException if the context has no private key
+	 */
+	public EnvelopeInputStream newUnsealingStream(InputStream in) throws IOException {
+		return new EnvelopeInputStream(this, in);
+	}
+
+	/**
+	 * Seal everything on in into a streaming envelope on out, in constant memory.
+	 * Closes out but not in.
+	 *
+	 * @param in the plaintext to seal
+	 * @param out the stream to write the envelope to
+	 * @throws IOException when reading or writing fails
+	 */
+	public void seal(InputStream in, OutputStream out) throws IOException {
+		try (OutputStream sealer = newSealingStream(out)) {
+			in.transferTo(sealer);
+		}
+	}
+
+	/**
+	 * Unseal the streaming envelope on in to out, in constant memory.
+	 * Closes in but not out.  Note that when this throws, out may already
+	 * have received the authenticated leading part of the payload.
+	 *
+	 * @param in the envelope to read
+	 * @param out the stream to write the plaintext to
+	 * @throws IOException when reading or writing fails, or the envelope
+	 *   is malformed or fails authentication
+	 */
+	public void unseal(InputStream in, OutputStream out) throws IOException {
+		try (InputStream unsealer = newUnsealingStream(in)) {
+			unsealer.transferTo(out);
+		}
+	}
+
+	/**
+	 * Channel variant of {@link #seal(InputStream, OutputStream)}.
+	 *
+	 * @param in the plaintext to seal
+	 * @param out the channel to write the envelope to
+	 * @throws IOException when reading or writing fails
+	 */
+	public void seal(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		seal(Channels.newInputStream(in), Channels.newOutputStream(out));
+	}
+
+	/**
+	 * Channel variant of {@link #unseal(InputStream, OutputStream)}.
+	 *
+	 * @param in the envelope to read
+	 * @param out the channel to write the plaintext to
+	 * @throws IOException when reading or writing fails, or the envelope
+	 *   is malformed or fails authentication
+	 */
+	public void unseal(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		unseal(Channels.newInputStream(in), Channels.newOutputStream(out));
+	}
+
+	/* Fills bytes with this thread's secure random generator. */
+	static void randomBytes(byte[] bytes) {
+		RANDOMS.get().nextBytes(bytes);
+	}
+
+	/* Returns this thread's AES cipher initialised for mode with keyBytes
+	 * and the all-zero nonce. */
+	static Cipher initAesCipher(int mode, byte[] keyBytes) throws GeneralSecurityException {
+		Cipher cipher = AES_CIPHERS.get();
+		if (cipher == null) {
+			cipher = Cipher.getInstance(AES_TRANSFORMATION);
+			AES_CIPHERS.set(cipher);
+		}
+		cipher.init(mode, new SecretKeySpec(keyBytes, "AES"), new GCMParameterSpec(GCM_TAG_BITS, new byte[GCM_NONCE_BYTES]));
+		return cipher;
+	}
+
+	/* Returns this thread's cipher from holder, creating it if needed. */
+	private static Cipher getCipher(ThreadLocal<Cipher> holder, int mode, Key key, String what) {
+		Cipher cipher = holder.get();
+		if (cipher == null) {
+			if (key == null) {
+				throw new IllegalStateException("PKI context has no key for %s".formatted(what));
+			}
+			try {
+				cipher = Cipher.getInstance(RSA_TRANSFORMATION);
+				cipher.init(mode, key);
+			} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+				throw new RuntimeException("PKI error during %s: %s".formatted(what, e.getMessage()), e);
+			}
+			holder.set(cipher);
+		}
+		return cipher;
+	}
+}
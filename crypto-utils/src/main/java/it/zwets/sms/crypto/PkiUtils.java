@@ -1,9 +1,14 @@
 package it.zwets.sms.crypto;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -11,18 +16,28 @@ import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.UnaryOperator;
 
 /**
  * General helpers for PKI
+ * 
+ * The encrypt and decrypt methods reuse initialised ciphers through a
+ * cache of {@link PkiContext} objects weakly keyed by key, which holds on
+ * to neither the keys nor their contexts, so they are collected once the
+ * caller drops them.  Callers that need their contexts to stay around
+ * should hold on to them instead.
+ * 
  * @author zwets
  */
 public class PkiUtils {
 
+	/* Contexts for the keys in use; the contexts refer to their keys, so are weakly held too. */
+	private static final Map<Key,WeakReference<PkiContext>> CONTEXTS = new WeakHashMap<>();
+
 	/**
 	 * Encrypt plaintext to ciphertext using a public key.
 	 * 
@@ -33,13 +48,7 @@ public class PkiUtils {
 	 */
 	public static byte[] encrypt(PublicKey key, byte[] plaintext)
 	{
-		try {
-			Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA1AndMGF1Padding");
-			cipher.init(Cipher.ENCRYPT_MODE, key);  
-			return cipher.doFinal(plaintext);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-			throw new RuntimeException("PKI error during encryption: %s".formatted(e.getMessage()), e);
-		}
+		return getContext(key).encrypt(plaintext);
 	}
 
 	/**
@@ -51,15 +60,111 @@ public class PkiUtils {
 	 */
 	public static byte[] decrypt(PrivateKey key, byte[] ciphertext) 
 	{
-		try {
-			Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA1AndMGF1Padding");
-			cipher.init(Cipher.DECRYPT_MODE, key);  
-			return cipher.doFinal(ciphertext);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-			throw new RuntimeException("PKI error during decryption: %s".formatted(e.getMessage()), e);
-		}
+		return getContext(key).decrypt(ciphertext);
 	}
 	
+	/**
+	 * Encrypt a payload of any size into an envelope using a public key.
+	 * 
+	 * @param key an RSA public key
+	 * @param plaintext the bytes to encode
+	 * @return the envelope
+	 * @throws RuntimeException for all underlying JCE exceptions
+	 * @see PkiContext#seal(byte[])
+	 */
+	public static byte[] seal(PublicKey key, byte[] plaintext)
+	{
+		return getContext(key).seal(plaintext);
+	}
+
+	/**
+	 * Decrypt an envelope produced by {@link #seal(PublicKey, byte[])}.
+	 * 
+	 * @param key an RSA private key
+	 * @param envelope the envelope to decrypt
+	 * @return the decoded payload
+	 * @throws RuntimeException for all underlying JCE exceptions
+	 * @see PkiContext#unseal(byte[])
+	 */
+	public static byte[] unseal(PrivateKey key, byte[] envelope)
+	{
+		return getContext(key).unseal(envelope);
+	}
+
+	/**
+	 * Seal everything on in into a streaming envelope on out, in constant memory.
+	 * Closes out but not in.
+	 * 
+	 * @param key an RSA public key
+	 * @param in the plaintext to seal
+	 * @param out the stream to write the envelope to
+	 * @throws IOException when reading or writing fails
+	 * @see PkiContext#seal(InputStream, OutputStream)
+	 */
+	public static void seal(PublicKey key, InputStream in, OutputStream out) throws IOException
+	{
+		getContext(key).seal(in, out);
+	}
+
+	/**
+	 * Unseal the streaming envelope on in to out, in constant memory.
+	 * Closes in but not out.
+	 * 
+	 * @param key an RSA private key
+	 * @param in the envelope to read
+	 * @param out the stream to write the plaintext to
+	 * @throws IOException when reading or writing fails, or the envelope
+	 *   is malformed or fails authentication
+	 * @see PkiContext#unseal(InputStream, OutputStream)
+	 */
+	public static void unseal(PrivateKey key, InputStream in, OutputStream out) throws IOException
+	{
+		getContext(key).unseal(in, out);
+	}
+
+	/**
+	 * Channel variant of {@link #seal(PublicKey, InputStream, OutputStream)}.
+	 * 
+	 * @param key an RSA public key
+	 * @param in the plaintext to seal
+	 * @param out the channel to write the envelope to
+	 * @throws IOException when reading or writing fails
+	 */
+	public static void seal(PublicKey key, ReadableByteChannel in, WritableByteChannel out) throws IOException
+	{
+		getContext(key).seal(in, out);
+	}
+
+	/**
+	 * Channel variant of {@link #unseal(PrivateKey, InputStream, OutputStream)}.
+	 * 
+	 * @param key an RSA private key
+	 * @param in the envelope to read
+	 * @param out the channel to write the plaintext to
+	 * @throws IOException when reading or writing fails, or the envelope
+	 *   is malformed or fails authentication
+	 */
+	public static void unseal(PrivateKey key, ReadableByteChannel in, WritableByteChannel out) throws IOException
+	{
+		getContext(key).unseal(in, out);
+	}
+
+	/* Returns the cached context for key, creating it if needed or if it was
+	 * collected, as contexts are cheap to recreate. */
+	private static PkiContext getContext(Key key) {
+		synchronized (CONTEXTS) {
+			WeakReference<PkiContext> ref = CONTEXTS.get(key);
+			PkiContext context = ref == null ? null : ref.get();
+			if (context == null) {
+				context = key instanceof PublicKey
+						? new PkiContext((PublicKey) key)
+						: new PkiContext((PrivateKey) key);
+				CONTEXTS.put(key, new WeakReference<>(context));
+			}
+			return context;
+		}
+	}
+
 	/**
 	 * Read public key from file.
 	 * 
@@ -98,29 +203,57 @@ public class PkiUtils {
 
 	/**
 	 * Main function exercises the helper functions.
+	 * 
+	 * The seal and unseal commands stream from stdin to the output in
+	 * constant memory, so they can process inputs of any size.
+	 * 
+	 * With option -b the command runs in batch mode: every line on stdin
+	 * is a base64 encoded frame, and produces one line with the base64
+	 * encoded result (or ERROR and a message) on the output, in the same
+	 * order.  Frames are processed in parallel, and the key and ciphers are
+	 * reused for the whole run.  See {@link BatchProcessor}.
+	 * 
 	 * @param args
 	 */
 	public static void main(String[] args)
 	{
-		String outFile = "/dev/stdout";
+		boolean batch = args.length > 0 && args[0].equals("-b");
+		if (batch) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
 
-		if (args.length < 2 || !(args[0].equals("encrypt") || args[0].equals("decrypt"))) {
-			System.err.println("Usage: PkiHelper encrypt KEYFILE [INFILE] | decrypt KEYFILE [INFILE]");
+		if (args.length < 2 || args.length > 3 || !List.of("encrypt", "decrypt", "seal", "unseal").contains(args[0])) {
+			System.err.println("Usage: PkiUtils [-b] encrypt|seal PUBKEYFILE [OUTFILE] | [-b] decrypt|unseal PRIVKEYFILE [OUTFILE]");
 		}
 		else {
-			if (args.length == 3) {
-				outFile = args[2];
-			}
-			try {
-				if (args[0].equals("encrypt")) {
+			try (OutputStream out = args.length == 3 ? Files.newOutputStream(Path.of(args[2])) : System.out) {
+				if (batch) {
+					UnaryOperator<byte[]> operation;
+					if (args[0].equals("encrypt") || args[0].equals("seal")) {
+						PkiContext context = new PkiContext(readPublicKey(args[1]));
+						operation = args[0].equals("encrypt") ? context::encrypt : context::seal;
+					}
+					else {
+						PkiContext context = new PkiContext(readPrivateKey(args[1]));
+						operation = args[0].equals("decrypt") ? context::decrypt : context::unseal;
+					}
+					new BatchProcessor(operation, Runtime.getRuntime().availableProcessors()).run(System.in, out);
+				}
+				else if (args[0].equals("encrypt")) {
 					PublicKey key = readPublicKey(args[1]);
-					byte[] bytes = encrypt(key, Files.readAllBytes(Path.of("/dev/stdin")));
-					Files.write(Path.of(outFile), bytes);
+					out.write(encrypt(key, System.in.readAllBytes()));
 				}
 				else if (args[0].equals("decrypt")) {
 					PrivateKey key = readPrivateKey(args[1]);
-					byte[] bytes = decrypt(key, Files.readAllBytes(Path.of("/dev/stdin")));
-					Files.write(Path.of(outFile), bytes);
+					out.write(decrypt(key, System.in.readAllBytes()));
+				}
+				else if (args[0].equals("seal")) {
+					PublicKey key = readPublicKey(args[1]);
+					seal(key, System.in, out);
+				}
+				else if (args[0].equals("unseal")) {
+					PrivateKey key = readPrivateKey(args[1]);
+					unseal(key, System.in, out);
 				}
 			}
 			catch (Exception e)
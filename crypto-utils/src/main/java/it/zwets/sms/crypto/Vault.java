@@ -2,18 +2,32 @@ package it.zwets.sms.crypto;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.KeyStore.PasswordProtection;
 import java.security.KeyStore.PrivateKeyEntry;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,15 +59,34 @@ import org.slf4j.LoggerFactory;
  * The resulting public key can be used by {@link PkiUtils#encrypt()} to
  * encrypt messages that can only be decrypted by the Vault.
  * 
+ * The Vault keeps an in-memory snapshot of the keystore, and caches a
+ * {@link PkiContext} for each key pair it has unwrapped from it.  The
+ * snapshot is replaced as a whole when the modification time of the
+ * keystore file changes, so keys added with keytool become available
+ * without restarting.  The modification time is checked at most once
+ * per reload check interval, so that decrypting does not stat the file
+ * for every message.
+ * 
  * @author zwets
  */
 public class Vault {
 	
 	private static Logger LOG = LoggerFactory.getLogger(Vault.class);
 
+	/** Default interval between checks whether the keystore file has changed. */
+	public static final Duration DEFAULT_RELOAD_CHECK_INTERVAL = Duration.ofSeconds(1);
+
 	private String keyStoreFileName;
 	private char[] keyStorePassword;
 
+	/* Current snapshot of the keystore, replaced when the file changes. */
+	private volatile KeyStoreSnapshot snapshot;
+	private volatile long reloadCheckNanos = DEFAULT_RELOAD_CHECK_INTERVAL.toNanos();
+
+	/* Executor and concurrency limit for the bulk operations. */
+	private volatile Executor executor = ForkJoinPool.commonPool();
+	private volatile int maxInFlight = Runtime.getRuntime().availableProcessors();
+
 	/**
 	 * Create or open the given keystore with the given password
 	 * 
@@ -73,7 +106,7 @@ public class Vault {
 	 * @throws RuntimeException for any underlying checked exception
 	 */
 	public PublicKey getPublicKey(String keyId) {
-		return getKeyPair(keyId).getPublic();
+		return getContext(keyId).getPublicKey();
 	}
 	
 	/**
@@ -85,10 +118,204 @@ public class Vault {
 	 * @throws RuntimeException for any underlying checked exception
 	 */
 	public byte[] decrypt(String keyId, byte[] ciphertext) {
-		return PkiUtils.decrypt(getPrivateKey(keyId), ciphertext);
+		return getContext(keyId).decrypt(ciphertext);
 	}
 
-	private KeyStore getKeyStore() {
+	/**
+	 * Decrypt an envelope sealed with the public key for keyId.
+	 * 
+	 * @param keyId the ID the key was stored under
+	 * @param envelope the envelope produced by {@link PkiUtils#seal(PublicKey, byte[])}
+	 * @return the plaintext
+	 * @throws RuntimeException for any underlying checked exception
+	 */
+	public byte[] unseal(String keyId, byte[] envelope) {
+		return getContext(keyId).unseal(envelope);
+	}
+
+	/**
+	 * Set the interval between checks whether the keystore file has changed.
+	 * Keys added to the keystore become available at most this long after.
+	 * 
+	 * @param interval the interval, zero to check on every operation
+	 */
+	public void setReloadCheckInterval(Duration interval) {
+		if (interval.isNegative()) {
+			throw new IllegalArgumentException("Reload check interval must not be negative: %s".formatted(interval));
+		}
+		this.reloadCheckNanos = interval.toNanos();
+	}
+
+	/**
+	 * Set the executor and concurrency limit for the bulk operations.
+	 * 
+	 * By default these run on the common fork-join pool, with as many items
+	 * in flight as there are processors.  On a JDK that has them, a virtual
+	 * thread per task executor can be passed in.
+	 * 
+	 * @param executor the executor to run decryptions on
+	 * @param maxInFlight the maximum number of decryptions running at any time
+	 */
+	public void setExecutor(Executor executor, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive: %d".formatted(maxInFlight));
+		}
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Decrypt many ciphertexts in parallel with the private key for keyId.
+	 * 
+	 * @param keyId the ID the key was stored under
+	 * @param ciphertexts the texts to decode
+	 * @return the results, in the order of ciphertexts
+	 * @throws RuntimeException when the key cannot be obtained; failures on
+	 *   individual ciphertexts are reported in their result
+	 * @see #decryptAllAsync(String, List)
+	 */
+	public List<Result> decryptAll(String keyId, List<byte[]> ciphertexts) {
+		return decryptAllAsync(keyId, ciphertexts).join();
+	}
+
+	/**
+	 * Asynchronously decrypt many ciphertexts in parallel with the private key for keyId.
+	 * 
+	 * At most the configured maximum number of decryptions are in flight
+	 * at any time, see {@link #setExecutor(Executor, int)}.
+	 * 
+	 * @param keyId the ID the key was stored under
+	 * @param ciphertexts the texts to decode
+	 * @return future completing with the results, in the order of ciphertexts
+	 * @throws RuntimeException when the key cannot be obtained; failures on
+	 *   individual ciphertexts are reported in their result
+	 */
+	public CompletableFuture<List<Result>> decryptAllAsync(String keyId, List<byte[]> ciphertexts) {
+		return processAll(getContext(keyId)::decrypt, ciphertexts);
+	}
+
+	/**
+	 * Unseal many envelopes in parallel with the private key for keyId.
+	 * 
+	 * @param keyId the ID the key was stored under
+	 * @param envelopes the envelopes to decrypt
+	 * @return the results, in the order of envelopes
+	 * @throws RuntimeException when the key cannot be obtained; failures on
+	 *   individual envelopes are reported in their result
+	 * @see #decryptAllAsync(String, List)
+	 */
+	public List<Result> unsealAll(String keyId, List<byte[]> envelopes) {
+		return unsealAllAsync(keyId, envelopes).join();
+	}
+
+	/**
+	 * Asynchronously unseal many envelopes in parallel with the private key for keyId.
+	 * 
+	 * @param keyId the ID the key was stored under
+	 * @param envelopes the envelopes to decrypt
+	 * @return future completing with the results, in the order of envelopes
+	 * @throws RuntimeException when the key cannot be obtained; failures on
+	 *   individual envelopes are reported in their result
+	 * @see #decryptAllAsync(String, List)
+	 */
+	public CompletableFuture<List<Result>> unsealAllAsync(String keyId, List<byte[]> envelopes) {
+		return processAll(getContext(keyId)::unseal, envelopes);
+	}
+
+	/* Applies operation to all inputs.  Rather than submitting a task per
+	 * input, starts maxInFlight tasks that each claim the next unprocessed
+	 * input until none are left.  This bounds the work in flight without
+	 * blocking the caller, and writes each result to its input's index. */
+	private CompletableFuture<List<Result>> processAll(UnaryOperator<byte[]> operation, List<byte[]> inputs) {
+		int count = inputs.size();
+		Result[] results = new Result[count];
+		AtomicInteger next = new AtomicInteger();
+
+		Runnable worker = () -> {
+			int i;
+			while ((i = next.getAndIncrement()) < count) {
+				try {
+					results[i] = new Result(operation.apply(inputs.get(i)), null);
+				} catch (RuntimeException e) {
+					results[i] = new Result(null, e);
+				}
+			}
+		};
+
+		CompletableFuture<?>[] workers = new CompletableFuture<?>[Math.min(maxInFlight, count)];
+		for (int w = 0; w < workers.length; ++w) {
+			workers[w] = CompletableFuture.runAsync(worker, executor);
+		}
+
+		return CompletableFuture.allOf(workers).thenApply((v) -> Arrays.asList(results));
+	}
+
+	/**
+	 * Unseal the streaming envelope on in to out, in constant memory.
+	 * Closes in but not out.
+	 * 
+	 * @param keyId the ID the key was stored under
+	 * @param in the envelope produced by {@link PkiUtils#seal(PublicKey, InputStream, OutputStream)}
+	 * @param out the stream to write the plaintext to
+	 * @throws IOException when reading or writing fails, or the envelope
+	 *   is malformed or fails authentication
+	 * @throws RuntimeException for any underlying checked exception
+	 */
+	public void unseal(String keyId, InputStream in, OutputStream out) throws IOException {
+		getContext(keyId).unseal(in, out);
+	}
+
+	/**
+	 * Channel variant of {@link #unseal(String, InputStream, OutputStream)}.
+	 * 
+	 * @param keyId the ID the key was stored under
+	 * @param in the envelope to read
+	 * @param out the channel to write the plaintext to
+	 * @throws IOException when reading or writing fails, or the envelope
+	 *   is malformed or fails authentication
+	 * @throws RuntimeException for any underlying checked exception
+	 */
+	public void unseal(String keyId, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		getContext(keyId).unseal(in, out);
+	}
+
+	/* Returns the current snapshot, reloading the keystore if its file has
+	 * been modified since the snapshot was taken.  Within the reload check
+	 * interval of the last check, returns the snapshot without checking. */
+	private KeyStoreSnapshot getSnapshot() {
+		long now = System.nanoTime();
+		KeyStoreSnapshot current = snapshot;
+		if (current != null && now - current.checkedAt < reloadCheckNanos) {
+			return current;
+		}
+
+		FileTime lastModified = getLastModified();
+		if (current != null && current.lastModified.equals(lastModified)) {
+			current.checkedAt = now;
+		}
+		else {
+			synchronized (this) {
+				current = snapshot;
+				if (current == null || !current.lastModified.equals(lastModified)) {
+					current = new KeyStoreSnapshot(lastModified, loadKeyStore());
+					snapshot = current;
+				}
+			}
+		}
+		
+		return current;
+	}
+
+	private FileTime getLastModified() {
+		try {
+			return Files.getLastModifiedTime(Path.of(keyStoreFileName));
+		} catch (IOException e) {
+			LOG.error("Exception accessing keystore {}: {}", keyStoreFileName, e.getMessage());
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	private KeyStore loadKeyStore() {
 		LOG.info("Loading keystore: {}", keyStoreFileName);
 		
 		try {
@@ -105,28 +332,105 @@ public class Vault {
 		}
 	}
 
-	private PrivateKeyEntry getEntry(String keyId) {
+	private PrivateKeyEntry getEntry(KeyStore keyStore, String keyId) {
 		try {
-			return (PrivateKeyEntry) getKeyStore().getEntry(keyId, new PasswordProtection(keyStorePassword));
+			PrivateKeyEntry entry;
+			synchronized (keyStore) {
+				entry = (PrivateKeyEntry) keyStore.getEntry(keyId, new PasswordProtection(keyStorePassword));
+			}
+			if (entry == null) {
+				throw new RuntimeException("No such key in keystore: %s".formatted(keyId));
+			}
+			return entry;
 		} catch (NoSuchAlgorithmException | UnrecoverableEntryException | KeyStoreException e) {
 			LOG.error("Exception retrieving keystore entry '{}': {}", keyId, e.getMessage());
 			throw new RuntimeException(e.getMessage(), e.getCause());
 		}
 	}
 	
-	private KeyPair getKeyPair(String keyId) {
-		PrivateKeyEntry pke = getEntry(keyId);
-		return new KeyPair(pke.getCertificate().getPublicKey(), pke.getPrivateKey());
+	private PkiContext getContext(String keyId) {
+		KeyStoreSnapshot current = getSnapshot();
+		return current.contexts.computeIfAbsent(keyId, (id) -> {
+			PrivateKeyEntry pke = getEntry(current.keyStore, id);
+			return new PkiContext(new KeyPair(pke.getCertificate().getPublicKey(), pke.getPrivateKey()));
+		});
+	}
+	
+	/**
+	 * The outcome of one item in a bulk operation: either its plaintext,
+	 * or the exception that it failed with.
+	 */
+	public static final class Result {
+		private final byte[] plaintext;
+		private final RuntimeException error;
+
+		Result(byte[] plaintext, RuntimeException error) {
+			this.plaintext = plaintext;
+			this.error = error;
+		}
+
+		/**
+		 * Whether the item was successfully decrypted.
+		 * @return true if there is a plaintext
+		 */
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * The decrypted item.
+		 * @return the plaintext
+		 * @throws RuntimeException the exception the item failed with
+		 */
+		public byte[] getPlaintext() {
+			if (error != null) {
+				throw error;
+			}
+			return plaintext;
+		}
+
+		/**
+		 * The failure of the item.
+		 * @return the exception, or null if the item was decrypted
+		 */
+		public RuntimeException getError() {
+			return error;
+		}
 	}
 
-	private PrivateKey getPrivateKey(String keyId) {
-		return getKeyPair(keyId).getPrivate();
+	/* Immutable keystore as loaded at lastModified, plus the contexts for
+	 * the key pairs unwrapped from it so far. */
+	private static final class KeyStoreSnapshot {
+		final FileTime lastModified;
+		final KeyStore keyStore;
+		final Map<String,PkiContext> contexts = new ConcurrentHashMap<>();
+		volatile long checkedAt = System.nanoTime();
+
+		KeyStoreSnapshot(FileTime lastModified, KeyStore keyStore) {
+			this.lastModified = lastModified;
+			this.keyStore = keyStore;
+		}
 	}
-	
+
+	/**
+	 * Command line access to the Vault.
+	 * 
+	 * With option -b the decrypt and unseal commands run in batch mode:
+	 * every line on stdin is a base64 encoded frame, and produces one line
+	 * with the base64 encoded result (or ERROR and a message) on stdout,
+	 * in the same order.  See {@link BatchProcessor}.
+	 * 
+	 * @param args
+	 */
 	public static void main(String[] args)
 	{
+		boolean batch = args.length > 0 && args[0].equals("-b");
+		if (batch) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
 		if (args.length != 3) {
-			System.err.println("Usage: Vault KEYSTORE pubkey ALIAS | Vault KEYSTORE decrypt ALIAS");
+			System.err.println("Usage: Vault KEYSTORE pubkey ALIAS | Vault [-b] KEYSTORE decrypt|unseal ALIAS");
 		}
 		else {
 			String keyStore = args[0];
@@ -135,17 +439,26 @@ public class Vault {
 			
 			try {
 				Vault vault = new Vault(keyStore, "123456");
-				if (command.equals("pubkey")) {
+				if (batch && (command.equals("decrypt") || command.equals("unseal"))) {
+					PkiContext context = vault.getContext(keyId);
+					UnaryOperator<byte[]> operation = command.equals("decrypt") ? context::decrypt : context::unseal;
+					new BatchProcessor(operation, Runtime.getRuntime().availableProcessors()).run(System.in, System.out);
+				}
+				else if (command.equals("pubkey")) {
 					PublicKey key = vault.getPublicKey(keyId);
-					byte[] bytes = key.getEncoded();
-					Files.write(Path.of("/dev/stdout"), bytes);
+					System.out.write(key.getEncoded());
+					System.out.flush();
 				}
 				else if (command.equals("decrypt")) {
-					byte[] bytes = vault.decrypt(keyId, Files.readAllBytes(Path.of("/dev/stdin")));
-					Files.write(Path.of("/dev/stdout"), bytes);
+					System.out.write(vault.decrypt(keyId, System.in.readAllBytes()));
+					System.out.flush();
+				}
+				else if (command.equals("unseal")) {
+					vault.unseal(keyId, System.in, System.out);
+					System.out.flush();
 				}
 				else {
-					System.err.println("Usage: Vault KEYSTORE pubkey ALIAS | Vault KEYSTORE decrypt ALIAS");
+					System.err.println("Usage: Vault KEYSTORE pubkey ALIAS | Vault [-b] KEYSTORE decrypt|unseal ALIAS");
 				}
 			}
 		    catch (Exception e)
@@ -0,0 +1,68 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.Test;
+
+public class BatchProcessorTest {
+
+	private static String run(BatchProcessor processor, String input) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		processor.run(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)), out);
+		return out.toString(StandardCharsets.US_ASCII);
+	}
+
+	private static String b64(String s) {
+		return Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		assertEquals("", run(new BatchProcessor(b -> b, 2), ""));
+	}
+
+	@Test
+	public void testPreservesOrder() throws IOException {
+		// Make early frames slower than later ones
+		BatchProcessor processor = new BatchProcessor(b -> {
+			try {
+				Thread.sleep(b.length > 1 ? 1 : 20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return b;
+		}, 4);
+
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 100; ++i) {
+			input.append(b64(Integer.toString(i))).append('\n');
+		}
+		assertEquals(input.toString(), run(processor, input.toString()));
+	}
+
+	@Test
+	public void testErrorFrames() throws IOException {
+		BatchProcessor processor = new BatchProcessor(b -> {
+			if (b.length == 0) {
+				throw new RuntimeException("empty\nframe");
+			}
+			return b;
+		}, 2);
+
+		String input = b64("one") + "\n\n" + "not base64!\n" + b64("two") + "\n";
+		String[] lines = run(processor, input).split("\n");
+
+		assertEquals(4, lines.length);
+		assertEquals(b64("one"), lines[0]);
+		assertEquals("ERROR empty frame", lines[1]);
+		assertTrue(lines[2].startsWith("ERROR "));
+		assertEquals(b64("two"), lines[3]);
+	}
+}
@@ -3,6 +3,7 @@ package it.zwets.sms.crypto;
 import static org.junit.Assert.assertEquals;
 
 import java.util.function.LongFunction;
+import java.util.function.LongUnaryOperator;
 
 import org.junit.Test;
 
@@ -81,5 +82,56 @@ public class CrockEncoderTest {
 			assertEquals(i, coder.decode(coder.encode(i)));
 		}
 	}
-	
+
+	@Test
+	public void testEncodeTo() {
+		CrockEncoder coder = new CrockEncoder(myMangle);
+		char[] buf = new char[20];
+		int n = coder.encodeTo(123456789L, 8, buf, 5);
+		assertEquals(8, n);
+		assertEquals(coder.encode(123456789L, 8), new String(buf, 5, n));
+	}
+
+	@Test
+	public void testEncodeToAppendable() {
+		CrockEncoder coder = new CrockEncoder(myMangle);
+		StringBuilder b = new StringBuilder("x");
+		coder.encodeTo(987654321L, 15, b);
+		assertEquals("x" + coder.encode(987654321L, 15), b.toString());
+	}
+
+	@Test
+	public void testDecodeRange() {
+		CrockEncoder coder = new CrockEncoder(myMangle);
+		String s = "[" + coder.encode(4242L) + "]";
+		assertEquals(4242L, coder.decode(s, 1, s.length() - 1));
+	}
+
+	@Test
+	public void testNegative() {
+		CrockEncoder coder = new CrockEncoder();
+		assertEquals(13, coder.encode(-1L).length());
+		assertEquals(-1L, coder.decode(coder.encode(-1L)));
+		assertEquals(Long.MIN_VALUE, coder.decode(coder.encode(Long.MIN_VALUE)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCharacter() {
+		new CrockEncoder().decode("AB\u00e9");
+	}
+
+	@Test
+	public void testPrimitiveMixer() {
+		LongUnaryOperator mixer = n -> n ^ 0x3FFFFFFF;
+		CrockEncoder coder = CrockEncoder.withMixers(mixer, mixer, myMangle);
+		for (int i = 0; i < 1000; ++i) {
+			assertEquals(i, coder.decode(coder.encode(i)));
+		}
+	}
+
+	@Test
+	public void testLambdaMixer() {
+		CrockEncoder coder = new CrockEncoder(x -> x ^ 5L, x -> x ^ 5L, null);
+		assertEquals("5", coder.encode(0));
+	}
 }
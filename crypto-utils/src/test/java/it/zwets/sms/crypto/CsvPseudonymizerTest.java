@@ -0,0 +1,82 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CsvPseudonymizerTest {
+
+	private static final PhoneNumberEncoder PNE = new PhoneNumberEncoder();
+
+	private static String run(CsvPseudonymizer pseudonymizer, String input, int threads) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		pseudonymizer.run(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out, threads);
+		return out.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		CsvPseudonymizer p = new CsvPseudonymizer(PNE, new int[] { 1 }, ',', false, false);
+		assertEquals("", run(p, "", 2));
+		assertEquals(0, p.run(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(), 1));
+	}
+
+	@Test
+	public void testEncodeColumns() throws IOException {
+		CsvPseudonymizer p = new CsvPseudonymizer(PNE, new int[] { 2, 4 }, ',', false, true);
+		String input = "id,phone,name,other\n"
+				+ "1,123456789,Marco,987654321\r\n"
+				+ "2,\"000000000\",\"Doe, J\",\n"
+				+ "3,12345,x,999999999";
+		String expected = "id,phone,name,other\n"
+				+ "1," + PNE.encode("123456789") + ",Marco," + PNE.encode("987654321") + "\r\n"
+				+ "2,\"" + PNE.encode("000000000") + "\",\"Doe, J\",\n"
+				+ "3,12345,x," + PNE.encode("999999999");
+		assertEquals(expected, run(p, input, 2));
+		assertEquals(1, p.getUnchangedCount());
+	}
+
+	@Test
+	public void testDecodeColumns() throws IOException {
+		CsvPseudonymizer p = new CsvPseudonymizer(PNE, new int[] { 1 }, '\t', true, false);
+		String code = PNE.encode("123456789");
+		String input = code + "\tx\n" + code.replace("-", "") + "\ty\nNOT-ACODE\tz\nABC-!EF\tw\n";
+		String expected = "123456789\tx\n123456789\ty\nNOT-ACODE\tz\nABC-!EF\tw\n";
+		assertEquals(expected, run(p, input, 1));
+		assertEquals(2, p.getUnchangedCount());
+	}
+
+	@Test
+	public void testSmallChunksPreserveOrder() throws IOException {
+		Random random = new Random(1);
+		StringBuilder input = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; ++i) {
+			String number = "%09d".formatted(random.nextInt(1000000000));
+			input.append(i).append(',').append(number).append('\n');
+			expected.append(i).append(',').append(PNE.encode(number)).append('\n');
+		}
+
+		CsvPseudonymizer encoder = new CsvPseudonymizer(PNE, new int[] { 2 }, ',', false, false, 100);
+		String encoded = run(encoder, input.toString(), 4);
+		assertEquals(expected.toString(), encoded);
+
+		CsvPseudonymizer decoder = new CsvPseudonymizer(PNE, new int[] { 2 }, ',', true, false, 100);
+		assertEquals(input.toString(), run(decoder, encoded, 4));
+	}
+
+	@Test
+	public void testLongLine() throws IOException {
+		String filler = "x".repeat(1000);
+		String input = filler + ",123456789\n" + filler + ",000000001\n";
+		String expected = filler + "," + PNE.encode("123456789") + "\n" + filler + "," + PNE.encode("000000001") + "\n";
+		CsvPseudonymizer p = new CsvPseudonymizer(PNE, new int[] { 2 }, ',', false, false, 64);
+		assertEquals(expected, run(p, input, 2));
+	}
+}
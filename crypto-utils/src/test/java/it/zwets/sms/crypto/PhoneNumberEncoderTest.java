@@ -2,6 +2,11 @@ package it.zwets.sms.crypto;
 
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.LongUnaryOperator;
+
 import org.junit.Test;
 
 public class PhoneNumberEncoderTest {
@@ -102,4 +107,124 @@ public class PhoneNumberEncoderTest {
 		PhoneNumberEncoder pne = new PhoneNumberEncoder();
 		assertEquals("FVC-K1T", pne.encode("182237814"));
 	}
-}
\ No newline at end of file
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotDigits() {
+		PhoneNumberEncoder pne = new PhoneNumberEncoder();
+		pne.encode("12345678x");
+		fail();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMisplacedDash() {
+		PhoneNumberEncoder pne = new PhoneNumberEncoder();
+		pne.decode("AB-CDEF");
+		fail();
+	}
+
+	/* The original bit-at-a-time mixer, which the lookup tables must reproduce. */
+	private static long referenceMix(long n) {
+		long r = 0;
+		for (int i = 0; i < 6; ++i)
+			for (int j = 0; j < 5; ++j, n >>= 1)
+				r |= (n & 1) << (29 - (6*j + i));
+		return r;
+	}
+
+	@Test
+	public void testTableMixerMatchesReference() {
+		for (int bit = 0; bit < 30; ++bit) {
+			assertEquals(referenceMix(1L << bit), PhoneNumberEncoder.mixBits(1L << bit));
+		}
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; ++i) {
+			long n = random.nextInt(1000000000);
+			assertEquals(referenceMix(n), PhoneNumberEncoder.mixBits(n));
+			assertEquals(n, PhoneNumberEncoder.unmixBits(PhoneNumberEncoder.mixBits(n)));
+		}
+	}
+
+	private static long[] randomNumbers(int count) {
+		Random random = new Random(7);
+		long[] numbers = new long[count];
+		for (int i = 0; i < count; ++i)
+			numbers[i] = random.nextInt(1000000000);
+		numbers[0] = 0;
+		numbers[count - 1] = 999999999;
+		return numbers;
+	}
+
+	@Test
+	public void testEncodeAllMatchesEncode() {
+		PhoneNumberEncoder pne = new PhoneNumberEncoder();
+		long[] numbers = randomNumbers(3000);
+		char[] chars = new char[2 + numbers.length * PhoneNumberEncoder.CODE_WIDTH];
+		byte[] bytes = new byte[chars.length];
+		pne.encodeAll(numbers, 0, numbers.length, chars, 2);
+		pne.encodeAll(numbers, 0, numbers.length, bytes, 2);
+		for (int i = 0; i < numbers.length; ++i) {
+			String expected = pne.encode("%09d".formatted(numbers[i])).replace("-", "");
+			assertEquals(expected, new String(chars, 2 + i * 6, 6));
+			assertEquals(expected, new String(bytes, 2 + i * 6, 6, StandardCharsets.US_ASCII));
+		}
+	}
+
+	@Test
+	public void testDecodeAllRoundTrip() {
+		PhoneNumberEncoder pne = new PhoneNumberEncoder();
+		long[] numbers = randomNumbers(3000);
+		char[] chars = new char[numbers.length * PhoneNumberEncoder.CODE_WIDTH];
+		byte[] bytes = new byte[chars.length];
+		pne.encodeAll(numbers, 0, numbers.length, chars, 0);
+		pne.encodeAll(numbers, 0, numbers.length, bytes, 0);
+		long[] fromChars = new long[numbers.length + 1];
+		long[] fromBytes = new long[numbers.length + 1];
+		pne.decodeAll(chars, 0, fromChars, 1, numbers.length + 1);
+		pne.decodeAll(bytes, 0, fromBytes, 1, numbers.length + 1);
+		assertArrayEquals(numbers, Arrays.copyOfRange(fromChars, 1, numbers.length + 1));
+		assertArrayEquals(numbers, Arrays.copyOfRange(fromBytes, 1, numbers.length + 1));
+	}
+
+	@Test
+	public void testParallelRoundTrip() {
+		PhoneNumberEncoder pne = new PhoneNumberEncoder();
+		long[] numbers = randomNumbers(100000);
+		byte[] codes = new byte[numbers.length * PhoneNumberEncoder.CODE_WIDTH];
+		char[] expected = new char[codes.length];
+		pne.parallelEncodeAll(numbers, 0, numbers.length, codes, 0);
+		pne.encodeAll(numbers, 0, numbers.length, expected, 0);
+		assertEquals(new String(expected), new String(codes, StandardCharsets.US_ASCII));
+		long[] decoded = new long[numbers.length];
+		pne.parallelDecodeAll(codes, 0, decoded, 0, numbers.length);
+		assertArrayEquals(numbers, decoded);
+	}
+
+	@Test
+	public void testEncodeAllCustomMixer() {
+		PhoneNumberEncoder pne = PhoneNumberEncoder.withMixers(LongUnaryOperator.identity(), LongUnaryOperator.identity(), null);
+		long[] numbers = randomNumbers(100);
+		char[] codes = new char[numbers.length * PhoneNumberEncoder.CODE_WIDTH];
+		pne.encodeAll(numbers, 0, numbers.length, codes, 0);
+		for (int i = 0; i < numbers.length; ++i) {
+			assertEquals(pne.encode("%09d".formatted(numbers[i])).replace("-", ""), new String(codes, i * 6, 6));
+		}
+	}
+
+	@Test
+	public void testLambdaMixer() {
+		PhoneNumberEncoder pne = new PhoneNumberEncoder(x -> x, x -> x, null);
+		assertEquals("00Z-ZZZ", pne.encode("001048575"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEncodeAllOutOfRange() {
+		PhoneNumberEncoder pne = new PhoneNumberEncoder();
+		pne.encodeAll(new long[] { 1, 1000000000L }, 0, 2, new char[12], 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeAllInvalid() {
+		PhoneNumberEncoder pne = new PhoneNumberEncoder();
+		pne.decodeAll("ABCDEFABC!EF".toCharArray(), 0, new long[2], 0, 2);
+	}
+}
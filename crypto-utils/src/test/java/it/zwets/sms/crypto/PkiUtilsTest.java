@@ -0,0 +1,244 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PkiUtilsTest {
+
+	private static KeyPair keyPair;
+
+	@BeforeClass
+	public static void generateKeyPair() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		keyPair = generator.generateKeyPair();
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testEncryptDecrypt() {
+		byte[] plaintext = bytes("Hello World");
+		byte[] ciphertext = PkiUtils.encrypt(keyPair.getPublic(), plaintext);
+		assertArrayEquals(plaintext, PkiUtils.decrypt(keyPair.getPrivate(), ciphertext));
+	}
+
+	@Test
+	public void testRepeatedUse() {
+		for (int i = 0; i < 10; ++i) {
+			byte[] plaintext = bytes("Message " + i);
+			byte[] ciphertext = PkiUtils.encrypt(keyPair.getPublic(), plaintext);
+			assertArrayEquals(plaintext, PkiUtils.decrypt(keyPair.getPrivate(), ciphertext));
+		}
+	}
+
+	@Test
+	public void testManyKeys() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		List<KeyPair> pairs = new ArrayList<>();
+		for (int i = 0; i < 20; ++i) {
+			pairs.add(generator.generateKeyPair());
+		}
+		for (int round = 0; round < 2; ++round) {
+			for (KeyPair pair : pairs) {
+				byte[] plaintext = bytes("Message " + round);
+				assertArrayEquals(plaintext, PkiUtils.decrypt(pair.getPrivate(), PkiUtils.encrypt(pair.getPublic(), plaintext)));
+			}
+			System.gc();
+		}
+	}
+
+	@Test
+	public void testContext() {
+		PkiContext context = new PkiContext(keyPair);
+		byte[] plaintext = bytes("Hello Context");
+		assertArrayEquals(plaintext, context.decrypt(context.encrypt(plaintext)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testEncryptOnlyContext() {
+		PkiContext context = new PkiContext(keyPair.getPublic());
+		context.decrypt(context.encrypt(bytes("Cannot decrypt")));
+		fail();
+	}
+
+	@Test
+	public void testRecoversFromBadCiphertext() {
+		PkiContext context = new PkiContext(keyPair);
+		byte[] ciphertext = context.encrypt(bytes("Tampered"));
+		ciphertext[10] ^= 1;
+		try {
+			context.decrypt(ciphertext);
+			fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+		byte[] plaintext = bytes("Still works");
+		assertArrayEquals(plaintext, context.decrypt(context.encrypt(plaintext)));
+	}
+
+	@Test
+	public void testConcurrentContext() throws Exception {
+		PkiContext context = new PkiContext(keyPair);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 32; ++i) {
+				byte[] plaintext = bytes("Concurrent " + i);
+				results.add(executor.submit(() -> Arrays.equals(plaintext, context.decrypt(context.encrypt(plaintext)))));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSealUnseal() {
+		byte[] plaintext = bytes("Hello Envelope");
+		byte[] envelope = PkiUtils.seal(keyPair.getPublic(), plaintext);
+		assertArrayEquals(plaintext, PkiUtils.unseal(keyPair.getPrivate(), envelope));
+	}
+
+	@Test
+	public void testSealEmpty() {
+		byte[] plaintext = new byte[0];
+		byte[] envelope = PkiUtils.seal(keyPair.getPublic(), plaintext);
+		assertArrayEquals(plaintext, PkiUtils.unseal(keyPair.getPrivate(), envelope));
+	}
+
+	@Test
+	public void testSealLarge() {
+		byte[] plaintext = new byte[100000];
+		new Random(42).nextBytes(plaintext);
+		byte[] envelope = PkiUtils.seal(keyPair.getPublic(), plaintext);
+		assertArrayEquals(plaintext, PkiUtils.unseal(keyPair.getPrivate(), envelope));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testUnsealTampered() {
+		byte[] envelope = PkiUtils.seal(keyPair.getPublic(), bytes("Tampered envelope"));
+		envelope[envelope.length - 20] ^= 1;
+		PkiUtils.unseal(keyPair.getPrivate(), envelope);
+		fail();
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testUnsealTruncated() {
+		byte[] envelope = PkiUtils.seal(keyPair.getPublic(), bytes("Truncated envelope"));
+		PkiUtils.unseal(keyPair.getPrivate(), Arrays.copyOf(envelope, 200));
+		fail();
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] sealStream(byte[] plaintext) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PkiUtils.seal(keyPair.getPublic(), new ByteArrayInputStream(plaintext), out);
+		return out.toByteArray();
+	}
+
+	private static byte[] unsealStream(byte[] envelope) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PkiUtils.unseal(keyPair.getPrivate(), new ByteArrayInputStream(envelope), out);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testStreamSizes() throws IOException {
+		int segment = EnvelopeOutputStream.SEGMENT_SIZE;
+		for (int size : new int[] { 0, 1, 1000, segment - 1, segment, segment + 1, 3 * segment + segment / 2 }) {
+			byte[] plaintext = randomBytes(size);
+			assertArrayEquals(plaintext, unsealStream(sealStream(plaintext)));
+		}
+	}
+
+	@Test
+	public void testStreamByteWise() throws IOException {
+		byte[] plaintext = randomBytes(EnvelopeOutputStream.SEGMENT_SIZE + 10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (OutputStream sealer = new PkiContext(keyPair).newSealingStream(out)) {
+			for (byte b : plaintext) {
+				sealer.write(b);
+			}
+		}
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try (InputStream unsealer = new PkiContext(keyPair).newUnsealingStream(new ByteArrayInputStream(out.toByteArray()))) {
+			int b;
+			while ((b = unsealer.read()) != -1) {
+				result.write(b);
+			}
+		}
+		assertArrayEquals(plaintext, result.toByteArray());
+	}
+
+	@Test
+	public void testStreamChannels() throws IOException {
+		byte[] plaintext = randomBytes(100000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PkiUtils.seal(keyPair.getPublic(), Channels.newChannel(new ByteArrayInputStream(plaintext)), Channels.newChannel(out));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		PkiUtils.unseal(keyPair.getPrivate(), Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), Channels.newChannel(result));
+		assertArrayEquals(plaintext, result.toByteArray());
+	}
+
+	@Test
+	public void testUnsealStreamEnvelopeAsBytes() throws IOException {
+		byte[] plaintext = randomBytes(200000);
+		assertArrayEquals(plaintext, PkiUtils.unseal(keyPair.getPrivate(), sealStream(plaintext)));
+	}
+
+	@Test(expected = IOException.class)
+	public void testStreamTruncated() throws IOException {
+		byte[] envelope = sealStream(randomBytes(2 * EnvelopeOutputStream.SEGMENT_SIZE + 10));
+		// Cut off the final segment, leaving only complete segments
+		int cut = envelope.length - (4 + 10 + 16);
+		unsealStream(Arrays.copyOf(envelope, cut));
+		fail();
+	}
+
+	@Test(expected = IOException.class)
+	public void testStreamTampered() throws IOException {
+		byte[] envelope = sealStream(randomBytes(2 * EnvelopeOutputStream.SEGMENT_SIZE));
+		envelope[envelope.length - 100] ^= 1;
+		unsealStream(envelope);
+		fail();
+	}
+
+	@Test(expected = IOException.class)
+	public void testStreamTrailingData() throws IOException {
+		byte[] envelope = sealStream(randomBytes(100));
+		unsealStream(Arrays.copyOf(envelope, envelope.length + 1));
+		fail();
+	}
+}
@@ -0,0 +1,181 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class VaultTest {
+
+	private static final String PASSWORD = "123456";
+
+	private static Path keyStore;
+
+	/* Runs keytool like make-keystore.sh does, adding alias to the keystore. */
+	private static void addKey(String alias) throws IOException, InterruptedException {
+		addKey(keyStore, alias);
+	}
+
+	private static void addKey(Path keyStore, String alias) throws IOException, InterruptedException {
+		String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-keyalg", "RSA", "-keysize", "2048",
+				"-validity", "36500", "-storepass", PASSWORD, "-keystore", keyStore.toString(),
+				"-alias", alias, "-dname", "CN=" + alias)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectError(ProcessBuilder.Redirect.DISCARD)
+				.start();
+		assertEquals(0, process.waitFor());
+	}
+
+	@BeforeClass
+	public static void createKeyStore() throws Exception {
+		keyStore = Files.createTempDirectory("vault").resolve("test.keystore");
+		addKey("alias1");
+	}
+
+	@AfterClass
+	public static void deleteKeyStore() throws IOException {
+		Files.deleteIfExists(keyStore);
+		Files.deleteIfExists(keyStore.getParent());
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testDecrypt() {
+		Vault vault = new Vault(keyStore.toString(), PASSWORD);
+		byte[] plaintext = bytes("Hello Vault");
+		byte[] ciphertext = PkiUtils.encrypt(vault.getPublicKey("alias1"), plaintext);
+		assertArrayEquals(plaintext, vault.decrypt("alias1", ciphertext));
+	}
+
+	@Test
+	public void testUnseal() {
+		Vault vault = new Vault(keyStore.toString(), PASSWORD);
+		byte[] plaintext = new byte[5000];
+		byte[] envelope = PkiUtils.seal(vault.getPublicKey("alias1"), plaintext);
+		assertArrayEquals(plaintext, vault.unseal("alias1", envelope));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testNoSuchKey() {
+		Vault vault = new Vault(keyStore.toString(), PASSWORD);
+		vault.getPublicKey("nonexisting");
+	}
+
+	@Test
+	public void testReloadsChangedKeyStore() throws Exception {
+		Vault vault = new Vault(keyStore.toString(), PASSWORD);
+		vault.setReloadCheckInterval(Duration.ZERO);
+		vault.getPublicKey("alias1");
+
+		addKey("alias2");
+		// Make sure the modification time differs on coarse-grained filesystems
+		File file = keyStore.toFile();
+		file.setLastModified(file.lastModified() + 2000);
+
+		PublicKey key = vault.getPublicKey("alias2");
+		byte[] plaintext = bytes("Hello New Key");
+		assertArrayEquals(plaintext, vault.decrypt("alias2", PkiUtils.encrypt(key, plaintext)));
+	}
+
+	@Test
+	public void testReloadCheckInterval() throws Exception {
+		Path otherStore = keyStore.resolveSibling("other.keystore");
+		try {
+			addKey(otherStore, "first");
+			Vault vault = new Vault(otherStore.toString(), PASSWORD);
+			vault.setReloadCheckInterval(Duration.ofHours(1));
+			vault.getPublicKey("first");
+
+			addKey(otherStore, "second");
+			File file = otherStore.toFile();
+			file.setLastModified(file.lastModified() + 2000);
+
+			try {
+				vault.getPublicKey("second");
+				fail("Keystore reloaded within the check interval");
+			} catch (RuntimeException e) {
+				// Expected, as the snapshot is not yet checked
+			}
+
+			vault.setReloadCheckInterval(Duration.ZERO);
+			vault.getPublicKey("second");
+		} finally {
+			Files.deleteIfExists(otherStore);
+		}
+	}
+
+	@Test
+	public void testDecryptAll() {
+		Vault vault = new Vault(keyStore.toString(), PASSWORD);
+		PublicKey key = vault.getPublicKey("alias1");
+
+		List<byte[]> ciphertexts = new ArrayList<>();
+		for (int i = 0; i < 50; ++i) {
+			ciphertexts.add(PkiUtils.encrypt(key, bytes("Message " + i)));
+		}
+		ciphertexts.set(7, bytes("Not a ciphertext"));
+
+		List<Vault.Result> results = vault.decryptAll("alias1", ciphertexts);
+
+		assertEquals(50, results.size());
+		for (int i = 0; i < 50; ++i) {
+			if (i == 7) {
+				assertFalse(results.get(i).isSuccess());
+			}
+			else {
+				assertTrue(results.get(i).isSuccess());
+				assertArrayEquals(bytes("Message " + i), results.get(i).getPlaintext());
+			}
+		}
+	}
+
+	@Test
+	public void testUnsealAllAsync() throws Exception {
+		Vault vault = new Vault(keyStore.toString(), PASSWORD);
+		PublicKey key = vault.getPublicKey("alias1");
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		vault.setExecutor(executor, 2);
+
+		try {
+			List<byte[]> envelopes = new ArrayList<>();
+			for (int i = 0; i < 20; ++i) {
+				envelopes.add(PkiUtils.seal(key, bytes("Envelope " + i)));
+			}
+
+			List<Vault.Result> results = vault.unsealAllAsync("alias1", envelopes).get();
+
+			for (int i = 0; i < 20; ++i) {
+				assertArrayEquals(bytes("Envelope " + i), results.get(i).getPlaintext());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testDecryptAllEmpty() {
+		Vault vault = new Vault(keyStore.toString(), PASSWORD);
+		assertEquals(0, vault.decryptAll("alias1", new ArrayList<>()).size());
+	}
+}
@@ -0,0 +1,73 @@
+package it.zwets.sms.crypto;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Applies a bit permutation to arrays of longs using SIMD instructions.
+ *
+ * The permutation is given as groups of bits that move by the same
+ * distance: the result is the OR over all groups of the input masked
+ * with the group's mask and shifted by its distance.
+ *
+ * This class uses the incubating <code>jdk.incubator.vector</code> API.
+ * It is compiled only by the <code>vector</code> profile, and must only be
+ * used when that module is present, which requires the JVM to be started
+ * with <code>--add-modules jdk.incubator.vector</code>.  PhoneNumberEncoder
+ * checks this and loads the class reflectively.
+ *
+ * @author zwets
+ */
+final class VectorBitMixer implements PhoneNumberEncoder.BulkMixer {
+
+	private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+	private final long[] masks;
+	private final int[] shifts;
+
+	/**
+	 * Create a mixer for the permutation given by masks and shifts.
+	 * @param masks the bits in each group
+	 * @param shifts the distance to shift each group left, negative for right
+	 */
+	VectorBitMixer(long[] masks, int[] shifts) {
+		this.masks = masks;
+		this.shifts = shifts;
+	}
+
+	/**
+	 * Permute src[from, from+count) into dst[to, to+count).
+	 * @param src the input values
+	 * @param from the index of the first input value
+	 * @param dst the array to write the permuted values to
+	 * @param to the index to write the first permuted value
+	 * @param count the number of values
+	 */
+	@Override
+	public void mix(long[] src, int from, long[] dst, int to, int count) {
+		int i = 0;
+		int bound = SPECIES.loopBound(count);
+
+		for (; i < bound; i += SPECIES.length()) {
+			LongVector n = LongVector.fromArray(SPECIES, src, from + i);
+			LongVector r = LongVector.zero(SPECIES);
+			for (int g = 0; g < masks.length; ++g) {
+				LongVector bits = n.and(masks[g]);
+				r = r.or(shifts[g] >= 0
+						? bits.lanewise(VectorOperators.LSHL, shifts[g])
+						: bits.lanewise(VectorOperators.LSHR, -shifts[g]));
+			}
+			r.intoArray(dst, to + i);
+		}
+
+		for (; i < count; ++i) {
+			long n = src[from + i];
+			long r = 0L;
+			for (int g = 0; g < masks.length; ++g) {
+				r |= shifts[g] >= 0 ? (n & masks[g]) << shifts[g] : (n & masks[g]) >>> -shifts[g];
+			}
+			dst[to + i] = r;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package it.zwets.sms.utils;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A clock that reads its source only once per resolution interval.
+ *
+ * A daemon thread samples the source clock every resolution milliseconds
+ * into a volatile field, so that reading the time is a plain memory read.
+ * Use where many messages are timed at once and a resolution of some
+ * milliseconds is good enough, as in {@link ValidityCalculator}.
+ *
+ * Clocks derived by {@link #withZone(ZoneId)} share the sampling thread,
+ * which runs until any of them is closed.  A closed clock reads its source
+ * directly.  {@link #systemUTC()} returns a shared instance, which runs for
+ * the lifetime of the JVM and ignores close.
+ *
+ * @author zwets
+ */
+public final class CoarseClock extends Clock implements Closeable {
+
+	/** The resolution of the shared system clock in milliseconds. */
+	public static final long DEFAULT_RESOLUTION = 10;
+
+	private static volatile CoarseClock system;
+
+	/* The sampled time once sampling has stopped. */
+	private static final long STOPPED = Long.MIN_VALUE;
+
+	/* The sampled time, shared between clocks derived by withZone. */
+	private static final class Sampler implements Runnable {
+		final Clock source;
+		final long resolution;
+		final boolean shared;
+		final Thread thread;
+		volatile long millis;
+
+		Sampler(Clock source, long resolution, boolean shared) {
+			this.source = source;
+			this.resolution = resolution;
+			this.shared = shared;
+			this.millis = source.millis();
+			this.thread = new Thread(this, "coarse-clock");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Thread.sleep(resolution);
+					millis = source.millis();
+				}
+			} catch (InterruptedException e) {
+				millis = STOPPED;
+			}
+		}
+
+		long millis() {
+			long value = millis;
+			return value != STOPPED ? value : source.millis();
+		}
+	}
+
+	private final Sampler sampler;
+	private final ZoneId zone;
+
+	/**
+	 * Create a clock that samples source every resolution milliseconds.
+	 * @param source the clock to sample
+	 * @param resolution the sampling interval in milliseconds
+	 */
+	public CoarseClock(Clock source, long resolution) {
+		this(source, resolution, false);
+	}
+
+	private CoarseClock(Clock source, long resolution, boolean shared) {
+		if (resolution < 1) {
+			throw new IllegalArgumentException("resolution must be positive: %d".formatted(resolution));
+		}
+		this.sampler = new Sampler(source, resolution, shared);
+		this.zone = source.getZone();
+	}
+
+	private CoarseClock(Sampler sampler, ZoneId zone) {
+		this.sampler = sampler;
+		this.zone = zone;
+	}
+
+	/**
+	 * The shared coarse clock on UTC system time, with the default resolution.
+	 * @return the shared instance
+	 */
+	public static CoarseClock systemUTC() {
+		CoarseClock clock = system;
+		if (clock == null) {
+			synchronized (CoarseClock.class) {
+				clock = system;
+				if (clock == null) {
+					system = clock = new CoarseClock(Clock.system(ZoneOffset.UTC), DEFAULT_RESOLUTION, true);
+				}
+			}
+		}
+		return clock;
+	}
+
+	@Override
+	public ZoneId getZone() {
+		return zone;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone) {
+		return zone.equals(this.zone) ? this : new CoarseClock(sampler, zone);
+	}
+
+	@Override
+	public long millis() {
+		return sampler.millis();
+	}
+
+	@Override
+	public Instant instant() {
+		return Instant.ofEpochMilli(sampler.millis());
+	}
+
+	/**
+	 * Stop the sampling thread, unless this is the shared system clock.
+	 * The clocks sharing the thread then read their source directly.
+	 */
+	@Override
+	public void close() {
+		if (!sampler.shared) {
+			sampler.thread.interrupt();
+			try {
+				sampler.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
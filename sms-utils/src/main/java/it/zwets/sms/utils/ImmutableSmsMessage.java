@@ -0,0 +1,355 @@
+package it.zwets.sms.utils;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable counterpart of {@link SmsMessage}, safe to share between threads.
+ *
+ * Headers and body obey the same invariants as on SmsMessage, and are
+ * serialised in the same order.  Updates return a new message that shares
+ * all unchanged state with the original: <code>withBody</code> shares the
+ * headers, and <code>withHeader</code> copies only the small array holding
+ * either the well-known or the other headers, sharing the rest.
+ *
+ * Use {@link #of(SmsMessage)} or {@link SmsUtil#asImmutableSmsMessage()} to
+ * create one, and {@link #toSmsMessage()} or
+ * {@link SmsUtil#editMessage(ImmutableSmsMessage)} to get a mutable copy.
+ *
+ * @author zwets
+ */
+public final class ImmutableSmsMessage implements Serializable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ImmutableSmsMessage.class);
+	private static final long serialVersionUID = 1L;
+
+	private static final String[] NO_SLOTS = new String[SmsHeaders.SLOTS];
+	private static final String[] NO_OTHERS = new String[0];
+
+	/** The message with no headers and the empty body. */
+	public static final ImmutableSmsMessage EMPTY = new ImmutableSmsMessage(NO_SLOTS, NO_OTHERS, "", 0);
+
+	/* Values of the well-known headers by slot, as in SmsHeaders.  Never modified. */
+	private final String[] slots;
+
+	/* Names and values of the other headers, alternating, in insertion order.  Never modified. */
+	private final String[] others;
+
+	private final String body;
+	private final int size;
+
+	private ImmutableSmsMessage(String[] slots, String[] others, String body, int size) {
+		this.slots = slots;
+		this.others = others;
+		this.body = body;
+		this.size = size;
+	}
+
+	/**
+	 * Create an immutable copy of message.
+	 * @param message the message to copy
+	 * @return the immutable message
+	 */
+	public static ImmutableSmsMessage of(SmsMessage message) {
+		String[] slots = NO_SLOTS;
+		String[] others = NO_OTHERS;
+		int count = 0;
+
+		for (Map.Entry<String,String> entry : message.getHeaders().entrySet()) {
+			int slot = SmsHeaders.slotOf(entry.getKey());
+			if (slot >= 0) {
+				if (slots == NO_SLOTS) {
+					slots = new String[SmsHeaders.SLOTS];
+				}
+				slots[slot] = entry.getValue();
+			}
+			else {
+				if (count == others.length) {
+					others = Arrays.copyOf(others, Math.max(4, 2 * count));
+				}
+				others[count++] = entry.getKey();
+				others[count++] = entry.getValue();
+			}
+		}
+
+		if (count != others.length) {
+			others = Arrays.copyOf(others, count);
+		}
+
+		return new ImmutableSmsMessage(slots, others, message.getBody(), message.getHeaders().size());
+	}
+
+	/**
+	 * Create a mutable copy of this message.
+	 * @return a new SmsMessage with the headers and body of this message
+	 */
+	public SmsMessage toSmsMessage() {
+		SmsMessage message = new SmsMessage(body);
+		for (int i = 0; i < slots.length; ++i) {
+			if (slots[i] != null) {
+				message.putHeader(SmsHeaders.slotName(i), slots[i]);
+			}
+		}
+		for (int i = 0; i < others.length; i += 2) {
+			message.putHeader(others[i], others[i + 1]);
+		}
+		return message;
+	}
+
+	/**
+	 * Get the message headers.
+	 * @return an unmodifiable view of the headers
+	 */
+	public Map<String,String> getHeaders() {
+		return new HeaderMap();
+	}
+
+	/**
+	 * Check that a header is present.
+	 * @return true if header is present
+	 */
+	public boolean hasHeader(String header) {
+		return getHeader(header) != null;
+	}
+
+	/**
+	 * Get a header value.
+	 * @return the header value or null if it was not present.
+	 */
+	public String getHeader(String header) {
+		int slot = SmsHeaders.slotOf(header);
+		if (slot >= 0) {
+			return slots[slot];
+		}
+		int i = otherIndex(header);
+		return i < 0 ? null : others[i + 1];
+	}
+
+	/**
+	 * Get a header value or defaultValue if the header is not set.
+	 */
+	public String getHeader(String header, String defaultValue) {
+		String value = getHeader(header);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * The text body of the message, never null.
+	 * @return the message body
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * Return a message with header set to value, and otherwise the same as this.
+	 * If value is empty or null, the header will be removed with a logged warning.
+	 * @param header name of the header, may contain any of A-Z, a-z, 0-9, dash, underscore
+	 * @param value any content except newline or line break, will be trimmed
+	 * @return the updated message, or this if nothing changed
+	 * @throws SmsException when header has invalid syntax
+	 */
+	public ImmutableSmsMessage withHeader(String header, String value) {
+		if (!SmsParser.isHeaderName(header)) {
+			throw new SmsException("Invalid header name: " + header);
+		}
+		else if (value == null || value.trim().isEmpty()) {
+			LOG.warn("Header set to empty or null value is removed: " + header);
+			return withoutHeader(header);
+		}
+		else if (value.contains("\n") || value.contains("\r")) {
+			throw new SmsException("Invalid header value: must not contain newline or line break characters");
+		}
+
+		value = value.trim();
+
+		int slot = SmsHeaders.slotOf(header);
+		if (slot >= 0) {
+			if (value.equals(slots[slot])) {
+				return this;
+			}
+			String[] newSlots = slots.clone();
+			newSlots[slot] = value;
+			return new ImmutableSmsMessage(newSlots, others, body, slots[slot] == null ? size + 1 : size);
+		}
+
+		int i = otherIndex(header);
+		if (i >= 0) {
+			if (value.equals(others[i + 1])) {
+				return this;
+			}
+			String[] newOthers = others.clone();
+			newOthers[i + 1] = value;
+			return new ImmutableSmsMessage(slots, newOthers, body, size);
+		}
+
+		String[] newOthers = Arrays.copyOf(others, others.length + 2);
+		newOthers[others.length] = header;
+		newOthers[others.length + 1] = value;
+		return new ImmutableSmsMessage(slots, newOthers, body, size + 1);
+	}
+
+	/**
+	 * Return a message without header, and otherwise the same as this.
+	 * @param header the header to remove
+	 * @return the updated message, or this if header was not present
+	 */
+	public ImmutableSmsMessage withoutHeader(String header) {
+		int slot = SmsHeaders.slotOf(header);
+		if (slot >= 0) {
+			if (slots[slot] == null) {
+				return this;
+			}
+			String[] newSlots = slots.clone();
+			newSlots[slot] = null;
+			return new ImmutableSmsMessage(newSlots, others, body, size - 1);
+		}
+
+		int i = otherIndex(header);
+		if (i < 0) {
+			return this;
+		}
+		String[] newOthers = new String[others.length - 2];
+		System.arraycopy(others, 0, newOthers, 0, i);
+		System.arraycopy(others, i + 2, newOthers, i, others.length - i - 2);
+		return new ImmutableSmsMessage(slots, newOthers, body, size - 1);
+	}
+
+	/**
+	 * Return a message with the given body, sharing the headers of this.
+	 * @param body may have any length; if null the body will be empty
+	 * @return the updated message
+	 */
+	public ImmutableSmsMessage withBody(String body) {
+		return new ImmutableSmsMessage(slots, others, body == null ? "" : body, size);
+	}
+
+	/**
+	 * Return the serialised representation of the message
+	 * @return the String representing the message
+	 */
+	public String asString() {
+		StringBuilder builder = new StringBuilder();
+
+		for (int i = 0; i < slots.length; ++i) {
+			if (slots[i] != null) {
+				builder.append(SmsHeaders.slotName(i)).append(": ").append(slots[i]).append("\n");
+			}
+		}
+		for (int i = 0; i < others.length; i += 2) {
+			builder.append(others[i]).append(": ").append(others[i + 1]).append("\n");
+		}
+
+		builder.append("\n");
+		builder.append(body);
+
+		return builder.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof ImmutableSmsMessage)) {
+			return false;
+		}
+		ImmutableSmsMessage that = (ImmutableSmsMessage) o;
+		return body.equals(that.body) && getHeaders().equals(that.getHeaders());
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * getHeaders().hashCode() + body.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		String to = "to " + getHeader("To", "(unset)");
+		return "ImmutableSmsMessage " + to + ": " + body.substring(0, Math.min(20, body.length())) + " ...";
+	}
+
+	private int otherIndex(String header) {
+		for (int i = 0; i < others.length; i += 2) {
+			if (others[i].equals(header)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/* Unmodifiable map view of the headers, iterating in serialisation order. */
+	private final class HeaderMap extends AbstractMap<String,String> {
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public String get(Object name) {
+			return name instanceof String ? getHeader((String) name) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object name) {
+			return get(name) != null;
+		}
+
+		@Override
+		public Set<Map.Entry<String,String>> entrySet() {
+			return new AbstractSet<>() {
+
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public Iterator<Map.Entry<String,String>> iterator() {
+					return new Iterator<>() {
+
+						private int slot = advance(0);
+						private int other = 0;
+
+						private int advance(int pos) {
+							while (pos < slots.length && slots[pos] == null) {
+								++pos;
+							}
+							return pos;
+						}
+
+						@Override
+						public boolean hasNext() {
+							return slot < slots.length || other < others.length;
+						}
+
+						@Override
+						public Map.Entry<String,String> next() {
+							if (slot < slots.length) {
+								Map.Entry<String,String> entry = new SimpleImmutableEntry<>(SmsHeaders.slotName(slot), slots[slot]);
+								slot = advance(slot + 1);
+								return entry;
+							}
+							if (other < others.length) {
+								Map.Entry<String,String> entry = new SimpleImmutableEntry<>(others[other], others[other + 1]);
+								other += 2;
+								return entry;
+							}
+							throw new NoSuchElementException();
+						}
+					};
+				}
+			};
+		}
+	}
+}
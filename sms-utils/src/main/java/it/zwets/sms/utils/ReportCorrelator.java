@@ -0,0 +1,528 @@
+package it.zwets.sms.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.zwets.sms.utils.SmsUtil.HEADER;
+
+/**
+ * Matches delivery reports to the messages they report on, by Message_id.
+ *
+ * When a message is sent, a short correlation value (such as the client's
+ * reference for it) is registered under its Message_id.  When a delivery
+ * report with that Message_id comes in, the value is looked up in O(1).
+ *
+ * Entries live in fixed-size open-addressing hash tables of 64-byte slots,
+ * each holding a 64-bit hash of the Message_id, the expiry time, and a value
+ * of at most {@link #MAX_VALUE_LENGTH} UTF-8 bytes.  The in-memory table is
+ * allocated up front, so memory use is flat however many reports are
+ * outstanding.  When it fills up, expired entries are dropped, and then the
+ * half of the entries that expire first is moved to the spill file: a table
+ * of the same layout in a memory-mapped file, which the operating system
+ * pages as needed.  Without a spill file, or when that is full too, those
+ * entries are dropped, with a warning.  The spill file starts with a header
+ * that marks whether it was closed cleanly; a file left by a crash may have
+ * broken probe chains, so it is discarded on opening.
+ *
+ * An entry expires some grace time after the Valid_until of its message,
+ * as no reports are expected after that, or after a default time to live if
+ * the message has no Valid_until.  Distinct Message_ids have the same hash
+ * with a probability of about n&sup2;/2<sup>65</sup> for n entries, which is
+ * negligible for the millions of entries this is meant for.
+ *
+ * This class is thread-safe.
+ *
+ * @author zwets
+ */
+public final class ReportCorrelator implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ReportCorrelator.class);
+
+	/** The maximum length in UTF-8 bytes of a correlation value. */
+	public static final int MAX_VALUE_LENGTH = 46;
+
+	/** The default time to live of entries for messages without Valid_until. */
+	public static final Duration DEFAULT_TTL = Duration.ofDays(2);
+
+	/** The default time entries are kept after the Valid_until of their message. */
+	public static final Duration DEFAULT_GRACE = Duration.ofHours(1);
+
+	/* Slot layout: key, expiry in epoch seconds, value length, value bytes. */
+	private static final int SLOT = 64;
+	private static final int KEY = 0;
+	private static final int EXPIRY = 8;
+	private static final int LENGTH = 16;
+	private static final int VALUE = 18;
+
+	/* Spill file header, one slot long: magic, version, entries, clean flag. */
+	private static final int MAGIC = 0x53524331;
+	private static final int VERSION = 1;
+	private static final int SPILL_HEADER = SLOT;
+	private static final int SPILL_ENTRIES = 8;
+	private static final int SPILL_CLEAN = 12;
+
+	/* An open-addressing table with linear probing over a buffer of slots; key 0 marks an empty slot. */
+	private static final class Table {
+		final ByteBuffer slots;
+		final int mask;
+		final int limit;
+		int size;
+
+		Table(ByteBuffer slots, int limit) {
+			this.slots = slots;
+			this.mask = slots.capacity() / SLOT - 1;
+			this.limit = limit;
+			for (int i = 0; i <= mask; ++i) {
+				if (key(i) != 0) {
+					++size;
+				}
+			}
+		}
+
+		long key(int slot) {
+			return slots.getLong(slot * SLOT + KEY);
+		}
+
+		long expiry(int slot) {
+			return slots.getLong(slot * SLOT + EXPIRY);
+		}
+
+		String value(int slot) {
+			byte[] bytes = new byte[slots.getShort(slot * SLOT + LENGTH)];
+			slots.get(slot * SLOT + VALUE, bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		int home(long key) {
+			return (int) (key ^ (key >>> 32)) & mask;
+		}
+
+		/* Returns the slot holding key, or -1. */
+		int find(long key) {
+			for (int i = home(key);; i = (i + 1) & mask) {
+				long k = key(i);
+				if (k == key) {
+					return i;
+				}
+				if (k == 0) {
+					return -1;
+				}
+			}
+		}
+
+		/* Adds or replaces the entry for key; the caller checks that the table is not full. */
+		void put(long key, long expiry, byte[] value) {
+			int i = home(key);
+			while (key(i) != 0 && key(i) != key) {
+				i = (i + 1) & mask;
+			}
+			if (key(i) == 0) {
+				++size;
+			}
+			int base = i * SLOT;
+			slots.putLong(base + KEY, key);
+			slots.putLong(base + EXPIRY, expiry);
+			slots.putShort(base + LENGTH, (short) value.length);
+			slots.put(base + VALUE, value);
+		}
+
+		/* Copies the entry in slot of other into this table. */
+		void put(Table other, int slot) {
+			int i = home(other.key(slot));
+			while (key(i) != 0) {
+				i = (i + 1) & mask;
+			}
+			slots.put(i * SLOT, other.slots, slot * SLOT, SLOT);
+			++size;
+		}
+
+		/* Removes the entry in slot, shifting back the entries after it so no probe chain is broken. */
+		void remove(int slot) {
+			int i = slot;
+			for (int j = (i + 1) & mask;; j = (j + 1) & mask) {
+				long k = key(j);
+				if (k == 0) {
+					break;
+				}
+				int home = home(k);
+				boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+				if (!stays) {
+					slots.put(i * SLOT, slots, j * SLOT, SLOT);
+					i = j;
+				}
+			}
+			slots.putLong(i * SLOT + KEY, 0);
+			--size;
+		}
+
+		/* Removes the entries that expired before now, returning how many. */
+		int sweep(long now) {
+			int removed = 0;
+			for (int i = 0; i <= mask; ++i) {
+				while (key(i) != 0 && expiry(i) < now) {
+					remove(i);
+					++removed;
+				}
+			}
+			return removed;
+		}
+
+		boolean isFull() {
+			return size >= limit;
+		}
+
+		void clear() {
+			for (int i = 0; i <= mask; ++i) {
+				slots.putLong(i * SLOT + KEY, 0);
+			}
+			size = 0;
+		}
+	}
+
+	private final Clock clock;
+	private final Table memory;
+	private final Table disk;
+	private final MappedByteBuffer spill;
+	private long defaultTtl = DEFAULT_TTL.getSeconds();
+	private long grace = DEFAULT_GRACE.getSeconds();
+	private long dropped;
+	private boolean closed;
+
+	/**
+	 * Create a correlator that holds up to maxEntries in memory, and drops entries beyond that.
+	 * @param clock the clock to compute expiry by
+	 * @param maxEntries the number of entries to hold in memory
+	 */
+	public ReportCorrelator(Clock clock, int maxEntries) {
+		this.clock = clock;
+		this.memory = new Table(ByteBuffer.allocate(tableSize(maxEntries)), maxEntries);
+		this.disk = null;
+		this.spill = null;
+	}
+
+	/**
+	 * Create a correlator that holds up to maxEntries in memory, and up to
+	 * spillEntries in spillFile.  Entries in an existing spill file for as
+	 * many entries are kept if it was closed cleanly, and on close the entries
+	 * in memory are spilled too, so the correlator survives a restart.
+	 * @param clock the clock to compute expiry by
+	 * @param maxEntries the number of entries to hold in memory
+	 * @param spillFile the file to spill entries to, created if absent
+	 * @param spillEntries the number of entries to hold in the spill file
+	 * @throws IOException when the spill file cannot be created
+	 */
+	public ReportCorrelator(Clock clock, int maxEntries, Path spillFile, int spillEntries) throws IOException {
+		this.clock = clock;
+		this.memory = new Table(ByteBuffer.allocate(tableSize(maxEntries)), maxEntries);
+
+		long size = SPILL_HEADER + tableSize(spillEntries);
+		if (Files.exists(spillFile) && !isValidSpill(spillFile, size, spillEntries)) {
+			LOG.warn("Discarding spill file {} that was not closed cleanly or is of a different size", spillFile);
+			Files.delete(spillFile);
+		}
+		try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			this.spill = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		this.disk = new Table(spill.slice(SPILL_HEADER, (int) size - SPILL_HEADER), spillEntries);
+
+		// Until closed, the file may be left with a half-done removal
+		spill.putInt(0, MAGIC);
+		spill.putInt(4, VERSION);
+		spill.putInt(SPILL_ENTRIES, spillEntries);
+		spill.putInt(SPILL_CLEAN, 0);
+		spill.force();
+	}
+
+	/**
+	 * Set the time to live of entries for messages without Valid_until.
+	 * @param ttl the time to live
+	 */
+	public synchronized void setDefaultTtl(Duration ttl) {
+		this.defaultTtl = ttl.getSeconds();
+	}
+
+	/**
+	 * Set the time entries are kept after the Valid_until of their message.
+	 * @param grace the grace time
+	 */
+	public synchronized void setGrace(Duration grace) {
+		this.grace = grace.getSeconds();
+	}
+
+	/**
+	 * Register value for the delivery reports on message.
+	 * @param message the message, which must have a Message_id header
+	 * @param value the correlation value
+	 * @throws SmsException when the message has no Message_id, or the value is too long
+	 */
+	public void register(SmsMessage message, String value) {
+		String id = message.getHeader(HEADER.MESSAGE_ID);
+		if (id == null) {
+			throw new SmsException("Cannot correlate message without %s header".formatted(HEADER.MESSAGE_ID));
+		}
+
+		long expiry;
+		try {
+			long validUntil = message.getValidUntilSeconds();
+			expiry = validUntil == Long.MIN_VALUE ? Long.MIN_VALUE : validUntil + grace;
+		} catch (DateTimeException e) {
+			LOG.warn("Invalid {} on message {}, using default TTL", HEADER.VALID_UNTIL, id);
+			expiry = Long.MIN_VALUE;
+		}
+		register(id, expiry == Long.MIN_VALUE ? now() + defaultTtl : expiry, value);
+	}
+
+	/**
+	 * Register value for the delivery reports on the message with messageId.
+	 * @param messageId the Message_id
+	 * @param expiry the epoch second after which no more reports are expected
+	 * @param value the correlation value
+	 * @throws SmsException when the value is too long
+	 */
+	public synchronized void register(String messageId, long expiry, String value) {
+		checkOpen();
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_VALUE_LENGTH) {
+			throw new SmsException("Correlation value longer than %d bytes: %s".formatted(MAX_VALUE_LENGTH, value));
+		}
+
+		long key = key(messageId);
+		if (disk != null) {
+			int slot = disk.find(key);
+			if (slot >= 0) {
+				disk.remove(slot);
+			}
+		}
+		if (memory.find(key) < 0 && memory.isFull()) {
+			makeRoom();
+		}
+		memory.put(key, expiry, bytes);
+	}
+
+	/**
+	 * The value registered for the message a report is on.
+	 * @param report the delivery report, with the Message_id of the message
+	 * @return the value, or null if none is registered or it has expired
+	 */
+	public String correlate(SmsMessage report) {
+		String id = report.getHeader(HEADER.MESSAGE_ID);
+		return id == null ? null : get(id);
+	}
+
+	/**
+	 * The value registered for messageId.
+	 * @param messageId the Message_id
+	 * @return the value, or null if none is registered or it has expired
+	 */
+	public synchronized String get(String messageId) {
+		checkOpen();
+		long key = key(messageId);
+		long now = now();
+		for (Table table : tables()) {
+			int slot = table.find(key);
+			if (slot >= 0) {
+				if (table.expiry(slot) < now) {
+					table.remove(slot);
+					return null;
+				}
+				return table.value(slot);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the value registered for messageId, when no more reports are expected.
+	 * @param messageId the Message_id
+	 * @return the value, or null if none is registered or it has expired
+	 */
+	public synchronized String remove(String messageId) {
+		checkOpen();
+		long key = key(messageId);
+		long now = now();
+		for (Table table : tables()) {
+			int slot = table.find(key);
+			if (slot >= 0) {
+				String value = table.expiry(slot) < now ? null : table.value(slot);
+				table.remove(slot);
+				return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The number of entries held, including expired ones not yet removed.
+	 * @return the number of entries in memory and in the spill file
+	 */
+	public synchronized int size() {
+		return memory.size + (disk == null ? 0 : disk.size);
+	}
+
+	/**
+	 * The number of entries dropped for lack of room.
+	 * @return the count since creation
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Remove all expired entries.
+	 * @return the number of entries removed
+	 */
+	public synchronized int evictExpired() {
+		checkOpen();
+		long now = now();
+		int removed = 0;
+		for (Table table : tables()) {
+			removed += table.sweep(now);
+		}
+		return removed;
+	}
+
+	/**
+	 * Move the entries in memory to the spill file as far as there is room,
+	 * dropping the rest, and write it to disk.  The correlator cannot be used after this, and
+	 * closing it again has no effect.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		int lost = 0;
+		if (disk != null) {
+			lost = memory.size;
+			disk.sweep(now());
+			for (int i = 0; i <= memory.mask && !disk.isFull(); ++i) {
+				if (memory.key(i) != 0) {
+					disk.put(memory, i);
+					--lost;
+				}
+			}
+			spill.force();
+			spill.putInt(SPILL_CLEAN, 1);
+			spill.force();
+		}
+		memory.clear();
+
+		dropped += lost;
+		if (lost > 0) {
+			LOG.warn("Correlation store full on close, dropped {} entries", lost);
+		}
+	}
+
+	/* Frees memory slots by evicting expired entries, then by spilling or dropping the half that expires first. */
+	private void makeRoom() {
+		long now = now();
+		if (memory.sweep(now) > 0 && !memory.isFull()) {
+			return;
+		}
+
+		long[] expiries = new long[memory.size];
+		int n = 0;
+		for (int i = 0; i <= memory.mask; ++i) {
+			if (memory.key(i) != 0) {
+				expiries[n++] = memory.expiry(i);
+			}
+		}
+		Arrays.sort(expiries);
+		long threshold = expiries[(n - 1) / 2];
+
+		// Sweep the spill file at most once, after which a full one stays full
+		boolean swept = false;
+		int spilled = 0;
+		int lost = 0;
+		for (int i = 0; i <= memory.mask; ++i) {
+			while (memory.key(i) != 0 && memory.expiry(i) <= threshold) {
+				if (disk != null && !swept && disk.isFull()) {
+					disk.sweep(now);
+					swept = true;
+				}
+				if (disk != null && !disk.isFull()) {
+					disk.put(memory, i);
+					++spilled;
+				}
+				else {
+					++lost;
+				}
+				memory.remove(i);
+			}
+		}
+
+		dropped += lost;
+		LOG.debug("Spilled {} correlation entries to disk", spilled);
+		if (lost > 0) {
+			LOG.warn("Correlation store full, dropped {} entries", lost);
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Correlator is closed");
+		}
+	}
+
+	/* True if the spill file has size, and a header for entries marking it closed cleanly. */
+	private static boolean isValidSpill(Path file, long size, int entries) throws IOException {
+		if (Files.size(file) != size) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(SPILL_HEADER);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			channel.read(header, 0);
+		}
+		return header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+				&& header.getInt(SPILL_ENTRIES) == entries && header.getInt(SPILL_CLEAN) == 1;
+	}
+
+	private Table[] tables() {
+		return disk == null ? new Table[] { memory } : new Table[] { memory, disk };
+	}
+
+	private long now() {
+		return clock.millis() / 1000;
+	}
+
+	/* The size of a table with room for entries at a load factor of at most 3/4. */
+	private static int tableSize(int entries) {
+		if (entries < 1 || entries > (1 << 30) / SLOT * 3 / 4) {
+			throw new IllegalArgumentException("Invalid number of entries: %d".formatted(entries));
+		}
+		int slots = Integer.highestOneBit(Math.max(4, entries * 4 / 3));
+		if (slots * 3L / 4 < entries) {
+			slots <<= 1;
+		}
+		return slots * SLOT;
+	}
+
+	/* A well-mixed 64-bit hash of id, never 0. */
+	static long key(String id) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); ++i) {
+			h = (h ^ id.charAt(i)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+}
@@ -0,0 +1,310 @@
+package it.zwets.sms.utils;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import it.zwets.sms.utils.SmsUtil.HEADER;
+
+/**
+ * Compact binary encoding of messages.
+ *
+ * An alternative to the text form ({@link SmsMessage#asString()} and
+ * {@link SmsMessage#read(String)}) and to Java serialisation, for use in
+ * queues and journals.  Messages are encoded directly into and decoded
+ * directly from a ByteBuffer.  The layout is:
+ * <pre>
+ * byte        version (1)
+ * varint      number of headers N
+ * N times:
+ *   byte      dictionary code of the header name, or 0 for a literal name
+ *   [string]  the header name, only if the code is 0
+ *   string    the header value
+ * string      the body
+ * </pre>
+ * where a varint is an unsigned LEB128 integer, and a string is a varint
+ * byte length followed by that many bytes of UTF-8.  The dictionary codes
+ * for the {@link SmsUtil.HEADER} names are part of the format and must
+ * never change; new names may only be appended.
+ *
+ * The encoding round-trips with the text form: decoding an encoded message
+ * gives a message with the same headers, in the same order, and body.
+ *
+ * @author zwets
+ */
+public final class SmsCodec {
+
+	/** The version byte of the current encoding. */
+	public static final byte VERSION = 1;
+
+	/* Header names by dictionary code.  Append only, code 0 means a literal name. */
+	private static final String[] DICTIONARY = {
+		null, HEADER.TO, HEADER.FROM, HEADER.CREATED, HEADER.BOUNCE, HEADER.DISCHARGED, HEADER.FAIL_REASON,
+		HEADER.FAILED, HEADER.FLASH, HEADER.FROM_SMSC, HEADER.IMSI, HEADER.MESSAGE_ID, HEADER.MOCK,
+		HEADER.MODEM, HEADER.RECEIVED, HEADER.REPORT_RECEIVED, HEADER.REPORT_SENT, HEADER.REPORT_STATUS_CODE,
+		HEADER.REPORT_STATUS_LINE, HEADER.SENT, HEADER.SUBJECT, HEADER.VALID_UNTIL, HEADER.VALIDITY
+	};
+
+	/* Dictionary codes by SmsHeaders slot, so that encoding needs no lookup by name. */
+	private static final byte[] SLOT_CODES = new byte[SmsHeaders.SLOTS];
+
+	static {
+		for (int code = 1; code < DICTIONARY.length; ++code) {
+			SLOT_CODES[SmsHeaders.slotOf(DICTIONARY[code])] = (byte) code;
+		}
+	}
+
+	private SmsCodec() {
+	}
+
+	/**
+	 * The exact number of bytes that encoding message takes.
+	 * @param message the message
+	 * @return the encoded size in bytes
+	 */
+	public static int encodedSize(SmsMessage message) {
+		return encodedSize(message.getHeaders(), message.getBody());
+	}
+
+	/**
+	 * The exact number of bytes that encoding message takes.
+	 * @param message the message
+	 * @return the encoded size in bytes
+	 */
+	public static int encodedSize(ImmutableSmsMessage message) {
+		return encodedSize(message.getHeaders(), message.getBody());
+	}
+
+	/**
+	 * Encode message to a new byte array.
+	 * @param message the message
+	 * @return the encoded message
+	 */
+	public static byte[] encode(SmsMessage message) {
+		return encode(message.getHeaders(), message.getBody());
+	}
+
+	/**
+	 * Encode message to a new byte array.
+	 * @param message the message
+	 * @return the encoded message
+	 */
+	public static byte[] encode(ImmutableSmsMessage message) {
+		return encode(message.getHeaders(), message.getBody());
+	}
+
+	/**
+	 * Encode message into buffer at its position, advancing the position.
+	 * @param message the message
+	 * @param buffer the buffer to write to
+	 * @throws BufferOverflowException if the buffer has less than {@link #encodedSize} bytes remaining
+	 */
+	public static void encode(SmsMessage message, ByteBuffer buffer) {
+		encode(message.getHeaders(), message.getBody(), buffer);
+	}
+
+	/**
+	 * Encode message into buffer at its position, advancing the position.
+	 * @param message the message
+	 * @param buffer the buffer to write to
+	 * @throws BufferOverflowException if the buffer has less than {@link #encodedSize} bytes remaining
+	 */
+	public static void encode(ImmutableSmsMessage message, ByteBuffer buffer) {
+		encode(message.getHeaders(), message.getBody(), buffer);
+	}
+
+	/**
+	 * Decode a message from bytes.
+	 * @param bytes the encoded message
+	 * @return the decoded message
+	 * @throws SmsException if bytes do not hold exactly one valid encoded message
+	 */
+	public static SmsMessage decode(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		SmsMessage message = decode(buffer);
+		if (buffer.hasRemaining()) {
+			throw new SmsException("Invalid binary message: %d trailing bytes".formatted(buffer.remaining()));
+		}
+		return message;
+	}
+
+	/**
+	 * Decode a message from buffer at its position, advancing the position
+	 * to the end of the encoded message.
+	 * @param buffer holds the encoded message
+	 * @return the decoded message
+	 * @throws SmsException if the buffer does not hold a valid encoded message
+	 */
+	public static SmsMessage decode(ByteBuffer buffer) {
+		try {
+			byte version = buffer.get();
+			if (version != VERSION) {
+				throw new SmsException("Invalid binary message: unsupported version %d".formatted(version));
+			}
+
+			SmsMessage message = new SmsMessage();
+			int count = readVarint(buffer);
+			for (int i = 0; i < count; ++i) {
+				int code = buffer.get() & 0xff;
+				if (code >= DICTIONARY.length) {
+					throw new SmsException("Invalid binary message: unknown header code %d".formatted(code));
+				}
+				String name = code == 0 ? readString(buffer) : DICTIONARY[code];
+				message.setHeader(name, readString(buffer));
+			}
+			message.setBody(readString(buffer));
+			return message;
+		} catch (BufferUnderflowException e) {
+			throw new SmsException("Invalid binary message: truncated", e);
+		}
+	}
+
+	private static int encodedSize(Map<String,String> headers, String body) {
+		int size = 1 + varintSize(headers.size());
+		for (Map.Entry<String,String> entry : headers.entrySet()) {
+			size += 1;
+			if (SmsHeaders.slotOf(entry.getKey()) < 0) {
+				size += stringSize(entry.getKey());
+			}
+			size += stringSize(entry.getValue());
+		}
+		return size + stringSize(body);
+	}
+
+	private static byte[] encode(Map<String,String> headers, String body) {
+		byte[] bytes = new byte[encodedSize(headers, body)];
+		encode(headers, body, ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+
+	private static void encode(Map<String,String> headers, String body, ByteBuffer buffer) {
+		buffer.put(VERSION);
+		writeVarint(buffer, headers.size());
+		for (Map.Entry<String,String> entry : headers.entrySet()) {
+			int slot = SmsHeaders.slotOf(entry.getKey());
+			if (slot >= 0) {
+				buffer.put(SLOT_CODES[slot]);
+			}
+			else {
+				buffer.put((byte) 0);
+				writeString(buffer, entry.getKey());
+			}
+			writeString(buffer, entry.getValue());
+		}
+		writeString(buffer, body);
+	}
+
+	/* The number of bytes in the varint encoding of n. */
+	static int varintSize(int n) {
+		int size = 1;
+		while ((n >>>= 7) != 0) {
+			++size;
+		}
+		return size;
+	}
+
+	static void writeVarint(ByteBuffer buffer, int n) {
+		while ((n & ~0x7f) != 0) {
+			buffer.put((byte) ((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		buffer.put((byte) n);
+	}
+
+	/* Reads a non-negative varint, throwing BufferUnderflowException if it is incomplete. */
+	static int readVarint(ByteBuffer buffer) {
+		int n = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buffer.get();
+			n |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				if (n < 0) {
+					break;
+				}
+				return n;
+			}
+		}
+		throw new SmsException("Invalid binary message: bad length");
+	}
+
+	/* The number of bytes in the encoding of s. */
+	static int stringSize(String s) {
+		int len = utf8Length(s);
+		return varintSize(len) + len;
+	}
+
+	/* The length of s in UTF-8, with unpaired surrogates encoded as '?' like String.getBytes. */
+	private static int utf8Length(String s) {
+		int len = s.length();
+		int bytes = len;
+		for (int i = 0; i < len; ++i) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					bytes += 1;
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+					bytes += 2;
+					++i;
+				}
+				else if (!Character.isSurrogate(c)) {
+					bytes += 2;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/* Writes the UTF-8 length and bytes of s, encoding directly into buffer. */
+	static void writeString(ByteBuffer buffer, String s) {
+		writeVarint(buffer, utf8Length(s));
+		int len = s.length();
+		for (int i = 0; i < len; ++i) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			}
+			else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer.put((byte) (0xF0 | (cp >> 18)));
+				buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (cp & 0x3F)));
+			}
+			else if (Character.isSurrogate(c)) {
+				buffer.put((byte) '?');
+			}
+			else {
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/* Reads a length-prefixed UTF-8 string, decoding straight from the buffer's array when it has one. */
+	static String readString(ByteBuffer buffer) {
+		int len = readVarint(buffer);
+		if (len > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+
+		String s;
+		if (buffer.hasArray()) {
+			s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + len);
+		}
+		else {
+			byte[] bytes = new byte[len];
+			buffer.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+}
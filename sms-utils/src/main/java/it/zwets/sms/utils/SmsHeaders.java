@@ -0,0 +1,280 @@
+package it.zwets.sms.utils;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+import it.zwets.sms.utils.SmsUtil.HEADER;
+
+/**
+ * Compact map of message headers.
+ *
+ * The well-known headers from {@link SmsUtil.HEADER} have a fixed slot in
+ * an array of values, so they need no entry objects and no storage for
+ * their names.  Other headers go in an overflow array of name/value pairs.
+ * Iteration is in a deterministic order: the well-known headers in slot
+ * order, then the others in the order they were added.
+ *
+ * Neither names nor values may be null.
+ *
+ * @author zwets
+ */
+final class SmsHeaders extends AbstractMap<String,String> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/* The well-known headers, in slot order.  Must match slotOf. */
+	private static final String[] KNOWN = {
+		HEADER.TO, HEADER.FROM, HEADER.CREATED, HEADER.BOUNCE, HEADER.DISCHARGED, HEADER.FAIL_REASON,
+		HEADER.FAILED, HEADER.FLASH, HEADER.FROM_SMSC, HEADER.IMSI, HEADER.MESSAGE_ID, HEADER.MOCK,
+		HEADER.MODEM, HEADER.RECEIVED, HEADER.REPORT_RECEIVED, HEADER.REPORT_SENT, HEADER.REPORT_STATUS_CODE,
+		HEADER.REPORT_STATUS_LINE, HEADER.SENT, HEADER.SUBJECT, HEADER.VALID_UNTIL, HEADER.VALIDITY
+	};
+
+	/* The number of well-known headers. */
+	static final int SLOTS = KNOWN.length;
+
+	private static final String[] NO_OVERFLOW = new String[0];
+
+	/* Values of the well-known headers, null when absent. */
+	private final String[] slots = new String[KNOWN.length];
+
+	/* Names and values of other headers, alternating, in insertion order. */
+	private String[] overflow = NO_OVERFLOW;
+	private int overflowSize = 0;
+
+	private int size = 0;
+
+	/* Returns the slot for the well-known header name, or -1. */
+	static int slotOf(Object name) {
+		if (!(name instanceof String)) {
+			return -1;
+		}
+		switch ((String) name) {
+			case HEADER.TO: return 0;
+			case HEADER.FROM: return 1;
+			case HEADER.CREATED: return 2;
+			case HEADER.BOUNCE: return 3;
+			case HEADER.DISCHARGED: return 4;
+			case HEADER.FAIL_REASON: return 5;
+			case HEADER.FAILED: return 6;
+			case HEADER.FLASH: return 7;
+			case HEADER.FROM_SMSC: return 8;
+			case HEADER.IMSI: return 9;
+			case HEADER.MESSAGE_ID: return 10;
+			case HEADER.MOCK: return 11;
+			case HEADER.MODEM: return 12;
+			case HEADER.RECEIVED: return 13;
+			case HEADER.REPORT_RECEIVED: return 14;
+			case HEADER.REPORT_SENT: return 15;
+			case HEADER.REPORT_STATUS_CODE: return 16;
+			case HEADER.REPORT_STATUS_LINE: return 17;
+			case HEADER.SENT: return 18;
+			case HEADER.SUBJECT: return 19;
+			case HEADER.VALID_UNTIL: return 20;
+			case HEADER.VALIDITY: return 21;
+			default: return -1;
+		}
+	}
+
+	/* Returns the name of the well-known header in slot. */
+	static String slotName(int slot) {
+		return KNOWN[slot];
+	}
+
+	/**
+	 * Returns the canonical name of the well-known header in chars[start, end),
+	 * so that parsers need not create a string for it.
+	 * @param chars holds the header name
+	 * @param start the start of the name
+	 * @param end the end of the name
+	 * @return the constant from {@link SmsUtil.HEADER}, or null if the name is not well-known
+	 */
+	static String knownName(CharSequence chars, int start, int end) {
+		int len = end - start;
+		for (String name : KNOWN) {
+			if (name.length() == len && regionEquals(name, chars, start)) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+	private static boolean regionEquals(String name, CharSequence chars, int start) {
+		for (int i = 0; i < name.length(); ++i) {
+			if (name.charAt(i) != chars.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Returns the index of name in overflow, or -1. */
+	private int overflowIndex(Object name) {
+		for (int i = 0; i < overflowSize; i += 2) {
+			if (overflow[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object name) {
+		return get(name) != null;
+	}
+
+	@Override
+	public String get(Object name) {
+		int slot = slotOf(name);
+		if (slot >= 0) {
+			return slots[slot];
+		}
+		int i = overflowIndex(name);
+		return i < 0 ? null : overflow[i + 1];
+	}
+
+	@Override
+	public String put(String name, String value) {
+		Objects.requireNonNull(name);
+		Objects.requireNonNull(value);
+
+		int slot = slotOf(name);
+		if (slot >= 0) {
+			String old = slots[slot];
+			slots[slot] = value;
+			if (old == null) {
+				++size;
+			}
+			return old;
+		}
+
+		int i = overflowIndex(name);
+		if (i >= 0) {
+			String old = overflow[i + 1];
+			overflow[i + 1] = value;
+			return old;
+		}
+
+		if (overflowSize == overflow.length) {
+			overflow = Arrays.copyOf(overflow, Math.max(4, 2 * overflowSize));
+		}
+		overflow[overflowSize++] = name;
+		overflow[overflowSize++] = value;
+		++size;
+		return null;
+	}
+
+	@Override
+	public String remove(Object name) {
+		int slot = slotOf(name);
+		if (slot >= 0) {
+			String old = slots[slot];
+			if (old != null) {
+				slots[slot] = null;
+				--size;
+			}
+			return old;
+		}
+
+		int i = overflowIndex(name);
+		if (i < 0) {
+			return null;
+		}
+		String old = overflow[i + 1];
+		removeOverflow(i);
+		return old;
+	}
+
+	private void removeOverflow(int i) {
+		System.arraycopy(overflow, i + 2, overflow, i, overflowSize - i - 2);
+		overflow[--overflowSize] = null;
+		overflow[--overflowSize] = null;
+		--size;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(slots, null);
+		overflow = NO_OVERFLOW;
+		overflowSize = 0;
+		size = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String,String>> entrySet() {
+		return new AbstractSet<>() {
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public Iterator<Map.Entry<String,String>> iterator() {
+				return new EntryIterator();
+			}
+		};
+	}
+
+	/* Iterates the slots, then the overflow.  Positions past the slots index the overflow pairs. */
+	private final class EntryIterator implements Iterator<Map.Entry<String,String>> {
+
+		private int next = advance(0);
+		private int last = -1;
+
+		/* Returns the first position at or after pos that holds a header. */
+		private int advance(int pos) {
+			while (pos < slots.length && slots[pos] == null) {
+				++pos;
+			}
+			return pos;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < slots.length + overflowSize / 2;
+		}
+
+		@Override
+		public Map.Entry<String,String> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = advance(next + 1);
+			if (last < slots.length) {
+				return new SimpleImmutableEntry<>(KNOWN[last], slots[last]);
+			}
+			int i = 2 * (last - slots.length);
+			return new SimpleImmutableEntry<>(overflow[i], overflow[i + 1]);
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			if (last < slots.length) {
+				slots[last] = null;
+				--size;
+			}
+			else {
+				removeOverflow(2 * (last - slots.length));
+				next = last;
+			}
+			last = -1;
+		}
+	}
+}
@@ -0,0 +1,532 @@
+package it.zwets.sms.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.zwets.sms.utils.SmsUtil.HEADER;
+
+/**
+ * Append-only journal of messages, indexed by their Message_id header.
+ *
+ * An alternative to keeping one file per message, for when there are many
+ * pending messages.  Messages, status updates and removals are appended as
+ * records to fixed-size, memory-mapped segment files in the journal directory.
+ * An in-memory index maps each Message_id to its latest message record and
+ * status, and is rebuilt by replaying the segments when the journal is opened.
+ * Each record is laid out as:
+ * <pre>
+ * int         length L of the rest of the record (0 ends the segment)
+ * int         CRC32 of the L bytes that follow
+ * byte        type: 1 message, 2 status, 3 remove
+ * string      the Message_id
+ * [message]   the {@link SmsCodec} encoding of the message, if type 1
+ * [string]    the status, if type 2
+ * </pre>
+ * Replay stops at the first record that is incomplete or fails its checksum,
+ * so a record torn by a crash is lost but never misread.  Records become
+ * durable on {@link #sync()}, which should be called once per batch of updates.
+ *
+ * In the background, the oldest segment is compacted once less than the
+ * compaction threshold of it holds live messages, or of all sealed segments
+ * together: its live messages and their statuses are appended anew, and the
+ * segment file is deleted.  The latter keeps messages that stay pending for
+ * long in the oldest segment from holding up the reclaiming of the dead
+ * segments behind it.  Compacting oldest first guarantees that removals are
+ * never lost before the messages they remove.
+ *
+ * This class is thread-safe.
+ *
+ * @author zwets
+ */
+public final class SmsJournal implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SmsJournal.class);
+
+	/** The default size of segment files. */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/** The default fraction of live data below which a segment is compacted. */
+	public static final double DEFAULT_COMPACT_THRESHOLD = 0.5;
+
+	/** The default interval in milliseconds between compaction runs. */
+	public static final long DEFAULT_COMPACT_INTERVAL = 10000;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/* The length and CRC preceding each record. */
+	private static final int RECORD_HEADER = 8;
+
+	private static final byte MESSAGE = 1;
+	private static final byte STATUS = 2;
+	private static final byte REMOVE = 3;
+
+	/* A segment file, mapped in its entirety. */
+	private static final class Segment {
+		final long sequence;
+		final Path path;
+		final MappedByteBuffer buffer;
+		int end;
+		long live;
+
+		Segment(long sequence, Path path, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.path = path;
+			this.buffer = buffer;
+		}
+	}
+
+	/* The location of the latest message record for an id, and its status. */
+	private static final class Entry {
+		final Segment segment;
+		final int offset;
+		final int size;
+		String status;
+
+		Entry(Segment segment, int offset, int size, String status) {
+			this.segment = segment;
+			this.offset = offset;
+			this.size = size;
+			this.status = status;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	private final Map<String, Entry> index = new HashMap<>();
+	private final ScheduledExecutorService compactor;
+	private volatile double compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+	private boolean closed;
+
+	/**
+	 * Open or create the journal in directory with the default segment size.
+	 * @param directory the journal directory, created if absent
+	 * @throws IOException when underlying infrastructure throws it
+	 */
+	public SmsJournal(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACT_INTERVAL);
+	}
+
+	/**
+	 * Open or create the journal in directory.
+	 * @param directory the journal directory, created if absent
+	 * @param segmentSize the size of new segment files, which bounds the record size
+	 * @param compactInterval milliseconds between background compactions, or 0 for none
+	 * @throws IOException when underlying infrastructure throws it
+	 */
+	public SmsJournal(Path directory, int segmentSize, long compactInterval) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		Files.createDirectories(directory);
+		replay();
+		if (segments.isEmpty()) {
+			segments.add(createSegment(0));
+		}
+
+		if (compactInterval > 0) {
+			compactor = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread t = new Thread(r, "journal-compactor");
+				t.setDaemon(true);
+				return t;
+			});
+			compactor.scheduleWithFixedDelay(this::compactQuietly, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+		}
+		else {
+			compactor = null;
+		}
+	}
+
+	/**
+	 * Set the fraction of live data below which the oldest segment is compacted,
+	 * in that segment or in all sealed segments together.
+	 * @param threshold a fraction between 0 and 1
+	 */
+	public void setCompactThreshold(double threshold) {
+		if (threshold < 0 || threshold > 1) {
+			throw new IllegalArgumentException("threshold must be between 0 and 1: %f".formatted(threshold));
+		}
+		this.compactThreshold = threshold;
+	}
+
+	/**
+	 * Append message, replacing any earlier message with the same Message_id
+	 * and clearing its status.
+	 * @param message the message, which must have a Message_id header
+	 * @throws IOException when a new segment cannot be created
+	 * @throws SmsException when the message has no Message_id or does not fit in a segment
+	 */
+	public synchronized void append(SmsMessage message) throws IOException {
+		String id = message.getHeader(HEADER.MESSAGE_ID);
+		if (id == null) {
+			throw new SmsException("Cannot journal message without %s header".formatted(HEADER.MESSAGE_ID));
+		}
+
+		ByteBuffer record = reserve(1 + SmsCodec.stringSize(id) + SmsCodec.encodedSize(message));
+		record.put(MESSAGE);
+		SmsCodec.writeString(record, id);
+		SmsCodec.encode(message, record);
+		int offset = complete(record);
+
+		put(id, new Entry(segments.getLast(), offset, record.position() - offset, null));
+	}
+
+	/**
+	 * Read the message with Message_id id.
+	 * @param id the Message_id
+	 * @return the message, or null if the journal has none with id
+	 */
+	public SmsMessage get(String id) {
+		Entry entry;
+		synchronized (this) {
+			entry = index.get(id);
+		}
+		if (entry == null) {
+			return null;
+		}
+
+		// Sealed records never change, and stay mapped after compaction, so no lock is needed
+		ByteBuffer record = entry.segment.buffer.duplicate();
+		record.limit(entry.offset + entry.size).position(entry.offset + RECORD_HEADER + 1);
+		SmsCodec.readString(record);
+		return SmsCodec.decode(record);
+	}
+
+	/**
+	 * The status last set on the message with Message_id id.
+	 * @param id the Message_id
+	 * @return the status, or null if none was set or there is no such message
+	 */
+	public synchronized String getStatus(String id) {
+		Entry entry = index.get(id);
+		return entry == null ? null : entry.status;
+	}
+
+	/**
+	 * Set the status of the message with Message_id id.
+	 * @param id the Message_id
+	 * @param status the new status
+	 * @return false if the journal has no message with id
+	 * @throws IOException when a new segment cannot be created
+	 */
+	public synchronized boolean setStatus(String id, String status) throws IOException {
+		Entry entry = index.get(id);
+		if (entry == null) {
+			return false;
+		}
+		appendStatus(id, status);
+		entry.status = status;
+		return true;
+	}
+
+	/**
+	 * Remove the message with Message_id id.
+	 * @param id the Message_id
+	 * @return false if the journal has no message with id
+	 * @throws IOException when a new segment cannot be created
+	 */
+	public synchronized boolean remove(String id) throws IOException {
+		if (!index.containsKey(id)) {
+			return false;
+		}
+		ByteBuffer record = reserve(1 + SmsCodec.stringSize(id));
+		record.put(REMOVE);
+		SmsCodec.writeString(record, id);
+		complete(record);
+		drop(id);
+		return true;
+	}
+
+	/**
+	 * The number of messages in the journal.
+	 * @return the message count
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * The Message_ids of all messages in the journal.
+	 * @return a snapshot of the ids, in no particular order
+	 */
+	public synchronized List<String> getMessageIds() {
+		return new ArrayList<>(index.keySet());
+	}
+
+	/**
+	 * Make all records appended so far durable.
+	 */
+	public synchronized void sync() {
+		segments.getLast().buffer.force();
+	}
+
+	/**
+	 * Compact the oldest segments for as long as they fall below the threshold.
+	 * This is done periodically in the background, but can be invoked directly.
+	 * @return the number of segments removed
+	 * @throws IOException when underlying infrastructure throws it
+	 */
+	public int compact() throws IOException {
+		int count = 0;
+		Segment oldest;
+		while ((oldest = compactable()) != null) {
+			compact(oldest);
+			++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Stop background compaction and sync the journal.
+	 */
+	@Override
+	public void close() {
+		if (compactor != null) {
+			compactor.shutdown();
+			try {
+				compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (!closed) {
+				sync();
+				closed = true;
+			}
+		}
+	}
+
+	/* Returns the oldest segment if it is sealed and it or all sealed segments are below the threshold, else null. */
+	private synchronized Segment compactable() {
+		Segment oldest = segments.getFirst();
+		if (closed || oldest == segments.getLast()) {
+			return null;
+		}
+		if (oldest.live < compactThreshold * oldest.end) {
+			return oldest;
+		}
+
+		long live = 0;
+		long end = 0;
+		for (Segment segment : segments) {
+			if (segment != segments.getLast()) {
+				live += segment.live;
+				end += segment.end;
+			}
+		}
+		return live < compactThreshold * end ? oldest : null;
+	}
+
+	/* Appends the live messages in segment anew, then deletes it. */
+	private void compact(Segment segment) throws IOException {
+		ByteBuffer records = segment.buffer.duplicate();
+		int offset = 0;
+		int moved = 0;
+		while (offset < segment.end) {
+			int size = RECORD_HEADER + records.getInt(offset);
+			if (records.get(offset + RECORD_HEADER) == MESSAGE) {
+				records.limit(offset + size).position(offset + RECORD_HEADER + 1);
+				String id = SmsCodec.readString(records);
+				records.limit(records.capacity());
+				if (move(id, segment, offset, size)) {
+					++moved;
+				}
+			}
+			offset += size;
+		}
+
+		synchronized (this) {
+			sync();
+			segments.remove(segment);
+		}
+		Files.deleteIfExists(segment.path);
+		LOG.debug("Compacted journal segment {}, moving {} messages", segment.path.getFileName(), moved);
+	}
+
+	/* Copies the message record at offset in segment to the active segment, if it is still live. */
+	private synchronized boolean move(String id, Segment segment, int offset, int size) throws IOException {
+		Entry entry = index.get(id);
+		if (closed || entry == null || entry.segment != segment || entry.offset != offset) {
+			return false;
+		}
+
+		ByteBuffer source = segment.buffer.duplicate();
+		source.limit(offset + size).position(offset + RECORD_HEADER);
+		ByteBuffer record = reserve(size - RECORD_HEADER);
+		record.put(source);
+		int newOffset = complete(record);
+		put(id, new Entry(segments.getLast(), newOffset, size, entry.status));
+
+		if (entry.status != null) {
+			appendStatus(id, entry.status);
+		}
+		return true;
+	}
+
+	private void compactQuietly() {
+		try {
+			compact();
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Failed to compact journal {}: {}", directory, e.getMessage());
+		}
+	}
+
+	private void appendStatus(String id, String status) throws IOException {
+		ByteBuffer record = reserve(1 + SmsCodec.stringSize(id) + SmsCodec.stringSize(status));
+		record.put(STATUS);
+		SmsCodec.writeString(record, id);
+		SmsCodec.writeString(record, status);
+		complete(record);
+	}
+
+	/* Returns a buffer positioned for the record body in the active segment, rolling over if it is full. */
+	private ByteBuffer reserve(int length) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("Journal is closed");
+		}
+		if (RECORD_HEADER + length > segmentSize) {
+			throw new SmsException("Journal record of %d bytes exceeds the segment size".formatted(length));
+		}
+
+		Segment segment = segments.getLast();
+		if (segment.end + RECORD_HEADER + length > segment.buffer.capacity()) {
+			segment.buffer.force();
+			segment = createSegment(segment.sequence + 1);
+			segments.add(segment);
+		}
+
+		ByteBuffer record = segment.buffer.duplicate();
+		record.limit(segment.end + RECORD_HEADER + length).position(segment.end + RECORD_HEADER);
+		return record;
+	}
+
+	/* Writes the CRC and then the length of the record filled in by the caller, and returns its offset. */
+	private int complete(ByteBuffer record) {
+		Segment segment = segments.getLast();
+		int offset = segment.end;
+		int length = record.position() - offset - RECORD_HEADER;
+
+		segment.buffer.putInt(offset + 4, checksum(segment.buffer, offset + RECORD_HEADER, length));
+		segment.buffer.putInt(offset, length);
+		segment.end = offset + RECORD_HEADER + length;
+		return offset;
+	}
+
+	/* Indexes entry under id, keeping the live byte counts of the segments. */
+	private void put(String id, Entry entry) {
+		drop(id);
+		index.put(id, entry);
+		entry.segment.live += entry.size;
+	}
+
+	private void drop(String id) {
+		Entry old = index.remove(id);
+		if (old != null) {
+			old.segment.live -= old.size;
+		}
+	}
+
+	/* Maps the existing segments in sequence order, and rebuilds the index from their records. */
+	private void replay() throws IOException {
+		TreeMap<Long, Path> files = new TreeMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				try {
+					files.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16), file);
+				} catch (NumberFormatException e) {
+					LOG.warn("Ignoring unexpected file in journal {}: {}", directory, name);
+				}
+			}
+		}
+
+		for (Map.Entry<Long, Path> file : files.entrySet()) {
+			Segment segment = new Segment(file.getKey(), file.getValue(), map(file.getValue(), Files.size(file.getValue())));
+			segments.add(segment);
+			replay(segment);
+		}
+	}
+
+	private void replay(Segment segment) {
+		ByteBuffer records = segment.buffer.duplicate();
+		int capacity = records.capacity();
+		int offset = 0;
+
+		while (offset + RECORD_HEADER < capacity) {
+			int length = records.getInt(offset);
+			if (length <= 0 || length > capacity - offset - RECORD_HEADER) {
+				break;
+			}
+			if (records.getInt(offset + 4) != checksum(records, offset + RECORD_HEADER, length)) {
+				LOG.warn("Journal segment {} has a torn record at offset {}", segment.path.getFileName(), offset);
+				break;
+			}
+
+			records.limit(offset + RECORD_HEADER + length).position(offset + RECORD_HEADER);
+			byte type = records.get();
+			String id = SmsCodec.readString(records);
+			switch (type) {
+			case MESSAGE:
+				put(id, new Entry(segment, offset, RECORD_HEADER + length, null));
+				break;
+			case STATUS:
+				Entry entry = index.get(id);
+				if (entry != null) {
+					entry.status = SmsCodec.readString(records);
+				}
+				break;
+			case REMOVE:
+				drop(id);
+				break;
+			default:
+				throw new SmsException("Invalid journal record type %d in %s".formatted(type, segment.path));
+			}
+
+			records.limit(capacity);
+			offset += RECORD_HEADER + length;
+		}
+
+		segment.end = offset;
+	}
+
+	private Segment createSegment(long sequence) throws IOException {
+		Path path = directory.resolve("%016x%s".formatted(sequence, SEGMENT_SUFFIX));
+		return new Segment(sequence, path, map(path, segmentSize));
+	}
+
+	private static MappedByteBuffer map(Path path, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	private static int checksum(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.limit(offset + length).position(offset);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+}
@@ -1,23 +1,19 @@
 package it.zwets.sms.utils;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
-import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +29,10 @@ import org.slf4j.LoggerFactory;
  * value to null or the empty string removes the header with a logged warning.
  * 
  * The message body may contain any number of characters, including zero.
+ * 
+ * Headers are held compactly, with a fixed slot for each of the headers in
+ * {@link SmsUtil.HEADER}.  They are serialised in a fixed order: those
+ * well-known headers first, then any others in the order they were added.
  *
  * All methods on this class make sure that the above invariants remain true,
  * and throw the unchecked {@ SmsException} if they would be violated.
@@ -44,13 +44,14 @@ public class SmsMessage implements Serializable {
 	private static final Logger LOG = LoggerFactory.getLogger(SmsMessage.class);
 	private static final long serialVersionUID = 1L;
 	private static final String EMPTY_BODY = "".intern();
-	private static final Pattern HEADER_NAME_REGEX = Pattern.compile("^\\w[\\w-]*$");
-	private static final Pattern HEADER_REGEX = Pattern.compile("^(\\w[\\w-]*)\\s*:\\s*(.*\\S?)\\s*$");
-	private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yy-MM-dd HH:mm:ss");
 
-	private Map<String,String> headers = new HashMap<String,String>();
+	private Map<String,String> headers = new SmsHeaders();
 	private String body = EMPTY_BODY;
 
+	/* Valid_until in epoch seconds, cached against the header value it was parsed from. */
+	private transient String validUntilText;
+	private transient long validUntilSeconds;
+
 	/** Construct a message with no headers and the empty body. */
 	public SmsMessage() {
 	}
@@ -135,9 +136,7 @@ public class SmsMessage implements Serializable {
 	 */
 	public void setHeader(String header, String value) {
 
-		Matcher matcher = HEADER_NAME_REGEX.matcher(header);
-		
-		if (!matcher.matches()) {
+		if (!SmsParser.isHeaderName(header)) {
 			throw new SmsException("Invalid header name: " + header);
 		}
 		else if (value == null || value.trim().isEmpty()) {
@@ -151,6 +150,17 @@ public class SmsMessage implements Serializable {
 			headers.put(header, value.trim());
 		}
 	}
+
+	/* Sets a header whose name and value have been validated and trimmed by SmsParser. */
+	void putHeader(String header, String value) {
+		if (value.isEmpty()) {
+			LOG.warn("Header set to empty or null value is removed: " + header);
+			removeHeader(header);
+		}
+		else {
+			headers.put(header, value);
+		}
+	}
 	
 	/**
 	 * Set header to standard SMS-formatted date
@@ -159,23 +169,54 @@ public class SmsMessage implements Serializable {
 	 * @throws SmsException when header has no valid syntax
 	 */
 	public void setTimestampHeader(String header, Date date) {
-		setHeader(header, DATE_FORMAT.format(date));
+		setTimestampHeader(header, date.toInstant());
+	}
+
+	/**
+	 * Set header to standard SMS-formatted timestamp, see {@link TimestampCodec}
+	 * @param header name of the header to set
+	 * @param instant the time to set
+	 * @throws SmsException when header has no valid syntax
+	 */
+	public void setTimestampHeader(String header, Instant instant) {
+		setHeader(header, TimestampCodec.systemDefault().format(instant));
+	}
+
+	/**
+	 * Get a header holding a standard SMS-formatted timestamp.
+	 * @param header name of the header
+	 * @return the time in the header, or null if the header is not present
+	 * @throws SmsException when the header is not a valid timestamp
+	 */
+	public Instant getTimestampHeader(String header) {
+		String value = headers.get(header);
+		return value == null ? null : TimestampCodec.systemDefault().parse(value);
 	}
 	
+	/**
+	 * The Valid_until header in epoch seconds.  The header is parsed only once
+	 * for as long as it is not changed.
+	 * @return the epoch seconds, or {@link Long#MIN_VALUE} if the header is absent
+	 * @throws DateTimeException if the header is not an ISO date and time with offset
+	 */
+	long getValidUntilSeconds() {
+		String text = headers.get(SmsUtil.HEADER.VALID_UNTIL);
+		if (text == null) {
+			return Long.MIN_VALUE;
+		}
+		if (text != validUntilText) {
+			validUntilSeconds = OffsetDateTime.parse(text, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toEpochSecond();
+			validUntilText = text;
+		}
+		return validUntilSeconds;
+	}
+
 	/**
 	 * Add the headerLine to the headers, where headerline is parsed into name and value.
 	 * @param headerLine a line of the format 'Name: value'
 	 */
 	public void addHeader(String headerLine) {
-
-		Matcher matcher = HEADER_REGEX.matcher(headerLine);	
-		
-		if (matcher.matches()) {
-			setHeader(matcher.group(1), matcher.group(2));				
-		}
-		else {
-			throw new SmsException("Invalid message header: '" + headerLine + "'");
-		}
+		SmsParser.parseHeader(headerLine, 0, headerLine.length(), this);
 	}
 
 	/**
@@ -229,7 +270,18 @@ public class SmsMessage implements Serializable {
 	 * @throws SmsException when the message does not meet syntax rules
 	 */
 	public void read(String messageString) {
-		read(new StringReader(messageString));
+		SmsParser.parse(messageString, this);
+	}
+
+	/**
+	 * Read the message from the characters in chars, such as a CharBuffer
+	 * wrapping a char[].
+	 * Headers will be added to any that may be present.  The message body
+	 * if any will be replaced.
+	 * @throws SmsException when the message does not meet syntax rules
+	 */
+	public void read(CharSequence chars) {
+		SmsParser.parse(chars, this);
 	}
 	
 	/**
@@ -239,7 +291,17 @@ public class SmsMessage implements Serializable {
 	 * @throws SmsException when the message does not meet syntax rules
 	 */
 	public void read(Reader reader) {
-		read(new BufferedReader(reader).lines().iterator());
+		StringBuilder builder = new StringBuilder();
+		char[] buffer = new char[8192];
+		try {
+			int n;
+			while ((n = reader.read(buffer)) != -1) {
+				builder.append(buffer, 0, n);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		SmsParser.parse(builder, this);
 	}
 	
 	/**
@@ -251,7 +313,7 @@ public class SmsMessage implements Serializable {
 	 * @throws SmsException when the message does not meet syntax rules
 	 */
 	public void read(Path path) throws IOException {
-		read(Files.newBufferedReader(path));
+		SmsParser.parse(Files.readString(path), this);
 	}
 	
 	/**
@@ -266,25 +328,15 @@ public class SmsMessage implements Serializable {
 	}
 	
 	/**
-	 * Write the message to file.
+	 * Write the message to file crash-safely, so that path holds either the
+	 * complete message or its previous content.  To write many messages, use
+	 * a {@link SpoolWriter}, which syncs them in batches.
 	 * @param path file name to write to
 	 * @throws IOException when underlying infrastructure throws it
 	 * @throws SmsException when the message is invalid
 	 */
 	public void writeFile(Path path) throws IOException {
-		BufferedWriter writer = Files.newBufferedWriter(path, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE);
-		
-		for (Map.Entry<String, String> entry : headers.entrySet()) {
-			writer.write(entry.getKey());
-			writer.write(": ");
-			writer.write(entry.getValue());
-			writer.write('\n');
-		}
-		
-		writer.write("\n");
-		writer.write(body);
-		
-		writer.close();
+		SpoolWriter.writeFile(path, this);
 	}
 
 	/**
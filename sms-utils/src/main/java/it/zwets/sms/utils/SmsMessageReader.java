@@ -0,0 +1,154 @@
+package it.zwets.sms.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads a sequence of messages from a single stream written by
+ * {@link SmsMessageWriter}.
+ *
+ * Messages are decoded one record at a time from a fixed read buffer, so
+ * memory use does not grow with the number of messages in the stream.
+ * The buffer grows only to hold a record larger than itself, up to the
+ * maximum record size, which guards against corrupt lengths.
+ *
+ * Like SmsMessage, this class is not thread-safe.
+ *
+ * @author zwets
+ */
+public final class SmsMessageReader implements Closeable {
+
+	/** The default size of the read buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/** The default maximum record size. */
+	public static final int DEFAULT_MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	/* Longest varint encoding of an int. */
+	private static final int MAX_VARINT_SIZE = 5;
+
+	private final InputStream in;
+	private final int maxRecordSize;
+	private ByteBuffer buffer;
+	private long count = 0;
+
+	/**
+	 * Create a reader on in with the default buffer and maximum record size.
+	 * @param in the stream to read from
+	 */
+	public SmsMessageReader(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_RECORD_SIZE);
+	}
+
+	/**
+	 * Create a reader on in.
+	 * @param in the stream to read from
+	 * @param bufferSize the initial size of the read buffer
+	 * @param maxRecordSize the size above which a record is rejected
+	 */
+	public SmsMessageReader(InputStream in, int bufferSize, int maxRecordSize) {
+		this.in = in;
+		this.maxRecordSize = maxRecordSize;
+		this.buffer = ByteBuffer.allocate(Math.max(bufferSize, MAX_VARINT_SIZE)).flip();
+	}
+
+	/**
+	 * Read the next message from the stream.
+	 * @return the message, or null at the end of the stream
+	 * @throws IOException when the underlying stream throws it
+	 * @throws SmsException when the stream holds an invalid or truncated record
+	 */
+	public SmsMessage read() throws IOException {
+		if (!fill(1)) {
+			return null;
+		}
+		fill(MAX_VARINT_SIZE);
+
+		int size;
+		try {
+			size = SmsCodec.readVarint(buffer);
+		} catch (BufferUnderflowException e) {
+			throw new SmsException("Invalid message stream: truncated record", e);
+		}
+		if (size > maxRecordSize) {
+			throw new SmsException("Invalid message stream: record size %d exceeds maximum %d".formatted(size, maxRecordSize));
+		}
+		if (!fill(size)) {
+			throw new SmsException("Invalid message stream: truncated record");
+		}
+
+		ByteBuffer record = buffer.slice(buffer.position(), size);
+		buffer.position(buffer.position() + size);
+
+		SmsMessage message = SmsCodec.decode(record);
+		if (record.hasRemaining()) {
+			throw new SmsException("Invalid message stream: record has %d trailing bytes".formatted(record.remaining()));
+		}
+		++count;
+		return message;
+	}
+
+	/**
+	 * The remaining messages in the stream, read lazily.
+	 * IOExceptions are rethrown as UncheckedIOException.
+	 * @return a sequential stream of messages
+	 */
+	public Stream<SmsMessage> stream() {
+		return StreamSupport.stream(new Spliterators.AbstractSpliterator<SmsMessage>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+			@Override
+			public boolean tryAdvance(Consumer<? super SmsMessage> action) {
+				try {
+					SmsMessage message = read();
+					if (message == null) {
+						return false;
+					}
+					action.accept(message);
+					return true;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}, false);
+	}
+
+	/**
+	 * The number of messages read so far.
+	 * @return the message count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/* Reads until the buffer holds n bytes, growing it if needed. Returns false if the stream ends first. */
+	private boolean fill(int n) throws IOException {
+		if (n > buffer.capacity()) {
+			buffer = ByteBuffer.allocate(Math.max(n, 2 * buffer.capacity())).put(buffer).flip();
+		}
+		while (buffer.remaining() < n) {
+			buffer.compact();
+			int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+			if (read > 0) {
+				buffer.position(buffer.position() + read);
+			}
+			buffer.flip();
+			if (read < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
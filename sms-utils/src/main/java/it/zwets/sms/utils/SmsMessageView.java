@@ -0,0 +1,292 @@
+package it.zwets.sms.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a serialised message in a UTF-8 encoded ByteBuffer.
+ *
+ * The view scans the header section once on creation, recording where the
+ * header names and values are, but decodes nothing.  Header values and the
+ * body are decoded only when asked for, so inspecting a few headers of a
+ * memory-mapped spool file does not read or decode the body.
+ *
+ * The syntax and semantics are those of {@link SmsMessage#read(Path)}: the
+ * view throws the same SmsException on an invalid header section, and
+ * {@link #toSmsMessage()} yields the message that read would produce.
+ * A header that occurs more than once has its last value, and a header
+ * whose last value is empty is absent.  Invalid UTF-8 in a value or the
+ * body raises an SmsException when that value or the body is accessed.
+ *
+ * The buffer must not be modified while the view is in use.  The view
+ * does not change its position or limit.  Like SmsMessage, this class
+ * is not thread-safe.
+ *
+ * @author zwets
+ */
+public final class SmsMessageView {
+
+	private final ByteBuffer buffer;
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+
+	/* Offsets of the name and trimmed value of each header line, in order. */
+	private int count = 0;
+	private int[] offsets = new int[4 * 8];
+
+	/* Lazily decoded header values, by index. */
+	private String[] values = new String[8];
+
+	/* Offset of the body, and the lazily decoded body. */
+	private int bodyStart;
+	private String body = null;
+
+	/**
+	 * Create a view of the message in buffer, from its position to its limit.
+	 * @param buffer holds the UTF-8 encoded message
+	 * @return the message view
+	 * @throws SmsException when the header section does not meet syntax rules
+	 */
+	public static SmsMessageView of(ByteBuffer buffer) {
+		return new SmsMessageView(buffer.slice());
+	}
+
+	/**
+	 * Create a view of the message file at path by memory-mapping it.
+	 * @param path the message file
+	 * @return the message view
+	 * @throws IOException when the file cannot be mapped
+	 * @throws SmsException when the header section does not meet syntax rules
+	 */
+	public static SmsMessageView map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new SmsMessageView(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	private SmsMessageView(ByteBuffer buffer) {
+		this.buffer = buffer;
+		index();
+	}
+
+	/**
+	 * Check that a header is present.
+	 * @return true if header is present
+	 */
+	public boolean hasHeader(String header) {
+		return find(header) >= 0;
+	}
+
+	/**
+	 * Get a header value, decoding it on first access.
+	 * @return the header value or null if it was not present
+	 * @throws SmsException when the value is not valid UTF-8
+	 */
+	public String getHeader(String header) {
+		int i = find(header);
+		if (i < 0) {
+			return null;
+		}
+		if (values[i] == null) {
+			values[i] = decode(offsets[4 * i + 2], offsets[4 * i + 3]);
+		}
+		return values[i];
+	}
+
+	/**
+	 * Get a header value or defaultValue if the header is not set.
+	 * @throws SmsException when the value is not valid UTF-8
+	 */
+	public String getHeader(String header, String defaultValue) {
+		String value = getHeader(header);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * The text body of the message, decoded on first access.
+	 * @return the message body, never null
+	 * @throws SmsException when the body is not valid UTF-8
+	 */
+	public String getBody() {
+		if (body == null) {
+			CharBuffer chars = decodeChars(bodyStart, buffer.limit());
+			body = SmsParser.parseBody(chars, 0, chars.length());
+		}
+		return body;
+	}
+
+	/**
+	 * Materialise the full message.
+	 * @return a new SmsMessage with the headers and body of this view
+	 * @throws SmsException when a value or the body is not valid UTF-8
+	 */
+	public SmsMessage toSmsMessage() {
+		SmsMessage message = new SmsMessage();
+		for (int i = 0; i < count; ++i) {
+			String value = values[i] != null ? values[i] : decode(offsets[4 * i + 2], offsets[4 * i + 3]);
+			message.putHeader(decode(offsets[4 * i], offsets[4 * i + 1]), value);
+		}
+		message.setBody(getBody());
+		return message;
+	}
+
+	/* Returns the index of the last header line for name, or -1 if absent or last set to empty. */
+	private int find(String name) {
+		int len = name.length();
+		for (int i = count - 1; i >= 0; --i) {
+			int start = offsets[4 * i];
+			if (offsets[4 * i + 1] - start == len && nameEquals(start, name)) {
+				return offsets[4 * i + 2] == offsets[4 * i + 3] ? -1 : i;
+			}
+		}
+		return -1;
+	}
+
+	/* Header names are ASCII, so we can compare them without decoding. */
+	private boolean nameEquals(int start, String name) {
+		for (int j = 0; j < name.length(); ++j) {
+			if (buffer.get(start + j) != name.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Scans the header section, recording the header offsets and the body start. */
+	private void index() {
+		final int len = buffer.limit();
+		int pos = 0;
+
+		while (true) {
+			if (pos == len) {
+				throw new SmsException("Invalid message: headers not terminated by empty line");
+			}
+
+			int eol = pos;
+			byte b = 0;
+			while (eol < len && (b = buffer.get(eol)) != '\n' && b != '\r') {
+				++eol;
+			}
+
+			int start = pos;
+			int end = eol;
+			pos = eol == len ? len : b == '\r' && eol + 1 < len && buffer.get(eol + 1) == '\n' ? eol + 2 : eol + 1;
+
+			// Trims the characters up to space, which in UTF-8 are single bytes
+			while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+				++start;
+			}
+			while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+				--end;
+			}
+
+			if (start == end) {
+				break;
+			}
+
+			indexHeader(start, end);
+		}
+
+		bodyStart = pos;
+	}
+
+	/* Records the name and value offsets of the header line at [start, end), as SmsParser.parseHeader. */
+	private void indexHeader(int start, int end) {
+		int pos = start;
+
+		if (!isWordByte(buffer.get(pos))) {
+			throw invalidHeader(start, end);
+		}
+		while (pos < end && (isWordByte(buffer.get(pos)) || buffer.get(pos) == '-')) {
+			++pos;
+		}
+		int nameEnd = pos;
+
+		while (pos < end && isSpace(buffer.get(pos))) {
+			++pos;
+		}
+		if (pos == end || buffer.get(pos) != ':') {
+			throw invalidHeader(start, end);
+		}
+		++pos;
+		while (pos < end && isSpace(buffer.get(pos))) {
+			++pos;
+		}
+
+		// The value runs to the first line terminator, which is included as it is
+		// not whitespace.  The line has no CR or LF, so only NEL, LS and PS remain.
+		int valueStart = pos;
+		while (pos < end && terminatorLength(pos, end) == 0) {
+			++pos;
+		}
+		if (pos < end) {
+			pos += terminatorLength(pos, end);
+		}
+		int valueEnd = pos;
+		if (pos < end) {
+			throw invalidHeader(start, end);
+		}
+
+		while (valueStart < valueEnd && (buffer.get(valueStart) & 0xff) <= ' ') {
+			++valueStart;
+		}
+
+		if (4 * count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+			values = Arrays.copyOf(values, 2 * values.length);
+		}
+		offsets[4 * count] = start;
+		offsets[4 * count + 1] = nameEnd;
+		offsets[4 * count + 2] = valueStart;
+		offsets[4 * count + 3] = valueEnd;
+		++count;
+	}
+
+	/* The length of the UTF-8 encoded NEL, LS or PS at pos, or 0 if there is none. */
+	private int terminatorLength(int pos, int end) {
+		int b = buffer.get(pos) & 0xff;
+		if (b == 0xC2 && pos + 1 < end && (buffer.get(pos + 1) & 0xff) == 0x85) {
+			return 2;
+		}
+		if (b == 0xE2 && pos + 2 < end && (buffer.get(pos + 1) & 0xff) == 0x80) {
+			int c = buffer.get(pos + 2) & 0xff;
+			return c == 0xA8 || c == 0xA9 ? 3 : 0;
+		}
+		return 0;
+	}
+
+	private SmsException invalidHeader(int start, int end) {
+		byte[] line = new byte[end - start];
+		buffer.get(start, line);
+		return new SmsException("Invalid message header: '" + new String(line, StandardCharsets.UTF_8) + "'");
+	}
+
+	private String decode(int start, int end) {
+		return decodeChars(start, end).toString();
+	}
+
+	private CharBuffer decodeChars(int start, int end) {
+		try {
+			return decoder.decode(buffer.slice(start, end - start));
+		} catch (CharacterCodingException e) {
+			throw new SmsException("Invalid UTF-8 in message: " + e.getMessage(), e);
+		}
+	}
+
+	/* Regex \w */
+	private static boolean isWordByte(byte b) {
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+	}
+
+	/* Regex \s */
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+	}
+}
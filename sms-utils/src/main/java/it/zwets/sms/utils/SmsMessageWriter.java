@@ -0,0 +1,124 @@
+package it.zwets.sms.utils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a sequence of messages to a single stream.
+ *
+ * Each message is written as a record consisting of a varint length and
+ * the {@link SmsCodec} encoding of the message.  Records are encoded
+ * straight into one shared buffer, which is written to the stream when
+ * full, so that writing many small messages costs few stream writes and
+ * no per-message allocation.  Read the stream with {@link SmsMessageReader}.
+ *
+ * Like SmsMessage, this class is not thread-safe.
+ *
+ * @author zwets
+ */
+public final class SmsMessageWriter implements Closeable, Flushable {
+
+	/** The default size of the write buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final OutputStream out;
+	private final ByteBuffer buffer;
+	private long count = 0;
+
+	/**
+	 * Create a writer on out with the default buffer size.
+	 * @param out the stream to write to
+	 */
+	public SmsMessageWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Create a writer on out.
+	 * @param out the stream to write to
+	 * @param bufferSize the size of the write buffer; larger records bypass it
+	 */
+	public SmsMessageWriter(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Append message to the stream.
+	 * @param message the message to write
+	 * @throws IOException when the underlying stream throws it
+	 */
+	public void write(SmsMessage message) throws IOException {
+		ByteBuffer target = reserve(SmsCodec.encodedSize(message));
+		SmsCodec.encode(message, target);
+		commit(target);
+	}
+
+	/**
+	 * Append message to the stream.
+	 * @param message the message to write
+	 * @throws IOException when the underlying stream throws it
+	 */
+	public void write(ImmutableSmsMessage message) throws IOException {
+		ByteBuffer target = reserve(SmsCodec.encodedSize(message));
+		SmsCodec.encode(message, target);
+		commit(target);
+	}
+
+	/**
+	 * The number of messages written so far.
+	 * @return the message count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Write out the buffer and flush the underlying stream.
+	 * @throws IOException when the underlying stream throws it
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+
+	/**
+	 * Write out the buffer and close the underlying stream.
+	 * @throws IOException when the underlying stream throws it
+	 */
+	@Override
+	public void close() throws IOException {
+		try (out) {
+			drain();
+		}
+	}
+
+	/* Returns a buffer with room for a record of size, with the length already written. */
+	private ByteBuffer reserve(int size) throws IOException {
+		int recordSize = SmsCodec.varintSize(size) + size;
+		if (recordSize > buffer.remaining()) {
+			drain();
+		}
+		ByteBuffer target = recordSize > buffer.capacity() ? ByteBuffer.allocate(recordSize) : buffer;
+		SmsCodec.writeVarint(target, size);
+		return target;
+	}
+
+	private void commit(ByteBuffer target) throws IOException {
+		if (target != buffer) {
+			out.write(target.array(), 0, target.position());
+		}
+		++count;
+	}
+
+	private void drain() throws IOException {
+		if (buffer.position() > 0) {
+			out.write(buffer.array(), 0, buffer.position());
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package it.zwets.sms.utils;
+
+/**
+ * Single-pass parser for the serialised form of an {@link SmsMessage}.
+ *
+ * Scans the input once, slicing header names, values and the body directly
+ * from it, instead of splitting it into lines and matching regular expressions.
+ * The behaviour is exactly that of the original line and regex based parsing:
+ * <ul>
+ * <li>lines end at LF, CR or CRLF;</li>
+ * <li>header lines are trimmed, and the first line that is empty after
+ *     trimming ends the headers, which must be present;</li>
+ * <li>a header line is <code>^(\w[\w-]*)\s*:\s*(.*\S?)\s*$</code>, and its value is trimmed;</li>
+ * <li>the body lines are joined with LF, dropping a final line terminator.</li>
+ * </ul>
+ *
+ * @author zwets
+ */
+final class SmsParser {
+
+	private SmsParser() {
+	}
+
+	/**
+	 * Parse the serialised message in chars into message.
+	 * Headers are added to the message, and its body is replaced.
+	 * @param chars the serialised message
+	 * @param message the message to parse into
+	 * @throws SmsException when the input does not meet syntax rules
+	 */
+	static void parse(CharSequence chars, SmsMessage message) {
+		final int len = chars.length();
+		int pos = 0;
+
+		while (true) {
+			if (pos == len) {
+				throw new SmsException("Invalid message: headers not terminated by empty line");
+			}
+
+			int eol = pos;
+			char c = 0;
+			while (eol < len && (c = chars.charAt(eol)) != '\n' && c != '\r') {
+				++eol;
+			}
+
+			int start = pos;
+			int end = eol;
+			pos = eol == len ? len : c == '\r' && eol + 1 < len && chars.charAt(eol + 1) == '\n' ? eol + 2 : eol + 1;
+
+			while (start < end && chars.charAt(start) <= ' ') {
+				++start;
+			}
+			while (end > start && chars.charAt(end - 1) <= ' ') {
+				--end;
+			}
+
+			if (start == end) {
+				break;
+			}
+
+			parseHeader(chars, start, end, message);
+		}
+
+		message.setBody(parseBody(chars, pos, len));
+	}
+
+	/**
+	 * Parse the header line chars[start, end) and set it on message.
+	 * @param chars holds the header line
+	 * @param start the start of the header line
+	 * @param end the end of the header line
+	 * @param message the message to set the header on
+	 * @throws SmsException when the line is not a valid header
+	 */
+	static void parseHeader(CharSequence chars, int start, int end, SmsMessage message) {
+		int pos = start;
+
+		// Name: a word character followed by word characters and dashes
+		if (pos == end || !isWordChar(chars.charAt(pos))) {
+			throw invalidHeader(chars, start, end);
+		}
+		while (pos < end && (isWordChar(chars.charAt(pos)) || chars.charAt(pos) == '-')) {
+			++pos;
+		}
+		int nameEnd = pos;
+
+		// Optional whitespace and the colon, then optional whitespace
+		while (pos < end && isSpace(chars.charAt(pos))) {
+			++pos;
+		}
+		if (pos == end || chars.charAt(pos) != ':') {
+			throw invalidHeader(chars, start, end);
+		}
+		++pos;
+		while (pos < end && isSpace(chars.charAt(pos))) {
+			++pos;
+		}
+
+		// Value: anything up to a line terminator, which may be included if it
+		// is not whitespace, after which only whitespace may follow
+		int valueStart = pos;
+		while (pos < end && !isLineTerminator(chars.charAt(pos))) {
+			++pos;
+		}
+		if (pos < end && !isSpace(chars.charAt(pos))) {
+			++pos;
+		}
+		int valueEnd = pos;
+		while (pos < end) {
+			if (!isSpace(chars.charAt(pos++))) {
+				throw invalidHeader(chars, start, end);
+			}
+		}
+
+		while (valueStart < valueEnd && chars.charAt(valueStart) <= ' ') {
+			++valueStart;
+		}
+		while (valueEnd > valueStart && chars.charAt(valueEnd - 1) <= ' ') {
+			--valueEnd;
+		}
+
+		// Well-known names are canonicalised, which saves a string per header
+		String name = SmsHeaders.knownName(chars, start, nameEnd);
+		if (name == null) {
+			name = chars.subSequence(start, nameEnd).toString();
+		}
+
+		message.putHeader(name, chars.subSequence(valueStart, valueEnd).toString());
+	}
+
+	/**
+	 * Check that name is a valid header name, that is <code>^\w[\w-]*$</code>.
+	 * @param name the name to check
+	 * @return true if name is valid
+	 */
+	static boolean isHeaderName(CharSequence name) {
+		int len = name.length();
+		if (len == 0 || !isWordChar(name.charAt(0))) {
+			return false;
+		}
+		for (int i = 1; i < len; ++i) {
+			char c = name.charAt(i);
+			if (!isWordChar(c) && c != '-') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Returns the lines in chars[start, end) joined with LF, without a final terminator. */
+	static String parseBody(CharSequence chars, int start, int end) {
+		int cr = start;
+		while (cr < end && chars.charAt(cr) != '\r') {
+			++cr;
+		}
+
+		// Common case: LF line endings only, so the body is a slice of the input
+		if (cr == end) {
+			if (end > start && chars.charAt(end - 1) == '\n') {
+				--end;
+			}
+			return chars.subSequence(start, end).toString();
+		}
+
+		StringBuilder builder = new StringBuilder(end - start);
+		builder.append(chars, start, cr);
+		for (int i = cr; i < end; ++i) {
+			char c = chars.charAt(i);
+			if (c == '\r') {
+				builder.append('\n');
+				if (i + 1 < end && chars.charAt(i + 1) == '\n') {
+					++i;
+				}
+			}
+			else {
+				builder.append(c);
+			}
+		}
+
+		int len = builder.length();
+		if (len > 0 && builder.charAt(len - 1) == '\n') {
+			builder.setLength(len - 1);
+		}
+		return builder.toString();
+	}
+
+	private static SmsException invalidHeader(CharSequence chars, int start, int end) {
+		return new SmsException("Invalid message header: '" + chars.subSequence(start, end) + "'");
+	}
+
+	/* Regex \w */
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	/* Regex \s */
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+	}
+
+	/* The characters not matched by regex . */
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+}
@@ -0,0 +1,466 @@
+package it.zwets.sms.utils;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.zwets.sms.utils.SmsUtil.HEADER;
+
+/**
+ * Holds messages until their send time, and drops them at their expiry.
+ *
+ * Messages are scheduled with a send time, and released to the {@link Listener}
+ * when it arrives.  A message whose Valid_until header (an ISO date and time
+ * with offset, as read by {@link SmsUtil#computeValidity}) is not after its
+ * send time is instead passed to the listener as expired, at its expiry time.
+ * A message that is released late, after its expiry, is expired too.
+ *
+ * Pending messages are kept in a hierarchical timing wheel: six levels of 64
+ * buckets, where each level's bucket spans all of the level below.  Scheduling
+ * and cancelling are O(1), and the timer thread does O(1) work per tick plus
+ * the occasional move of a bucket to the level below, independent of the
+ * number of pending messages.  A single timer thread advances the wheel;
+ * listeners are invoked on a pool of worker threads.  Messages are released
+ * no earlier than their time, and up to one tick later.
+ *
+ * This class is thread-safe.
+ *
+ * @author zwets
+ */
+public final class SmsScheduler implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SmsScheduler.class);
+
+	/** The default tick length in milliseconds. */
+	public static final long DEFAULT_TICK = 10;
+
+	private static final int WHEEL_BITS = 6;
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final int LEVELS = 6;
+
+	/* Ticks beyond which tasks are parked in the top level until they come in range. */
+	private static final long MAX_SPAN = 1L << (WHEEL_BITS * LEVELS);
+
+	/* The Valid_until in epoch millis of tasks for messages without one. */
+	private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+	/**
+	 * Receives the messages released by the scheduler.
+	 * Implementations must be thread-safe, as they are called from all workers.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when the send time of message has come.
+		 * @param message the message
+		 * @throws Exception which is logged
+		 */
+		void release(SmsMessage message) throws Exception;
+
+		/**
+		 * Called when message expired before it could be released.
+		 * @param message the message
+		 * @throws Exception which is logged
+		 */
+		default void expire(SmsMessage message) throws Exception {
+			LOG.info("Message expired: {}", message.getHeader(HEADER.MESSAGE_ID));
+		}
+	}
+
+	/**
+	 * Observes the set of pending messages, for instance to persist it.
+	 * Calls are made while the scheduler is locked, so must be quick.
+	 */
+	public interface Observer {
+
+		/**
+		 * Called when task is scheduled, before it can fire.
+		 * @param task the new task
+		 * @throws RuntimeException to refuse the task, which is then not scheduled
+		 */
+		void added(Task task);
+
+		/**
+		 * Called when task was cancelled, or its listener call has completed.
+		 * @param task the finished task
+		 */
+		void removed(Task task);
+	}
+
+	/**
+	 * A scheduled message.
+	 */
+	public final class Task {
+
+		private final SmsMessage message;
+		private final Instant sendAt;
+		private final long validUntil;
+		private final long deadline;
+
+		/* Links in the bucket list, null when not in a bucket. */
+		private Task prev;
+		private Task next;
+		private boolean done;
+
+		private Task(SmsMessage message, Instant sendAt, long validUntil, long deadline) {
+			this.message = message;
+			this.sendAt = sendAt;
+			this.validUntil = validUntil;
+			this.deadline = deadline;
+		}
+
+		/* Creates a bucket sentinel. */
+		private Task() {
+			this(null, null, NO_EXPIRY, 0);
+			prev = next = this;
+		}
+
+		/**
+		 * The scheduled message.
+		 * @return the message
+		 */
+		public SmsMessage getMessage() {
+			return message;
+		}
+
+		/**
+		 * The time the message is to be released.
+		 * @return the send time
+		 */
+		public Instant getSendAt() {
+			return sendAt;
+		}
+
+		/**
+		 * The expiry time of the message.
+		 * @return the Valid_until header to the second, or null if the message has none
+		 */
+		public Instant getValidUntil() {
+			return validUntil == NO_EXPIRY ? null : Instant.ofEpochMilli(validUntil);
+		}
+
+		/**
+		 * Cancel the task, if it has not yet fired.
+		 * @return true if the task was pending and is now cancelled
+		 */
+		public boolean cancel() {
+			synchronized (SmsScheduler.this) {
+				if (done) {
+					return false;
+				}
+				unlink(this);
+				done = true;
+				--pending;
+				if (observer != null) {
+					observer.removed(this);
+				}
+				return true;
+			}
+		}
+
+		/**
+		 * Whether the task has fired or was cancelled.
+		 * @return true if the task is no longer pending
+		 */
+		public boolean isDone() {
+			synchronized (SmsScheduler.this) {
+				return done;
+			}
+		}
+	}
+
+	private final Listener listener;
+	private final int threads;
+	private final long tickMillis;
+	private final Clock clock;
+	private final long origin;
+
+	/* The wheels, indexed by level and bucket; each bucket is a sentinel of a circular list. */
+	private final Task[][] wheels = new Task[LEVELS][WHEEL_SIZE];
+
+	/* Tasks that were due when scheduled, fired on the next pass of the timer. */
+	private final Task due = new Task();
+
+	/* The last tick processed, and the number of tasks in the wheels. */
+	private long currentTick;
+	private int pending;
+
+	private ExecutorService workers;
+	private Thread timer;
+	private volatile boolean running;
+	private Observer observer;
+
+	/**
+	 * Create a scheduler with the default tick on the system clock.
+	 * @param listener the listener to pass messages to
+	 * @param threads the number of worker threads
+	 */
+	public SmsScheduler(Listener listener, int threads) {
+		this(listener, threads, DEFAULT_TICK, Clock.systemUTC());
+	}
+
+	/**
+	 * Create a scheduler.
+	 * @param listener the listener to pass messages to
+	 * @param threads the number of worker threads
+	 * @param tickMillis the resolution of the wheel in milliseconds
+	 * @param clock the clock to schedule by
+	 */
+	public SmsScheduler(Listener listener, int threads, long tickMillis, Clock clock) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: %d".formatted(threads));
+		}
+		if (tickMillis < 1) {
+			throw new IllegalArgumentException("tick must be positive: %d".formatted(tickMillis));
+		}
+		this.listener = listener;
+		this.threads = threads;
+		this.tickMillis = tickMillis;
+		this.clock = clock;
+		this.origin = clock.millis();
+
+		for (Task[] wheel : wheels) {
+			for (int i = 0; i < WHEEL_SIZE; ++i) {
+				wheel[i] = new Task();
+			}
+		}
+	}
+
+	/**
+	 * Start the timer and worker threads.  Messages can be scheduled before
+	 * the scheduler is started, but are not released until it is.
+	 */
+	public synchronized void start() {
+		if (running) {
+			throw new IllegalStateException("Scheduler already started");
+		}
+
+		workers = Executors.newFixedThreadPool(threads, (r) -> {
+			Thread t = new Thread(r, "scheduler-worker");
+			t.setDaemon(true);
+			return t;
+		});
+
+		running = true;
+		timer = new Thread(this::run, "scheduler-timer");
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+	/**
+	 * Stop the timer, and wait for the listener calls in progress to finish.
+	 * Messages not yet released remain pending.
+	 */
+	@Override
+	public void close() {
+		Thread stopping;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			stopping = timer;
+		}
+
+		stopping.interrupt();
+		try {
+			stopping.join();
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Schedule message for release at sendAt, or for expiry at its Valid_until
+	 * time if that is earlier.  A time in the past releases it on the next tick.
+	 * @param message the message
+	 * @param sendAt the time to release the message
+	 * @return the task, which can be used to cancel it
+	 * @throws SmsException if the message has an invalid Valid_until header
+	 */
+	public Task schedule(SmsMessage message, Instant sendAt) {
+		long validUntil = validUntilMillis(message);
+		long fireAt = Math.min(validUntil, sendAt.toEpochMilli());
+
+		Task task = new Task(message, sendAt, validUntil, firstTickAt(fireAt));
+		synchronized (this) {
+			if (observer != null) {
+				observer.added(task);
+			}
+			++pending;
+			if (!insert(task)) {
+				link(due, task);
+			}
+		}
+		return task;
+	}
+
+	/**
+	 * Set the observer of the pending messages.
+	 * @param observer the observer, or null for none
+	 */
+	public synchronized void setObserver(Observer observer) {
+		this.observer = observer;
+	}
+
+	/**
+	 * The number of messages awaiting release or expiry.
+	 * @return the pending count
+	 */
+	public synchronized int size() {
+		return pending;
+	}
+
+	/* Runs on the timer thread until closed. */
+	private void run() {
+		List<Task> fired = new ArrayList<>();
+		try {
+			while (running) {
+				long now = tickOf(clock.millis());
+				synchronized (this) {
+					if (pending == 0 && now > currentTick) {
+						currentTick = now;
+					}
+					while (currentTick < now) {
+						advance(fired);
+					}
+					drain(due, fired);
+				}
+
+				for (Task task : fired) {
+					workers.execute(() -> fire(task));
+				}
+				fired.clear();
+
+				Thread.sleep(tickMillis);
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		}
+	}
+
+	/* Processes the next tick: moves down the buckets whose span starts now, and collects the due tasks. */
+	private void advance(List<Task> fired) {
+		long tick = ++currentTick;
+
+		for (int level = LEVELS - 1; level > 0; --level) {
+			int shift = WHEEL_BITS * level;
+			if ((tick & ((1L << shift) - 1)) == 0) {
+				Task bucket = wheels[level][(int) ((tick >>> shift) & WHEEL_MASK)];
+				while (bucket.next != bucket) {
+					Task task = bucket.next;
+					unlink(task);
+					if (!insert(task)) {
+						collect(task, fired);
+					}
+				}
+			}
+		}
+
+		drain(wheels[0][(int) (tick & WHEEL_MASK)], fired);
+	}
+
+	/* Empties bucket into fired. */
+	private void drain(Task bucket, List<Task> fired) {
+		while (bucket.next != bucket) {
+			Task task = bucket.next;
+			unlink(task);
+			collect(task, fired);
+		}
+	}
+
+	private void collect(Task task, List<Task> fired) {
+		task.done = true;
+		--pending;
+		fired.add(task);
+	}
+
+	/* Puts task in the bucket for its deadline, returning false if it is already due. */
+	private boolean insert(Task task) {
+		long delta = task.deadline - currentTick;
+		if (delta <= 0) {
+			return false;
+		}
+
+		long placement = task.deadline;
+		int level = (63 - Long.numberOfLeadingZeros(delta)) / WHEEL_BITS;
+		if (level >= LEVELS) {
+			placement = currentTick + MAX_SPAN - 1;
+			level = LEVELS - 1;
+		}
+
+		link(wheels[level][(int) ((placement >>> (WHEEL_BITS * level)) & WHEEL_MASK)], task);
+		return true;
+	}
+
+	private static void link(Task bucket, Task task) {
+		task.prev = bucket.prev;
+		task.next = bucket;
+		bucket.prev.next = task;
+		bucket.prev = task;
+	}
+
+	private static void unlink(Task task) {
+		task.prev.next = task.next;
+		task.next.prev = task.prev;
+		task.prev = task.next = null;
+	}
+
+	/* Invokes the listener for task, on a worker thread. */
+	private void fire(Task task) {
+		try {
+			if (task.validUntil <= clock.millis()) {
+				listener.expire(task.message);
+			}
+			else {
+				listener.release(task.message);
+			}
+		} catch (Exception e) {
+			LOG.error("Listener failed on message {}: {}", task.message.getHeader(HEADER.MESSAGE_ID), e.getMessage());
+		}
+
+		synchronized (this) {
+			if (observer != null) {
+				observer.removed(task);
+			}
+		}
+	}
+
+	/* The first tick at or after the millis. */
+	private long firstTickAt(long millis) {
+		long delta = millis - origin;
+		return delta <= 0 ? 0 : delta / tickMillis + (delta % tickMillis == 0 ? 0 : 1);
+	}
+
+	/* The tick the millis fall in. */
+	private long tickOf(long millis) {
+		return Math.max(0, millis - origin) / tickMillis;
+	}
+
+	/* The Valid_until of message in epoch millis, or NO_EXPIRY; the message caches the parse. */
+	private static long validUntilMillis(SmsMessage message) {
+		long seconds;
+		try {
+			seconds = message.getValidUntilSeconds();
+		} catch (DateTimeException e) {
+			throw new SmsException("Invalid %s header: %s".formatted(HEADER.VALID_UNTIL, message.getHeader(HEADER.VALID_UNTIL)), e);
+		}
+		if (seconds == Long.MIN_VALUE || seconds > NO_EXPIRY / 1000) {
+			return NO_EXPIRY;
+		}
+		return Math.max(seconds, -NO_EXPIRY / 1000) * 1000;
+	}
+}
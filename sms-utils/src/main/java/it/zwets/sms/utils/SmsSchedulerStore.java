@@ -0,0 +1,508 @@
+package it.zwets.sms.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the messages pending in an {@link SmsScheduler}, so that they
+ * can be rescheduled after a restart.
+ *
+ * The store keeps periodic snapshots of the pending set, and a change log
+ * of the messages added and removed since the last snapshot.  Each snapshot
+ * starts a new generation of the log, after which the older snapshot and
+ * logs are deleted.  Recovery reads the latest snapshot and the logs that
+ * follow it sequentially, so it takes seconds even for many messages.
+ * Each record in the change log is laid out as:
+ * <pre>
+ * int         length L of the rest of the record
+ * int         CRC32 of the L bytes that follow
+ * byte        type: 1 add, 2 remove
+ * long        the sequence number of the message
+ * [long]      its send time in epoch milliseconds, if type 1
+ * [bytes]     the sealed message, up to the end of the record, if type 1
+ * </pre>
+ * Replay of a log stops at the first record that is incomplete, too long
+ * or fails its checksum, so the tail torn or left zero-filled by a crash
+ * is lost but never misread.
+ *
+ * Messages are stored in their {@link SmsCodec} encoding, passed through
+ * the seal operation given to the constructor, together with their send
+ * time; Valid_until travels in their headers.  Pass for instance the seal
+ * and unseal of a crypto-utils <code>PkiContext</code> to keep recipients
+ * and bodies encrypted on disk.  By default messages are stored as given.
+ *
+ * As the scheduler calls its observer while locked, the store only queues
+ * the changes there.  They are encoded, sealed and written to the change
+ * log in the background every {@link #SYNC_INTERVAL} milliseconds, and on
+ * {@link #sync()}, and are durable when that returns.  A message is removed
+ * from the store when it is cancelled, or when the scheduler's listener has
+ * returned for it.  This gives at-least-once delivery with a loss window:
+ * <ul>
+ * <li>a crash can lose the messages scheduled up to a sync interval before
+ * it; call {@link #sync()} after scheduling to make them durable before
+ * acknowledging them;</li>
+ * <li>a crash can lose the removals of that interval, and those of messages
+ * whose listener was running, so these are released again on recovery.</li>
+ * </ul>
+ * As snapshots and syncs read the messages concurrently, listeners must not
+ * modify the messages passed to them.
+ *
+ * This class is thread-safe.
+ *
+ * @author zwets
+ */
+public final class SmsSchedulerStore implements SmsScheduler.Observer, Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SmsSchedulerStore.class);
+
+	/** The interval in milliseconds between background syncs of the change log. */
+	public static final long SYNC_INTERVAL = 1000;
+
+	/** The default interval in milliseconds between snapshots. */
+	public static final long DEFAULT_SNAPSHOT_INTERVAL = 5 * 60 * 1000;
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".bin";
+	private static final String LOG_PREFIX = "changes-";
+	private static final String LOG_SUFFIX = ".log";
+
+	private static final int MAGIC = 0x534d5353;
+	private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+
+	/* The length and CRC preceding each log record. */
+	private static final int RECORD_HEADER = 8;
+
+	/* A pending message read back from disk. */
+	private static final class Pending {
+		final Instant sendAt;
+		final SmsMessage message;
+
+		Pending(Instant sendAt, SmsMessage message) {
+			this.sendAt = sendAt;
+			this.message = message;
+		}
+	}
+
+	/* A change to the pending set, queued for the log; task is null for a removal. */
+	private static final class Change {
+		final long sequence;
+		final SmsScheduler.Task task;
+
+		Change(long sequence, SmsScheduler.Task task) {
+			this.sequence = sequence;
+			this.task = task;
+		}
+	}
+
+	private final Path directory;
+	private final long snapshotInterval;
+	private final UnaryOperator<byte[]> seal;
+	private final UnaryOperator<byte[]> unseal;
+
+	/* Guarded by this: the live tasks and their sequence numbers, which
+	 * identify them in the log, and the changes not yet written. */
+	private final Map<SmsScheduler.Task, Long> live = new LinkedHashMap<>();
+	private List<Change> changes = new ArrayList<>();
+	private long nextSequence;
+	private long generation;
+
+	/* Guarded by logLock, which is never taken while holding this: the log. */
+	private final Object logLock = new Object();
+	private FileOutputStream logFile;
+	private DataOutputStream log;
+
+	private ScheduledExecutorService background;
+
+	/**
+	 * Create a store in directory with the default snapshot interval.
+	 * @param directory the store directory, created if absent
+	 */
+	public SmsSchedulerStore(Path directory) {
+		this(directory, DEFAULT_SNAPSHOT_INTERVAL);
+	}
+
+	/**
+	 * Create a store in directory that stores messages as given.
+	 * @param directory the store directory, created if absent
+	 * @param snapshotInterval milliseconds between background snapshots, or 0 for none
+	 */
+	public SmsSchedulerStore(Path directory, long snapshotInterval) {
+		this(directory, snapshotInterval, UnaryOperator.identity(), UnaryOperator.identity());
+	}
+
+	/**
+	 * Create a store in directory that seals the messages it stores.
+	 * @param directory the store directory, created if absent
+	 * @param snapshotInterval milliseconds between background snapshots, or 0 for none
+	 * @param seal a thread-safe operation that encrypts an encoded message
+	 * @param unseal the inverse of seal
+	 */
+	public SmsSchedulerStore(Path directory, long snapshotInterval, UnaryOperator<byte[]> seal, UnaryOperator<byte[]> unseal) {
+		this.directory = directory;
+		this.snapshotInterval = snapshotInterval;
+		this.seal = seal;
+		this.unseal = unseal;
+	}
+
+	/**
+	 * Schedule the stored messages on scheduler, and persist its pending set
+	 * from now on.  Must be called once, before the scheduler is started.
+	 * @param scheduler the scheduler
+	 * @return the number of messages recovered
+	 * @throws IOException when the store cannot be read or its log opened
+	 */
+	public int recover(SmsScheduler scheduler) throws IOException {
+		synchronized (logLock) {
+			if (log != null) {
+				throw new IllegalStateException("Store already recovered");
+			}
+			Files.createDirectories(directory);
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*.tmp")) {
+				for (Path temp : stream) {
+					Files.delete(temp);
+				}
+			}
+
+			TreeMap<Long, Path> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+			TreeMap<Long, Path> logs = list(LOG_PREFIX, LOG_SUFFIX);
+
+			Map<Long, Pending> pending = new LinkedHashMap<>();
+			long first = snapshots.isEmpty() ? 0 : snapshots.lastKey();
+			if (!snapshots.isEmpty()) {
+				readSnapshot(snapshots.lastEntry().getValue(), pending);
+			}
+			for (Path file : logs.tailMap(first).values()) {
+				readLog(file, pending);
+			}
+
+			synchronized (this) {
+				for (Map.Entry<Long, Pending> entry : pending.entrySet()) {
+					SmsScheduler.Task task = scheduler.schedule(entry.getValue().message, entry.getValue().sendAt);
+					live.put(task, entry.getKey());
+					nextSequence = Math.max(nextSequence, entry.getKey() + 1);
+				}
+				generation = Math.max(first, logs.isEmpty() ? 0 : logs.lastKey()) + 1;
+			}
+			openLog(generation);
+			scheduler.setObserver(this);
+
+			background = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread t = new Thread(r, "scheduler-store");
+				t.setDaemon(true);
+				return t;
+			});
+			background.scheduleWithFixedDelay(this::syncQuietly, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+			if (snapshotInterval > 0) {
+				background.scheduleWithFixedDelay(this::snapshotQuietly, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+			}
+
+			LOG.info("Recovered {} scheduled messages from {}", pending.size(), directory);
+			return pending.size();
+		}
+	}
+
+	@Override
+	public synchronized void added(SmsScheduler.Task task) {
+		long sequence = nextSequence++;
+		live.put(task, sequence);
+		changes.add(new Change(sequence, task));
+	}
+
+	@Override
+	public synchronized void removed(SmsScheduler.Task task) {
+		Long sequence = live.remove(task);
+		if (sequence != null) {
+			changes.add(new Change(sequence, null));
+		}
+	}
+
+	/**
+	 * Make all changes so far durable.  Does not block the scheduler.
+	 * @throws IOException when underlying infrastructure throws it
+	 */
+	public void sync() throws IOException {
+		synchronized (logLock) {
+			List<Change> batch;
+			synchronized (this) {
+				batch = takeChanges();
+			}
+			writeChanges(batch);
+			log.flush();
+			logFile.getChannel().force(false);
+		}
+	}
+
+	/**
+	 * Write a snapshot of the pending messages, and delete the files it supersedes.
+	 * Done periodically in the background, but can be invoked directly.
+	 * @throws IOException when underlying infrastructure throws it
+	 */
+	public void snapshot() throws IOException {
+		long snapshotGeneration;
+		List<Map.Entry<SmsScheduler.Task, Long>> tasks;
+		synchronized (logLock) {
+			// The changes up to here go to the old log, those after to the new
+			List<Change> batch;
+			synchronized (this) {
+				batch = takeChanges();
+				tasks = new ArrayList<>(live.entrySet());
+				snapshotGeneration = ++generation;
+			}
+			writeChanges(batch);
+			log.flush();
+			logFile.getChannel().force(false);
+			log.close();
+			openLog(snapshotGeneration);
+		}
+
+		// The snapshot holds what the old logs held, and is complete once renamed
+		Path temp = directory.resolve(SNAPSHOT_PREFIX + "%016x".formatted(snapshotGeneration) + SNAPSHOT_SUFFIX + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(temp.toFile());
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, IO_BUFFER_SIZE))) {
+			out.writeInt(MAGIC);
+			out.writeInt(tasks.size());
+			for (Map.Entry<SmsScheduler.Task, Long> entry : tasks) {
+				out.writeLong(entry.getValue());
+				writePending(out, entry.getKey());
+			}
+			out.flush();
+			file.getChannel().force(false);
+		}
+		Files.move(temp, fileName(SNAPSHOT_PREFIX, snapshotGeneration, SNAPSHOT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+
+		for (Path old : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(snapshotGeneration).values()) {
+			Files.deleteIfExists(old);
+		}
+		for (Path old : list(LOG_PREFIX, LOG_SUFFIX).headMap(snapshotGeneration).values()) {
+			Files.deleteIfExists(old);
+		}
+		LOG.debug("Wrote snapshot of {} scheduled messages", tasks.size());
+	}
+
+	/**
+	 * Stop the background syncs and snapshots, and sync the change log.
+	 * Close the scheduler first, so that no more changes are made.
+	 */
+	@Override
+	public void close() {
+		if (background != null) {
+			background.shutdown();
+			try {
+				background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (logLock) {
+			if (log != null) {
+				try {
+					sync();
+					log.close();
+				} catch (IOException e) {
+					LOG.error("Failed to close scheduler store log: {}", e.getMessage());
+				}
+				log = null;
+			}
+		}
+	}
+
+	private void syncQuietly() {
+		try {
+			sync();
+		} catch (IOException e) {
+			LOG.error("Failed to sync scheduler store log: {}", e.getMessage());
+		}
+	}
+
+	private void snapshotQuietly() {
+		try {
+			snapshot();
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Failed to snapshot scheduled messages: {}", e.getMessage());
+		}
+	}
+
+	/* Returns the queued changes and starts a new queue; called holding this. */
+	private List<Change> takeChanges() {
+		List<Change> batch = changes;
+		changes = new ArrayList<>();
+		return batch;
+	}
+
+	/* Appends batch to the log; called holding logLock but not this. */
+	private void writeChanges(List<Change> batch) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+		for (Change change : batch) {
+			bytes.reset();
+			if (change.task == null) {
+				payload.writeByte(REMOVE);
+				payload.writeLong(change.sequence);
+			}
+			else {
+				try {
+					byte[] record = record(change.task);
+					payload.writeByte(ADD);
+					payload.writeLong(change.sequence);
+					payload.writeLong(change.task.getSendAt().toEpochMilli());
+					payload.write(record);
+				} catch (RuntimeException e) {
+					LOG.error("Cannot store scheduled message {}: {}", change.task.getMessage().getHeader(SmsUtil.HEADER.MESSAGE_ID), e.getMessage());
+					continue;
+				}
+			}
+			byte[] record = bytes.toByteArray();
+			log.writeInt(record.length);
+			log.writeInt(checksum(record, record.length));
+			log.write(record);
+		}
+	}
+
+	private void writePending(DataOutputStream out, SmsScheduler.Task task) throws IOException {
+		byte[] record = record(task);
+		out.writeLong(task.getSendAt().toEpochMilli());
+		out.writeInt(record.length);
+		out.write(record);
+	}
+
+	/* The encoded and sealed message of task. */
+	private byte[] record(SmsScheduler.Task task) {
+		return seal.apply(SmsCodec.encode(task.getMessage()));
+	}
+
+	private void openLog(long generation) throws IOException {
+		logFile = new FileOutputStream(fileName(LOG_PREFIX, generation, LOG_SUFFIX).toFile(), true);
+		log = new DataOutputStream(new BufferedOutputStream(logFile, IO_BUFFER_SIZE));
+		syncDirectory();
+	}
+
+	/* Makes the creation and renaming of files in the directory durable. */
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			LOG.debug("Cannot sync directory {}: {}", directory, e.getMessage());
+		}
+	}
+
+	private void readSnapshot(Path file, Map<Long, Pending> pending) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), IO_BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC) {
+				throw new SmsException("Not a scheduler snapshot: " + file);
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; ++i) {
+				long sequence = in.readLong();
+				pending.put(sequence, readPending(in));
+			}
+		}
+	}
+
+	/* Applies the log to pending, stopping at a record torn by a crash. */
+	private void readLog(Path file, Map<Long, Pending> pending) throws IOException {
+		long remaining = Files.size(file);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), IO_BUFFER_SIZE))) {
+			byte[] record = new byte[0];
+			while (remaining > 0) {
+				int length = in.readInt();
+				int crc = in.readInt();
+				if (length < 1 + Long.BYTES || length > remaining - RECORD_HEADER) {
+					break;
+				}
+				if (record.length < length) {
+					record = new byte[length];
+				}
+				in.readFully(record, 0, length);
+				if (crc != checksum(record, length)) {
+					break;
+				}
+				remaining -= RECORD_HEADER + length;
+
+				DataInputStream payload = new DataInputStream(new ByteArrayInputStream(record, 0, length));
+				int type = payload.readByte();
+				long sequence = payload.readLong();
+				if (type == ADD) {
+					Instant sendAt = Instant.ofEpochMilli(payload.readLong());
+					pending.put(sequence, new Pending(sendAt, SmsCodec.decode(unseal.apply(payload.readAllBytes()))));
+				}
+				else if (type == REMOVE) {
+					pending.remove(sequence);
+				}
+				else {
+					throw new SmsException("Invalid record type %d in %s".formatted(type, file));
+				}
+			}
+		} catch (EOFException e) {
+			// Torn in the record header
+		}
+		if (remaining > 0) {
+			LOG.warn("Ignoring {} bytes of incomplete records at end of {}", remaining, file);
+		}
+	}
+
+	private Pending readPending(DataInputStream in) throws IOException {
+		Instant sendAt = Instant.ofEpochMilli(in.readLong());
+		byte[] record = new byte[in.readInt()];
+		in.readFully(record);
+		return new Pending(sendAt, SmsCodec.decode(unseal.apply(record)));
+	}
+
+	private static int checksum(byte[] bytes, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue();
+	}
+
+	private Path fileName(String prefix, long generation, String suffix) {
+		return directory.resolve(prefix + "%016x".formatted(generation) + suffix);
+	}
+
+	/* The files with prefix and suffix, by generation. */
+	private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException {
+		TreeMap<Long, Path> files = new TreeMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				try {
+					files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()), 16), file);
+				} catch (NumberFormatException e) {
+					LOG.warn("Ignoring unexpected file in {}: {}", directory, name);
+				}
+			}
+		}
+		return files;
+	}
+}
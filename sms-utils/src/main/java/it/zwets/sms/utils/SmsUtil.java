@@ -123,6 +123,16 @@ public class SmsUtil {
 		return new SmsUtil(message);
 	}
 
+	/**
+	 * Operate on a mutable copy of an immutable message.
+	 * Use {@link #asImmutableSmsMessage()} to obtain the edited message.
+	 * @param message the message to copy
+	 * @return an SmsUtil managing the copy
+	 */
+	public static SmsUtil editMessage(ImmutableSmsMessage message) {
+		return new SmsUtil(message.toSmsMessage());
+	}
+
 	/**
 	 * Create new message parsed from the given messageString
 	 * @param messageString the on-the-wire representation of the message
@@ -166,6 +176,15 @@ public class SmsUtil {
 		return getMessage();
 	}
 
+	/**
+	 * The message as an immutable copy, which can be shared between threads.
+	 * Further changes through this SmsUtil do not affect the copy.
+	 * @return an immutable copy of the message
+	 */
+	public ImmutableSmsMessage asImmutableSmsMessage() {
+		return ImmutableSmsMessage.of(getMessage());
+	}
+
 	/**
 	 * Return true if message has header
 	 * @param header the header
@@ -205,6 +224,27 @@ public class SmsUtil {
 		return this;
 	}
 
+	/**
+	 * Add or set header to a timestamp.
+	 * @param header name of the header
+	 * @param instant the time to set
+	 * @return the SmsUtil instance wrapping the instance
+	 */
+	public SmsUtil setTimestampHeader(String header, Instant instant) {
+		getMessage().setTimestampHeader(header, instant);
+		return this;
+	}
+
+	/**
+	 * Get a timestamp header or null if it does not exist.
+	 * @param header the header
+	 * @return the time in the header or null
+	 * @throws SmsException when the header is not a valid timestamp
+	 */
+	public Instant getTimestampHeader(String header) {
+		return getMessage().getTimestampHeader(header);
+	}
+
 	/**
 	 * Add or set header to value.
 	 * @param name
@@ -280,7 +320,7 @@ public class SmsUtil {
      * @param minutes a positive number of whole minutes
      * @return a number in the range 0..255
      */
-    private static int convertToValidity(int minutes) {
+    static int convertToValidity(int minutes) {
 
         final int FIVE = 5;
         final int HALF_HOUR = 30;
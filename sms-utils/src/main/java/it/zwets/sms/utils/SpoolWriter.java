@@ -0,0 +1,240 @@
+package it.zwets.sms.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Crash-safe writer of message files to a spool directory.
+ *
+ * Each message is written to a temporary file in the directory, whose name
+ * starts with {@link #TEMP_PREFIX}.  Like other files, these are created
+ * with the default permissions, so that the umask applies.  Messages are
+ * committed in batches: the temporary files are fsync-ed, atomically
+ * renamed to their final names, and then the directory is fsync-ed once
+ * for the whole batch.  A crash therefore never leaves a partially written
+ * message under its final name, and durability costs one round of syncs
+ * per batch instead of per message.
+ *
+ * A batch is committed when it reaches the batch size, when {@link #commit()}
+ * is called, and on close.  Readers of the spool directory must ignore files
+ * whose name starts with {@link #TEMP_PREFIX}; {@link #recover(Path)} removes
+ * those left behind by a crash.
+ *
+ * This class is thread-safe.
+ *
+ * @author zwets
+ */
+public final class SpoolWriter implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SpoolWriter.class);
+
+	/** The prefix of the names of temporary files in the spool directory. */
+	public static final String TEMP_PREFIX = ".";
+
+	/** The default number of messages per batch. */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private final Path directory;
+	private final int batchSize;
+	private final List<Pending> pending = new ArrayList<>();
+
+	/* A message written to a temporary file, awaiting commit. */
+	private static final class Pending {
+		final Path temp;
+		final Path target;
+		final FileChannel channel;
+
+		Pending(Path temp, Path target, FileChannel channel) {
+			this.temp = temp;
+			this.target = target;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * Create a writer on directory with the default batch size.
+	 * @param directory the spool directory
+	 */
+	public SpoolWriter(Path directory) {
+		this(directory, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Create a writer on directory.
+	 * @param directory the spool directory
+	 * @param batchSize the number of written messages at which a commit is done
+	 */
+	public SpoolWriter(Path directory, int batchSize) {
+		this.directory = directory;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Write message to a temporary file, to appear under name on commit.
+	 * @param name the file name in the spool directory, must not start with {@link #TEMP_PREFIX}
+	 * @param message the message to write
+	 * @throws IOException when underlying infrastructure throws it
+	 * @throws SmsException when name is not a plain file name
+	 */
+	public synchronized void write(String name, SmsMessage message) throws IOException {
+		if (name.startsWith(TEMP_PREFIX)) {
+			throw new SmsException("Invalid spool file name: " + name);
+		}
+		stage(name, message);
+	}
+
+	/* Writes message to a new temporary file, and adds it to the pending batch. */
+	private synchronized void stage(String name, SmsMessage message) throws IOException {
+		Path target = directory.resolve(name);
+		if (!directory.equals(target.getParent())) {
+			throw new SmsException("Invalid spool file name: " + name);
+		}
+
+		Path temp;
+		FileChannel channel;
+		while (true) {
+			temp = directory.resolve("%s%s-%x.tmp".formatted(TEMP_PREFIX, name, ThreadLocalRandom.current().nextLong()));
+			try {
+				channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				break;
+			} catch (FileAlreadyExistsException e) {
+				// Try another name
+			}
+		}
+
+		try {
+			writeFully(channel, message);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		pending.add(new Pending(temp, target, channel));
+
+		if (pending.size() >= batchSize) {
+			commit();
+		}
+	}
+
+	/**
+	 * Make all messages written since the last commit durable under their final names.
+	 * If this throws, the uncommitted temporary files are removed, but messages renamed
+	 * before the failure remain.
+	 * @return the number of messages committed
+	 * @throws IOException when underlying infrastructure throws it
+	 */
+	public synchronized int commit() throws IOException {
+		if (pending.isEmpty()) {
+			return 0;
+		}
+
+		try {
+			for (Pending p : pending) {
+				p.channel.force(true);
+				p.channel.close();
+			}
+			for (Pending p : pending) {
+				Files.move(p.temp, p.target, StandardCopyOption.ATOMIC_MOVE);
+			}
+			syncDirectory(directory);
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+
+		int count = pending.size();
+		pending.clear();
+		return count;
+	}
+
+	/**
+	 * Discard all messages written since the last commit.
+	 */
+	public synchronized void abort() {
+		for (Pending p : pending) {
+			try {
+				p.channel.close();
+				Files.deleteIfExists(p.temp);
+			} catch (IOException e) {
+				LOG.warn("Failed to remove temporary spool file {}: {}", p.temp, e.getMessage());
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Commit any pending messages.
+	 * @throws IOException when underlying infrastructure throws it
+	 */
+	@Override
+	public void close() throws IOException {
+		commit();
+	}
+
+	/**
+	 * Remove the temporary files left in directory by an interrupted writer.
+	 * Must not be called while a writer is active on the directory.
+	 * @param directory the spool directory
+	 * @return the number of files removed
+	 * @throws IOException when underlying infrastructure throws it
+	 */
+	public static int recover(Path directory) throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, TEMP_PREFIX + "*.tmp")) {
+			for (Path temp : stream) {
+				Files.deleteIfExists(temp);
+				++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Write message to path crash-safely: through a synced temporary file
+	 * that is atomically renamed to path, after which the directory is synced.
+	 * Unlike with {@link #write(String, SmsMessage)}, the file name may
+	 * start with {@link #TEMP_PREFIX}.
+	 * @param path the file to write
+	 * @param message the message to write
+	 * @throws IOException when underlying infrastructure throws it
+	 */
+	public static void writeFile(Path path, SmsMessage message) throws IOException {
+		Path directory = path.toAbsolutePath().getParent();
+		try (SpoolWriter writer = new SpoolWriter(directory, 1)) {
+			writer.stage(path.getFileName().toString(), message);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, SmsMessage message) throws IOException {
+		// The default encoder rejects unpaired surrogates, like the Writer did before
+		ByteBuffer bytes = StandardCharsets.UTF_8.newEncoder().encode(CharBuffer.wrap(message.asString()));
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	/* Syncs the directory entries; not all platforms support this, so failure is not an error. */
+	private static void syncDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			LOG.debug("Cannot sync directory {}: {}", directory, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,436 @@
+package it.zwets.sms.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives an SMSTools3-style spool directory.
+ *
+ * The spooler picks up every message file that appears in its source
+ * directory, parses it and passes it to a {@link Handler}.  When the handler
+ * returns, the file is moved to the done directory; when parsing fails or the
+ * handler throws, it is moved to the failed directory.  For the SMSTools3
+ * layout, a spooler for outgoing messages is created with
+ * <code>new Spooler(spool.resolve("outgoing"), spool.resolve("sent"), spool.resolve("failed"), handler, threads)</code>.
+ *
+ * New files are noticed through a {@link WatchService}, and additionally by
+ * scanning the directory at start, on watch overflow, at every scan interval,
+ * and always if the file system cannot be watched.  When the directory cannot
+ * be read, the spooler logs this and retries at the next scan interval.
+ *
+ * A file is claimed by atomically renaming it to a name that starts with
+ * {@link SpoolWriter#TEMP_PREFIX} and ends with its owner, the process ID and
+ * host of the spooler, and {@link #CLAIM_SUFFIX}.  Several spoolers can thus
+ * share a source directory, and files written through a {@link SpoolWriter}
+ * are never picked up half-written.
+ *
+ * Claimed files are processed on a fixed pool of worker threads.  The number
+ * of files claimed but not yet processed is bounded, so the spooler does not
+ * run ahead of its handler.  When a spooler starts, it releases the files
+ * left claimed by crashed spoolers: those whose owner is a process on this
+ * host that no longer runs.  Claims by live processes, and by processes on
+ * other hosts, are left alone.
+ *
+ * @author zwets
+ */
+public final class Spooler implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Spooler.class);
+
+	/** The suffix added to the names of claimed files. */
+	public static final String CLAIM_SUFFIX = ".claimed";
+
+	/** The default interval in milliseconds between directory scans. */
+	public static final long DEFAULT_SCAN_INTERVAL = 5000;
+
+	/* Separates the file name from the owner in the name of a claimed file. */
+	private static final char OWNER_SEPARATOR = '~';
+
+	/* The host and owner of the claims made by this process. */
+	private static final String HOST = hostName();
+	static final String OWNER = ProcessHandle.current().pid() + "@" + HOST;
+
+	/**
+	 * Receives the messages picked up by the spooler.
+	 * Implementations must be thread-safe, as they are called from all workers.
+	 */
+	@FunctionalInterface
+	public interface Handler {
+
+		/**
+		 * Handle message, read from the spool file with the given name.
+		 * @param name the original name of the spool file
+		 * @param message the parsed message
+		 * @throws Exception to have the file moved to the failed directory
+		 */
+		void handle(String name, SmsMessage message) throws Exception;
+	}
+
+	private final Path source;
+	private final Path done;
+	private final Path failed;
+	private final Handler handler;
+	private final int threads;
+	private final Semaphore slots;
+	private volatile long scanInterval = DEFAULT_SCAN_INTERVAL;
+
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	private ExecutorService workers;
+	private Thread watcher;
+	private WatchService watchService;
+	private volatile boolean running;
+
+	/**
+	 * Create a spooler on source.  Either of done and failed can be null, to
+	 * have the files deleted instead of moved.
+	 * @param source the directory to pick up message files from
+	 * @param done the directory to move handled files to, or null
+	 * @param failed the directory to move failed files to, or null
+	 * @param handler the handler to pass messages to
+	 * @param threads the number of worker threads
+	 */
+	public Spooler(Path source, Path done, Path failed, Handler handler, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: %d".formatted(threads));
+		}
+		this.source = source;
+		this.done = done;
+		this.failed = failed;
+		this.handler = handler;
+		this.threads = threads;
+		this.slots = new Semaphore(4 * threads);
+	}
+
+	/**
+	 * Set the interval between directory scans.  Scanning catches files that
+	 * the watch service missed, and is the only means on file systems that
+	 * cannot be watched.
+	 * @param millis the interval in milliseconds
+	 */
+	public void setScanInterval(long millis) {
+		if (millis < 1) {
+			throw new IllegalArgumentException("scan interval must be positive: %d".formatted(millis));
+		}
+		this.scanInterval = millis;
+	}
+
+	/**
+	 * Release the files left claimed by spoolers that no longer run, and start picking up files.
+	 * @throws IOException when the source directory cannot be read
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			throw new IllegalStateException("Spooler already started");
+		}
+
+		release();
+
+		try {
+			watchService = source.getFileSystem().newWatchService();
+			source.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+		} catch (IOException | UnsupportedOperationException e) {
+			LOG.info("Cannot watch {}, falling back to scanning: {}", source, e.getMessage());
+			closeWatchService();
+		}
+
+		workers = Executors.newFixedThreadPool(threads, (r) -> {
+			Thread t = new Thread(r, "spooler-worker");
+			t.setDaemon(true);
+			return t;
+		});
+
+		running = true;
+		watcher = new Thread(this::watch, "spooler-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Stop picking up files, and wait for the claimed files to be processed.
+	 */
+	@Override
+	public synchronized void close() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		closeWatchService();
+		watcher.interrupt();
+
+		try {
+			watcher.join();
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * The number of files handled successfully.
+	 * @return the count since creation
+	 */
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	/**
+	 * The number of files that failed to parse or were rejected by the handler.
+	 * @return the count since creation
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * Pick up the files currently in source on the calling thread, without
+	 * starting the spooler.  For use from batch jobs and tests.
+	 * @return the number of files processed
+	 * @throws IOException when the source directory cannot be read
+	 */
+	public long drain() throws IOException {
+		long count = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+			for (Path file : stream) {
+				Path claimed = claim(file.getFileName().toString());
+				if (claimed != null) {
+					process(file.getFileName().toString(), claimed);
+					++count;
+				}
+			}
+		}
+		return count;
+	}
+
+	/* Runs on the watcher thread until closed. */
+	private void watch() {
+		WatchService events = watchService;
+		try {
+			long lastScan = System.nanoTime();
+			rescan();
+			while (running) {
+				// Scan at every interval, also while events keep coming in
+				long wait = scanInterval - (System.nanoTime() - lastScan) / 1000000;
+				WatchKey key = null;
+				if (wait > 0) {
+					if (events == null) {
+						Thread.sleep(wait);
+					} else {
+						key = events.poll(wait, TimeUnit.MILLISECONDS);
+					}
+				}
+				if (key == null) {
+					lastScan = System.nanoTime();
+					rescan();
+					continue;
+				}
+				boolean overflow = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						overflow = true;
+					} else {
+						dispatch(((Path) event.context()).toString());
+					}
+				}
+				key.reset();
+				if (overflow) {
+					lastScan = System.nanoTime();
+					rescan();
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed
+		}
+	}
+
+	/* Scans, leaving failures to read the directory to be retried at the next interval. */
+	private void rescan() throws InterruptedException {
+		try {
+			scan();
+		} catch (IOException e) {
+			LOG.warn("Cannot scan {}, retrying in {} ms: {}", source, scanInterval, e.getMessage());
+		}
+	}
+
+	private void scan() throws IOException, InterruptedException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+			for (Path file : stream) {
+				if (!running) {
+					return;
+				}
+				dispatch(file.getFileName().toString());
+			}
+		}
+	}
+
+	/* Claims the file and hands it to a worker, blocking while all slots are taken. */
+	private void dispatch(String name) throws InterruptedException {
+		if (name.startsWith(SpoolWriter.TEMP_PREFIX)) {
+			return;
+		}
+
+		slots.acquire();
+		Path claimed = null;
+		try {
+			claimed = claim(name);
+		} catch (IOException e) {
+			LOG.warn("Cannot claim spool file {}: {}", name, e.getMessage());
+		}
+		if (claimed == null) {
+			slots.release();
+			return;
+		}
+
+		Path file = claimed;
+		workers.execute(() -> {
+			try {
+				process(name, file);
+			} finally {
+				slots.release();
+			}
+		});
+	}
+
+	/* Returns the claimed path, or null if the file is not ours to take.
+	 * Claims are made by the watcher or on drain, so an existing claim of
+	 * ours is one still being processed: a file that arrived anew under the
+	 * same name is left for a later scan, as moving it would replace that
+	 * claim. */
+	private Path claim(String name) throws IOException {
+		if (name.startsWith(SpoolWriter.TEMP_PREFIX)) {
+			return null;
+		}
+		Path file = source.resolve(name);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		Path claimed = source.resolve(claimName(name, OWNER));
+		if (Files.exists(claimed)) {
+			return null;
+		}
+		try {
+			Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+			return claimed;
+		} catch (NoSuchFileException e) {
+			// Taken by another spooler
+			return null;
+		}
+	}
+
+	private void process(String name, Path claimed) {
+		SmsMessage message = new SmsMessage();
+		try {
+			message.read(claimed);
+			handler.handle(name, message);
+			processedCount.incrementAndGet();
+			finish(claimed, done, name);
+		} catch (Exception e) {
+			LOG.warn("Failed to process spool file {}: {}", name, e.getMessage());
+			failedCount.incrementAndGet();
+			finish(claimed, failed, name);
+		}
+	}
+
+	/* Moves the claimed file to name in target, or deletes it if target is null. */
+	private void finish(Path claimed, Path target, String name) {
+		try {
+			if (target == null) {
+				Files.deleteIfExists(claimed);
+			} else {
+				move(claimed, target.resolve(name));
+			}
+		} catch (IOException e) {
+			LOG.error("Cannot move spool file {} out of {}: {}", name, source, e.getMessage());
+		}
+	}
+
+	/* Moves back the files left claimed by spoolers that are no longer running. */
+	private void release() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(source, SpoolWriter.TEMP_PREFIX + "*" + CLAIM_SUFFIX)) {
+			for (Path claimed : stream) {
+				String claim = claimed.getFileName().toString();
+				claim = claim.substring(SpoolWriter.TEMP_PREFIX.length(), claim.length() - CLAIM_SUFFIX.length());
+				int separator = claim.lastIndexOf(OWNER_SEPARATOR);
+				if (separator < 0) {
+					LOG.warn("Ignoring claimed spool file without owner: {}", claimed.getFileName());
+					continue;
+				}
+				String name = claim.substring(0, separator);
+				String owner = claim.substring(separator + 1);
+				if (isStale(owner)) {
+					LOG.info("Releasing spool file {} claimed by {}, which no longer runs", name, owner);
+					move(claimed, source.resolve(name));
+				}
+			}
+		}
+	}
+
+	/* Whether owner is a process on this host that no longer runs. */
+	private static boolean isStale(String owner) {
+		int at = owner.indexOf('@');
+		if (at < 0 || !owner.substring(at + 1).equals(HOST)) {
+			return false;
+		}
+		try {
+			return ProcessHandle.of(Long.parseLong(owner.substring(0, at))).isEmpty();
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/* The name under which owner claims the file name. */
+	static String claimName(String name, String owner) {
+		return SpoolWriter.TEMP_PREFIX + name + OWNER_SEPARATOR + owner + CLAIM_SUFFIX;
+	}
+
+	private static String hostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName().replace(OWNER_SEPARATOR, '_').replace('/', '_');
+		} catch (IOException e) {
+			return "localhost";
+		}
+	}
+
+	private static void move(Path from, Path to) throws IOException {
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			// Target directory on another file system
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void closeWatchService() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				LOG.debug("Failed to close watch service: {}", e.getMessage());
+			}
+			watchService = null;
+		}
+	}
+}
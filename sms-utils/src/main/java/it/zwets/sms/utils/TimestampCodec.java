@@ -0,0 +1,148 @@
+package it.zwets.sms.utils;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Formats and parses the timestamps in message headers such as Sent and
+ * Created, which have the fixed layout <code>yy-MM-dd HH:mm:ss</code> in
+ * local time.
+ *
+ * Unlike a shared SimpleDateFormat, this class is thread-safe and does not
+ * lock.  As headers are mostly stamped with the current time, the last
+ * formatted second is memoised, so that stamping a batch of messages formats
+ * only once.  Parsing reads the digits at their fixed positions directly.
+ *
+ * Two-digit years are read as 1970 to 2069.
+ *
+ * @author zwets
+ */
+public final class TimestampCodec {
+
+	/** The layout of timestamps, in SimpleDateFormat notation. */
+	public static final String PATTERN = "yy-MM-dd HH:mm:ss";
+
+	private static final int LENGTH = PATTERN.length();
+
+	/* Two-digit years at or above this are in the 1900s. */
+	private static final int PIVOT_YEAR = 70;
+
+	private static volatile TimestampCodec systemDefault;
+
+	/* The last second formatted, and its text. */
+	private static final class Memo {
+		final long second;
+		final String text;
+
+		Memo(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+
+	private final ZoneId zone;
+	private volatile Memo memo = new Memo(Long.MIN_VALUE, null);
+
+	/**
+	 * Create a codec for timestamps in zone.
+	 * @param zone the time zone of the timestamps
+	 */
+	public TimestampCodec(ZoneId zone) {
+		this.zone = zone;
+	}
+
+	/**
+	 * The codec for the JVM's default time zone, which is what headers were written in.
+	 * @return the shared instance for the zone
+	 */
+	public static TimestampCodec systemDefault() {
+		ZoneId zone = ZoneId.systemDefault();
+		TimestampCodec codec = systemDefault;
+		if (codec == null || !codec.zone.equals(zone)) {
+			systemDefault = codec = new TimestampCodec(zone);
+		}
+		return codec;
+	}
+
+	/**
+	 * The time zone of the timestamps.
+	 * @return the zone
+	 */
+	public ZoneId getZone() {
+		return zone;
+	}
+
+	/**
+	 * Format instant, truncated to the second.
+	 * @param instant the instant
+	 * @return the timestamp text
+	 */
+	public String format(Instant instant) {
+		long second = instant.getEpochSecond();
+		Memo last = memo;
+		if (last.second == second) {
+			return last.text;
+		}
+
+		ZoneOffset offset = zone.getRules().getOffset(instant);
+		LocalDateTime time = LocalDateTime.ofEpochSecond(second, 0, offset);
+
+		char[] chars = new char[LENGTH];
+		put(chars, 0, Math.floorMod(time.getYear(), 100));
+		chars[2] = '-';
+		put(chars, 3, time.getMonthValue());
+		chars[5] = '-';
+		put(chars, 6, time.getDayOfMonth());
+		chars[8] = ' ';
+		put(chars, 9, time.getHour());
+		chars[11] = ':';
+		put(chars, 12, time.getMinute());
+		chars[14] = ':';
+		put(chars, 15, time.getSecond());
+
+		String text = new String(chars);
+		memo = new Memo(second, text);
+		return text;
+	}
+
+	/**
+	 * Parse a timestamp.
+	 * @param text the timestamp text
+	 * @return the instant it denotes
+	 * @throws SmsException if text is not a valid timestamp
+	 */
+	public Instant parse(CharSequence text) {
+		if (text.length() != LENGTH || text.charAt(2) != '-' || text.charAt(5) != '-'
+				|| text.charAt(8) != ' ' || text.charAt(11) != ':' || text.charAt(14) != ':') {
+			throw new SmsException("Invalid timestamp, expected %s: %s".formatted(PATTERN, text));
+		}
+
+		try {
+			int year = digits(text, 0);
+			year += year < PIVOT_YEAR ? 2000 : 1900;
+			LocalDateTime time = LocalDateTime.of(year, digits(text, 3), digits(text, 6),
+					digits(text, 9), digits(text, 12), digits(text, 15));
+			// Local times repeated when clocks go back are read as the later one, as SimpleDateFormat does
+			return time.atZone(zone).withLaterOffsetAtOverlap().toInstant();
+		} catch (DateTimeException e) {
+			throw new SmsException("Invalid timestamp: %s: %s".formatted(text, e.getMessage()), e);
+		}
+	}
+
+	private static void put(char[] chars, int pos, int value) {
+		chars[pos] = (char) ('0' + value / 10);
+		chars[pos + 1] = (char) ('0' + value % 10);
+	}
+
+	private static int digits(CharSequence text, int pos) {
+		int hi = text.charAt(pos) - '0';
+		int lo = text.charAt(pos + 1) - '0';
+		if (hi < 0 || hi > 9 || lo < 0 || lo > 9) {
+			throw new SmsException("Invalid timestamp, expected %s: %s".formatted(PATTERN, text));
+		}
+		return hi * 10 + lo;
+	}
+}
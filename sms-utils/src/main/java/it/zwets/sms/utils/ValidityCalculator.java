@@ -0,0 +1,152 @@
+package it.zwets.sms.utils;
+
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.zwets.sms.utils.SmsUtil.HEADER;
+
+/**
+ * Computes the SMS validity of messages from their Valid_until header.
+ *
+ * Gives the same results as {@link SmsUtil#computeValidity(String, boolean)},
+ * but cheaply enough to run over every message in a large batch: the time
+ * comes from an injected clock, which can be a {@link CoarseClock}, and is
+ * read once per batch; the header is parsed once per message and cached on
+ * it; the minutes-to-validity mapping is a table lookup; and nothing is
+ * logged per message.
+ *
+ * In mock mode, as with the mock flag of computeValidity, a second of the
+ * remaining time counts as a minute of validity.
+ *
+ * Instances are thread-safe, but like SmsMessage, a message must not be
+ * used by several threads at once.
+ *
+ * @author zwets
+ */
+public final class ValidityCalculator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ValidityCalculator.class);
+
+	/** The validity computed for a message that has expired, or has an invalid Valid_until. */
+	public static final int EXPIRED = -1;
+
+	/** The validity computed for a message that has no Valid_until header. */
+	public static final int NONE = -2;
+
+	private static final int DAY = 24 * 60;
+	private static final int WEEK = 7 * DAY;
+
+	/* Validities by whole minute up to 30 days, beyond which they change only weekly.
+	 * Stored as unsigned bytes, with EXPIRED as 255, which does not occur in this range. */
+	private static final int TABLE_MINUTES = 30 * DAY;
+	private static final byte[] TABLE = new byte[TABLE_MINUTES + 1];
+
+	static {
+		for (int minutes = 0; minutes <= TABLE_MINUTES; ++minutes) {
+			TABLE[minutes] = (byte) SmsUtil.convertToValidity(minutes);
+		}
+	}
+
+	private final Clock clock;
+	private final long unitSeconds;
+
+	/**
+	 * Create a calculator on clock.
+	 * @param clock the clock to compute the remaining time by
+	 */
+	public ValidityCalculator(Clock clock) {
+		this(clock, false);
+	}
+
+	/**
+	 * Create a calculator on clock, optionally in mock mode.
+	 * @param clock the clock to compute the remaining time by
+	 * @param mock whether to count seconds as minutes
+	 */
+	public ValidityCalculator(Clock clock, boolean mock) {
+		this.clock = clock;
+		this.unitSeconds = mock ? 1 : Duration.ofMinutes(1).getSeconds();
+	}
+
+	/**
+	 * Compute the validity of message.
+	 * @param message the message
+	 * @return the validity value (0..255), or {@link #EXPIRED}, or {@link #NONE}
+	 */
+	public int computeValidity(SmsMessage message) {
+		return computeValidity(message, clock.millis());
+	}
+
+	/**
+	 * Compute the validities of messages, all at the same instant.
+	 * @param messages the messages
+	 * @return the validities, each as for {@link #computeValidity(SmsMessage)}
+	 */
+	public int[] computeValidity(List<? extends SmsMessage> messages) {
+		int[] validities = new int[messages.size()];
+		computeValidity(messages, validities);
+		return validities;
+	}
+
+	/**
+	 * Compute the validities of messages, all at the same instant, into validities.
+	 * @param messages the messages
+	 * @param validities receives the validity of each message at the same index
+	 * @return the number of messages that have expired
+	 */
+	public int computeValidity(List<? extends SmsMessage> messages, int[] validities) {
+		long now = clock.millis();
+		int expired = 0;
+		int i = 0;
+		for (SmsMessage message : messages) {
+			if ((validities[i++] = computeValidity(message, now)) == EXPIRED) {
+				++expired;
+			}
+		}
+		if (expired > 0) {
+			LOG.debug("{} of {} messages expired", expired, messages.size());
+		}
+		return expired;
+	}
+
+	/**
+	 * Convert a number of minutes to the nearest SMS validity not exceeding it,
+	 * as described at {@link SmsUtil#computeValidity(String, boolean)}.
+	 * @param minutes the number of minutes
+	 * @return a number in the range 0..255, or {@link #EXPIRED}
+	 */
+	public static int toValidity(long minutes) {
+		if (minutes < 0) {
+			return EXPIRED;
+		}
+		else if (minutes <= TABLE_MINUTES) {
+			int validity = TABLE[(int) minutes] & 0xff;
+			return validity == 0xff ? EXPIRED : validity;
+		}
+		else {
+			return minutes > 63 * WEEK ? 255 : (int) (196 + (minutes - 4 * WEEK) / WEEK);
+		}
+	}
+
+	private int computeValidity(SmsMessage message, long nowMillis) {
+		long validUntil;
+		try {
+			validUntil = message.getValidUntilSeconds();
+		} catch (DateTimeException e) {
+			LOG.error("failed to parse Valid_until ISO date: {}: {}", message.getHeader(HEADER.VALID_UNTIL), e.getMessage());
+			return EXPIRED;
+		}
+		if (validUntil == Long.MIN_VALUE) {
+			return NONE;
+		}
+
+		// Truncates towards zero, like Instant.until
+		long secondsLeft = (validUntil * 1000 - nowMillis) / 1000;
+		return toValidity(secondsLeft / unitSeconds);
+	}
+}
@@ -0,0 +1,78 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class CoarseClockTest {
+
+	private final AtomicLong millis = new AtomicLong(1000);
+
+	private final Clock source = new Clock() {
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(millis.get());
+		}
+	};
+
+	@Test
+	public void testSamplesSource() throws InterruptedException {
+		try (CoarseClock clock = new CoarseClock(source, 5)) {
+			assertEquals(1000, clock.millis());
+			millis.set(2000);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (clock.millis() != 2000 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(Instant.ofEpochMilli(2000), clock.instant());
+
+			Clock zoned = clock.withZone(ZoneId.of("Europe/Rome"));
+			assertEquals(2000, zoned.millis());
+			assertSame(clock, clock.withZone(ZoneOffset.UTC));
+		}
+	}
+
+	@Test
+	public void testClose() {
+		CoarseClock clock = new CoarseClock(source, 60000);
+		Clock zoned = clock.withZone(ZoneId.of("Europe/Rome"));
+		millis.set(2000);
+		assertEquals(1000, zoned.millis());
+
+		// Once closed, the clocks read the source as it will not be sampled again
+		clock.close();
+		clock.close();
+		assertEquals(2000, clock.millis());
+		assertEquals(2000, zoned.millis());
+	}
+
+	@Test
+	public void testSystemUTC() {
+		CoarseClock clock = CoarseClock.systemUTC();
+		assertSame(clock, CoarseClock.systemUTC());
+		assertTrue(Math.abs(clock.millis() - System.currentTimeMillis()) < 1000);
+
+		// The shared clock ignores close
+		clock.close();
+		assertSame(clock, CoarseClock.systemUTC());
+		assertTrue(Math.abs(clock.millis() - System.currentTimeMillis()) < 1000);
+	}
+}
@@ -0,0 +1,124 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ImmutableSmsMessageTest {
+
+	@Test
+	public void testEmpty() {
+		ImmutableSmsMessage msg = ImmutableSmsMessage.EMPTY;
+		assertEquals("", msg.getBody());
+		assertEquals(0, msg.getHeaders().size());
+		assertEquals("\n", msg.asString());
+	}
+
+	@Test
+	public void testWithHeaderLeavesOriginal() {
+		ImmutableSmsMessage m1 = ImmutableSmsMessage.EMPTY.withHeader("To", "1234").withBody("Hello");
+		ImmutableSmsMessage m2 = m1.withHeader("To", " 5678 ").withHeader("X-Custom", "x");
+
+		assertEquals("1234", m1.getHeader("To"));
+		assertFalse(m1.hasHeader("X-Custom"));
+		assertEquals("5678", m2.getHeader("To"));
+		assertEquals("x", m2.getHeader("X-Custom"));
+		assertEquals(2, m2.getHeaders().size());
+		assertSame(m1.getBody(), m2.getBody());
+	}
+
+	@Test
+	public void testUnchangedReturnsThis() {
+		ImmutableSmsMessage msg = ImmutableSmsMessage.EMPTY.withHeader("To", "1234");
+		assertSame(msg, msg.withHeader("To", "1234"));
+		assertSame(msg, msg.withoutHeader("From"));
+		assertSame(msg, msg.withoutHeader("X-None"));
+	}
+
+	@Test
+	public void testWithoutHeader() {
+		ImmutableSmsMessage msg = ImmutableSmsMessage.EMPTY
+				.withHeader("A", "1").withHeader("B", "2").withHeader("C", "3").withHeader("To", "4");
+		ImmutableSmsMessage less = msg.withoutHeader("B").withoutHeader("To");
+		assertEquals(Map.of("A", "1", "C", "3"), less.getHeaders());
+		assertEquals(4, msg.getHeaders().size());
+		assertNull(msg.withHeader("A", "  ").getHeader("A"));
+	}
+
+	@Test(expected = SmsException.class)
+	public void testInvalidHeaderName() {
+		ImmutableSmsMessage.EMPTY.withHeader("Not valid", "x");
+	}
+
+	@Test(expected = SmsException.class)
+	public void testInvalidHeaderValue() {
+		ImmutableSmsMessage.EMPTY.withHeader("To", "a\nb");
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testHeadersUnmodifiable() {
+		ImmutableSmsMessage.EMPTY.withHeader("To", "1").getHeaders().put("From", "2");
+	}
+
+	@Test
+	public void testConversions() {
+		SmsMessage mutable = SmsUtil.readMessage("X-Custom: c\nTo: 1234\nFrom: me\n\nbody").asSmsMessage();
+		ImmutableSmsMessage immutable = ImmutableSmsMessage.of(mutable);
+
+		assertEquals(mutable.asString(), immutable.asString());
+		assertEquals(mutable.getHeaders(), immutable.getHeaders());
+
+		mutable.setHeader("To", "changed");
+		assertEquals("1234", immutable.getHeader("To"));
+
+		SmsMessage copy = immutable.toSmsMessage();
+		assertEquals(immutable.asString(), copy.asString());
+		assertEquals(immutable, ImmutableSmsMessage.of(copy));
+		assertNotEquals(immutable, immutable.withBody("other"));
+	}
+
+	@Test
+	public void testSmsUtilBuilder() {
+		ImmutableSmsMessage msg = SmsUtil.createMessage()
+				.setHeader(SmsUtil.HEADER.TO, "1234")
+				.setBody("Hello")
+				.asImmutableSmsMessage();
+		assertEquals("To: 1234\n\nHello", msg.asString());
+
+		ImmutableSmsMessage edited = SmsUtil.editMessage(msg).setHeader(SmsUtil.HEADER.FROM, "me").asImmutableSmsMessage();
+		assertEquals("me", edited.getHeader("From"));
+		assertFalse(msg.hasHeader("From"));
+	}
+
+	@Test
+	public void testSharedAcrossThreads() throws Exception {
+		ImmutableSmsMessage base = ImmutableSmsMessage.EMPTY.withHeader("To", "1234").withBody("shared");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<ImmutableSmsMessage>> futures = new ArrayList<>();
+			for (int i = 0; i < 100; ++i) {
+				String id = Integer.toString(i);
+				futures.add(executor.submit(() -> base.withHeader(SmsUtil.HEADER.MESSAGE_ID, id)));
+			}
+			for (int i = 0; i < 100; ++i) {
+				ImmutableSmsMessage msg = futures.get(i).get();
+				assertEquals(Integer.toString(i), msg.getHeader("Message_id"));
+				assertEquals("1234", msg.getHeader("To"));
+			}
+			assertFalse(base.hasHeader("Message_id"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
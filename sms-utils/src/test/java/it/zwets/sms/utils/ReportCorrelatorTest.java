@@ -0,0 +1,222 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReportCorrelatorTest {
+
+	private static final Instant NOW = Instant.parse("2024-06-01T12:00:00Z");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	@Before
+	public void setUp() {
+		dir = folder.getRoot().toPath();
+	}
+
+	private static Clock clock(Instant instant) {
+		return Clock.fixed(instant, ZoneOffset.UTC);
+	}
+
+	private static SmsMessage message(String id, String validUntil) {
+		SmsMessage msg = new SmsMessage("Hello");
+		msg.setHeader(SmsUtil.HEADER.MESSAGE_ID, id);
+		if (validUntil != null) {
+			msg.setHeader(SmsUtil.HEADER.VALID_UNTIL, validUntil);
+		}
+		return msg;
+	}
+
+	@Test
+	public void testCorrelate() {
+		ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 100);
+		correlator.register(message("id-1", null), "client-1");
+		correlator.register(message("id-2", null), "client-2");
+		assertEquals(2, correlator.size());
+
+		SmsMessage report = new SmsMessage();
+		report.setHeader(SmsUtil.HEADER.MESSAGE_ID, "id-2");
+		assertEquals("client-2", correlator.correlate(report));
+		assertEquals("client-1", correlator.get("id-1"));
+		assertNull(correlator.get("id-3"));
+
+		assertEquals("client-2", correlator.remove("id-2"));
+		assertNull(correlator.get("id-2"));
+		assertEquals(1, correlator.size());
+	}
+
+	@Test
+	public void testReplace() {
+		ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 100);
+		correlator.register(message("id-1", null), "first");
+		correlator.register(message("id-1", null), "second");
+		assertEquals(1, correlator.size());
+		assertEquals("second", correlator.get("id-1"));
+	}
+
+	@Test
+	public void testExpiry() {
+		ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 100);
+		correlator.setGrace(Duration.ofMinutes(10));
+		correlator.register(message("id-1", "2024-06-01T12:30:00+00:00"), "a");
+		correlator.register(message("id-2", "2024-06-01T11:00:00Z"), "b");
+		correlator.register(message("id-3", null), "c");
+		assertEquals("a", correlator.get("id-1"));
+		assertNull(correlator.get("id-2"));
+
+		ReportCorrelator later = new ReportCorrelator(clock(NOW.plus(Duration.ofMinutes(41))), 100);
+		later.setGrace(Duration.ofMinutes(10));
+		later.register(message("id-1", "2024-06-01T12:30:00Z"), "a");
+		later.register("id-3", NOW.plus(ReportCorrelator.DEFAULT_TTL).getEpochSecond(), "c");
+		assertEquals(1, later.evictExpired());
+		assertNull(later.get("id-1"));
+		assertEquals("c", later.get("id-3"));
+	}
+
+	@Test
+	public void testManyEntries() {
+		ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 100000);
+		for (int i = 0; i < 100000; ++i) {
+			correlator.register("id-" + i, NOW.getEpochSecond() + i, Integer.toString(i));
+		}
+		assertEquals(100000, correlator.size());
+		for (int i = 0; i < 100000; i += 2) {
+			assertEquals(Integer.toString(i), correlator.remove("id-" + i));
+		}
+		for (int i = 1; i < 100000; i += 2) {
+			assertEquals(Integer.toString(i), correlator.get("id-" + i));
+		}
+		assertEquals(50000, correlator.size());
+	}
+
+	@Test
+	public void testDropWhenFull() {
+		ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 100);
+		for (int i = 0; i < 101; ++i) {
+			correlator.register("id-" + i, NOW.getEpochSecond() + 1000 - i, "v" + i);
+		}
+		// The half expiring first are the ones registered last
+		assertEquals(50, correlator.getDroppedCount());
+		assertEquals(51, correlator.size());
+		assertEquals("v0", correlator.get("id-0"));
+		assertNull(correlator.get("id-99"));
+		assertEquals("v100", correlator.get("id-100"));
+	}
+
+	@Test
+	public void testSpill() throws IOException {
+		Path spill = dir.resolve("spill.bin");
+		try (ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 100, spill, 1000)) {
+			for (int i = 0; i < 1000; ++i) {
+				correlator.register("id-" + i, NOW.getEpochSecond() + i, "v" + i);
+			}
+			assertEquals(0, correlator.getDroppedCount());
+			assertEquals(1000, correlator.size());
+			for (int i = 0; i < 1000; ++i) {
+				assertEquals("v" + i, correlator.get("id-" + i));
+			}
+			assertEquals("v5", correlator.remove("id-5"));
+		}
+
+		try (ReportCorrelator reopened = new ReportCorrelator(clock(NOW), 100, spill, 1000)) {
+			assertEquals(999, reopened.size());
+			assertEquals("v1", reopened.get("id-1"));
+			assertNull(reopened.get("id-5"));
+		}
+	}
+
+	@Test
+	public void testSpillFull() throws IOException {
+		try (ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 100, dir.resolve("spill.bin"), 100)) {
+			for (int i = 0; i < 1000; ++i) {
+				correlator.register("id-" + i, NOW.getEpochSecond() + 1000 + i, "v" + i);
+			}
+			assertEquals(1000 - correlator.getDroppedCount(), correlator.size());
+			assertTrue(correlator.size() <= 200);
+			assertEquals("v999", correlator.get("id-999"));
+		}
+	}
+
+	@Test
+	public void testCloseTwice() throws IOException {
+		Path spill = dir.resolve("spill.bin");
+		ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 100, spill, 1000);
+		for (int i = 0; i < 50; ++i) {
+			correlator.register("id-" + i, NOW.getEpochSecond() + i, "v" + i);
+		}
+		correlator.close();
+		correlator.close();
+		assertEquals(50, correlator.size());
+
+		try (ReportCorrelator reopened = new ReportCorrelator(clock(NOW), 100, spill, 1000)) {
+			assertEquals(50, reopened.size());
+			assertEquals("v1", reopened.get("id-1"));
+		}
+	}
+
+	@Test
+	public void testCloseWhenSpillFull() throws IOException {
+		Path spill = dir.resolve("spill.bin");
+		try (ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 100, spill, 10)) {
+			for (int i = 0; i < 60; ++i) {
+				correlator.register("id-" + i, NOW.getEpochSecond() + i, "v" + i);
+			}
+			correlator.close();
+			assertEquals(50, correlator.getDroppedCount());
+		}
+		try (ReportCorrelator reopened = new ReportCorrelator(clock(NOW), 100, spill, 10)) {
+			assertEquals(10, reopened.size());
+		}
+	}
+
+	@Test
+	public void testUncleanSpillDiscarded() throws IOException {
+		Path spill = dir.resolve("spill.bin");
+		ReportCorrelator crashed = new ReportCorrelator(clock(NOW), 10, spill, 100);
+		for (int i = 0; i < 50; ++i) {
+			crashed.register("id-" + i, NOW.getEpochSecond() + i, "v" + i);
+		}
+		assertTrue(crashed.size() > 10);
+
+		try (ReportCorrelator reopened = new ReportCorrelator(clock(NOW), 10, spill, 100)) {
+			assertEquals(0, reopened.size());
+			assertNull(reopened.get("id-1"));
+		}
+		try (ReportCorrelator reopened = new ReportCorrelator(clock(NOW), 10, spill, 200)) {
+			assertEquals(0, reopened.size());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testUseAfterClose() {
+		ReportCorrelator correlator = new ReportCorrelator(clock(NOW), 10);
+		correlator.close();
+		correlator.register("id", NOW.getEpochSecond(), "x");
+	}
+
+	@Test(expected = SmsException.class)
+	public void testValueTooLong() {
+		new ReportCorrelator(clock(NOW), 10).register("id", NOW.getEpochSecond(), "x".repeat(47));
+	}
+
+	@Test(expected = SmsException.class)
+	public void testNoMessageId() {
+		new ReportCorrelator(clock(NOW), 10).register(new SmsMessage("Hello"), "x");
+	}
+}
@@ -0,0 +1,145 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SmsCodecTest {
+
+	private static SmsMessage message() {
+		SmsMessage msg = new SmsMessage("Hello\nWorld caf\u00e9 \u2603 \ud83d\ude00");
+		msg.setHeader(SmsUtil.HEADER.TO, "+31612345678");
+		msg.setHeader("X-Custom", "v\u00e9lue");
+		msg.setHeader(SmsUtil.HEADER.VALID_UNTIL, "2030-01-01T00:00:00Z");
+		return msg;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		SmsMessage msg = message();
+		byte[] bytes = SmsCodec.encode(msg);
+		assertEquals(SmsCodec.encodedSize(msg), bytes.length);
+
+		SmsMessage copy = SmsCodec.decode(bytes);
+		assertEquals(msg.getHeaders(), copy.getHeaders());
+		assertEquals(msg.getBody(), copy.getBody());
+		assertEquals(msg.asString(), copy.asString());
+	}
+
+	@Test
+	public void testRoundTripText() {
+		String text = "To: 1234\nFrom: Me\nMessage_id: 42\nSubject: caf\u00e9\nX-a: b\n\nBody\n\u00e9t\u00e9";
+		SmsMessage msg = new SmsMessage();
+		msg.read(text);
+
+		SmsMessage copy = SmsCodec.decode(SmsCodec.encode(msg));
+		SmsMessage reread = new SmsMessage();
+		reread.read(copy.asString());
+		assertEquals(msg.asString(), copy.asString());
+		assertEquals(copy.getHeaders(), reread.getHeaders());
+		assertEquals(copy.getBody(), reread.getBody());
+	}
+
+	@Test
+	public void testEmpty() {
+		byte[] bytes = SmsCodec.encode(new SmsMessage());
+		assertArrayEquals(new byte[] { SmsCodec.VERSION, 0, 0 }, bytes);
+		assertEquals("\n", SmsCodec.decode(bytes).asString());
+	}
+
+	@Test
+	public void testDictionaryCodes() {
+		SmsMessage msg = new SmsMessage("b");
+		msg.setHeader(SmsUtil.HEADER.TO, "1");
+		msg.setHeader(SmsUtil.HEADER.VALIDITY, "2");
+		assertArrayEquals(new byte[] { 1, 2, 1, 1, '1', 22, 1, '2', 1, 'b' }, SmsCodec.encode(msg));
+	}
+
+	@Test
+	public void testImmutable() {
+		ImmutableSmsMessage msg = ImmutableSmsMessage.of(message());
+		byte[] bytes = SmsCodec.encode(msg);
+		assertArrayEquals(SmsCodec.encode(message()), bytes);
+		assertEquals(SmsCodec.encodedSize(msg), bytes.length);
+		assertEquals(msg, ImmutableSmsMessage.of(SmsCodec.decode(bytes)));
+	}
+
+	@Test
+	public void testLongBody() {
+		char[] chars = new char[100000];
+		Arrays.fill(chars, '\u00e9');
+		SmsMessage msg = new SmsMessage(new String(chars));
+		byte[] bytes = SmsCodec.encode(msg);
+		assertEquals(1 + 1 + 3 + 200000, bytes.length);
+		assertEquals(msg.getBody(), SmsCodec.decode(bytes).getBody());
+	}
+
+	@Test
+	public void testBuffers() {
+		SmsMessage msg = message();
+		int size = SmsCodec.encodedSize(msg);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(3 * size + 5);
+		buffer.position(5);
+		SmsCodec.encode(msg, buffer);
+		SmsCodec.encode(msg, buffer);
+		SmsCodec.encode(ImmutableSmsMessage.of(msg), buffer);
+		assertEquals(3 * size + 5, buffer.position());
+
+		buffer.flip().position(5);
+		for (int i = 0; i < 3; ++i) {
+			assertEquals(msg.asString(), SmsCodec.decode(buffer).asString());
+		}
+		assertEquals(0, buffer.remaining());
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void testOverflow() {
+		SmsMessage msg = message();
+		SmsCodec.encode(msg, ByteBuffer.allocate(SmsCodec.encodedSize(msg) - 1));
+	}
+
+	@Test
+	public void testUnpairedSurrogate() {
+		SmsMessage msg = new SmsMessage("a\ud83db");
+		byte[] bytes = SmsCodec.encode(msg);
+		assertEquals(SmsCodec.encodedSize(msg), bytes.length);
+		assertEquals("a?b", SmsCodec.decode(bytes).getBody());
+	}
+
+	@Test(expected = SmsException.class)
+	public void testTruncated() {
+		byte[] bytes = SmsCodec.encode(message());
+		SmsCodec.decode(Arrays.copyOf(bytes, bytes.length - 1));
+	}
+
+	@Test(expected = SmsException.class)
+	public void testTrailing() {
+		byte[] bytes = SmsCodec.encode(message());
+		SmsCodec.decode(Arrays.copyOf(bytes, bytes.length + 1));
+	}
+
+	@Test(expected = SmsException.class)
+	public void testBadVersion() {
+		SmsCodec.decode(new byte[] { 2, 0, 0 });
+	}
+
+	@Test(expected = SmsException.class)
+	public void testUnknownCode() {
+		SmsCodec.decode(new byte[] { 1, 1, 99, 1, 'x', 0 });
+	}
+
+	@Test(expected = SmsException.class)
+	public void testBadLength() {
+		SmsCodec.decode(new byte[] { 1, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0 });
+	}
+
+	@Test(expected = SmsException.class)
+	public void testInvalidName() {
+		SmsCodec.decode(new byte[] { 1, 1, 0, 2, 'a', ':', 1, 'x', 0 });
+	}
+}
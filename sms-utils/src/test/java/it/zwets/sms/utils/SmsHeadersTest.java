@@ -0,0 +1,121 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SmsHeadersTest {
+
+	@Test
+	public void testKnownAndCustom() {
+		SmsHeaders headers = new SmsHeaders();
+		assertNull(headers.put("X-Custom", "1"));
+		assertNull(headers.put(SmsUtil.HEADER.TO, "1234"));
+		assertEquals("1", headers.put("X-Custom", "2"));
+		assertEquals(2, headers.size());
+		assertEquals("1234", headers.get("To"));
+		assertEquals("2", headers.get("X-Custom"));
+		assertTrue(headers.containsKey("To"));
+		assertFalse(headers.containsKey("From"));
+		assertNull(headers.get(42));
+		assertEquals("1234", headers.remove("To"));
+		assertNull(headers.remove("To"));
+		assertEquals(1, headers.size());
+	}
+
+	@Test
+	public void testDeterministicOrder() {
+		SmsHeaders headers = new SmsHeaders();
+		headers.put("Zeta", "z");
+		headers.put(SmsUtil.HEADER.VALID_UNTIL, "v");
+		headers.put("Alpha", "a");
+		headers.put(SmsUtil.HEADER.TO, "t");
+		headers.put(SmsUtil.HEADER.FROM, "f");
+
+		assertEquals(List.of("To", "From", "Valid_until", "Zeta", "Alpha"), new ArrayList<>(headers.keySet()));
+
+		SmsMessage msg = new SmsMessage(headers, "body");
+		assertEquals("To: t\nFrom: f\nValid_until: v\nZeta: z\nAlpha: a\n\nbody", msg.asString());
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		SmsHeaders headers = new SmsHeaders();
+		headers.put("A", "1");
+		headers.put("B", "2");
+		headers.put("To", "3");
+		headers.put("C", "4");
+
+		Iterator<Map.Entry<String,String>> it = headers.entrySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next().getKey();
+			if (!key.equals("C")) {
+				it.remove();
+			}
+		}
+		assertEquals(Map.of("C", "4"), headers);
+	}
+
+	@Test
+	public void testSameAsHashMap() {
+		String[] names = { "To", "From", "Mock", "Valid_until", "X1", "X2", "X3", "Sent" };
+		SmsHeaders headers = new SmsHeaders();
+		Map<String,String> reference = new HashMap<>();
+		Random random = new Random(5);
+		for (int i = 0; i < 10000; ++i) {
+			String name = names[random.nextInt(names.length)];
+			if (random.nextInt(3) == 0) {
+				assertEquals(reference.remove(name), headers.remove(name));
+			}
+			else {
+				String value = Integer.toString(i);
+				assertEquals(reference.put(name, value), headers.put(name, value));
+			}
+			assertEquals(reference, headers);
+			assertEquals(reference.hashCode(), headers.hashCode());
+		}
+	}
+
+	@Test
+	public void testKnownName() {
+		String line = "xMessage_idx";
+		assertSame(SmsUtil.HEADER.MESSAGE_ID, SmsHeaders.knownName(line, 1, 11));
+		assertNull(SmsHeaders.knownName(line, 0, 11));
+
+		SmsMessage msg = new SmsMessage();
+		msg.read("Message_id: 12\n\n");
+		assertSame(SmsUtil.HEADER.MESSAGE_ID, msg.getHeaders().keySet().iterator().next());
+	}
+
+	@Test
+	public void testSerializable() throws IOException, ClassNotFoundException {
+		SmsMessage msg = new SmsMessage("body");
+		msg.setHeader("To", "1234");
+		msg.setHeader("X-Custom", "x");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(msg);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			SmsMessage copy = (SmsMessage) in.readObject();
+			assertEquals(msg.asString(), copy.asString());
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package it.zwets.sms.utils;
+
+import static it.zwets.sms.utils.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SmsJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	@Before
+	public void setUp() {
+		dir = folder.getRoot().toPath();
+	}
+
+	private long segmentCount() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.count();
+		}
+	}
+
+	@Test
+	public void testAppendAndGet() throws IOException {
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			for (int i = 0; i < 100; ++i) {
+				journal.append(message(i));
+			}
+			assertEquals(100, journal.size());
+			assertEquals(message(42).asString(), journal.get("id-42").asString());
+			assertNull(journal.get("id-100"));
+			assertTrue(segmentCount() > 1);
+		}
+	}
+
+	@Test
+	public void testStatusAndRemove() throws IOException {
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			journal.append(message(1));
+			journal.append(message(2));
+			assertTrue(journal.setStatus("id-1", "sent"));
+			assertFalse(journal.setStatus("id-3", "sent"));
+			assertEquals("sent", journal.getStatus("id-1"));
+			assertNull(journal.getStatus("id-2"));
+			assertTrue(journal.remove("id-2"));
+			assertFalse(journal.remove("id-2"));
+			assertEquals(1, journal.size());
+		}
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			for (int i = 0; i < 100; ++i) {
+				journal.append(message(i));
+				journal.setStatus("id-" + i, "status-" + i);
+			}
+			for (int i = 0; i < 100; i += 2) {
+				journal.remove("id-" + i);
+			}
+		}
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			assertEquals(50, journal.size());
+			assertNull(journal.get("id-42"));
+			assertEquals(message(43).asString(), journal.get("id-43").asString());
+			assertEquals("status-43", journal.getStatus("id-43"));
+			journal.append(message(100));
+		}
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			assertEquals(51, journal.size());
+		}
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			journal.append(message(1));
+			journal.append(message(2));
+		}
+		Path segment;
+		try (Stream<Path> files = Files.list(dir)) {
+			segment = files.findFirst().get();
+		}
+		int second = 8 + ByteBuffer.wrap(Files.readAllBytes(segment)).getInt(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 0x55 }), second + 20);
+		}
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			assertEquals(1, journal.size());
+			assertNull(journal.get("id-2"));
+			journal.append(message(3));
+		}
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			assertEquals(message(3).asString(), journal.get("id-3").asString());
+		}
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			for (int i = 0; i < 200; ++i) {
+				journal.append(message(i));
+				journal.setStatus("id-" + i, "queued");
+			}
+			for (int i = 0; i < 200; ++i) {
+				if (i % 10 != 0) {
+					journal.remove("id-" + i);
+				}
+			}
+			long before = segmentCount();
+			assertTrue(journal.compact() > 0);
+			assertTrue(segmentCount() < before);
+			assertEquals(20, journal.size());
+			assertEquals(message(150).asString(), journal.get("id-150").asString());
+			assertEquals("queued", journal.getStatus("id-150"));
+		}
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			assertEquals(20, journal.size());
+			assertNull(journal.get("id-151"));
+			assertEquals("queued", journal.getStatus("id-0"));
+		}
+	}
+
+	@Test
+	public void testCompactBehindLongPending() throws IOException {
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			// Fill the first segment with messages that stay pending
+			int pending = 0;
+			while (segmentCount() == 1) {
+				journal.append(message(pending++));
+			}
+			for (int i = 1000; i < 3000; ++i) {
+				journal.append(message(i));
+				journal.remove("id-" + i);
+			}
+			assertTrue(segmentCount() > 20);
+			journal.compact();
+			assertTrue(segmentCount() < 5);
+			assertEquals(pending, journal.size());
+			assertEquals(message(0).asString(), journal.get("id-0").asString());
+		}
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			assertEquals(message(0).asString(), journal.get("id-0").asString());
+			assertNull(journal.get("id-1000"));
+		}
+	}
+
+	@Test(expected = SmsException.class)
+	public void testNoMessageId() throws IOException {
+		try (SmsJournal journal = new SmsJournal(dir, 4096, 0)) {
+			journal.append(new SmsMessage("No id"));
+		}
+	}
+}
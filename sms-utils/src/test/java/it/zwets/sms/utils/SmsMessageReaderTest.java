@@ -0,0 +1,126 @@
+package it.zwets.sms.utils;
+
+import static it.zwets.sms.utils.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class SmsMessageReaderTest {
+
+	private static byte[] write(int n, int bufferSize) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (SmsMessageWriter writer = new SmsMessageWriter(out, bufferSize)) {
+			for (int i = 0; i < n; ++i) {
+				writer.write(message(i));
+			}
+			assertEquals(n, writer.getCount());
+		}
+		return out.toByteArray();
+	}
+
+	/* Returns at most one byte per read, to exercise refilling. */
+	private static InputStream trickle(byte[] bytes) {
+		return new ByteArrayInputStream(bytes) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		};
+	}
+
+	@Test
+	public void testManyMessages() throws IOException {
+		byte[] bytes = write(20000, 4096);
+		try (SmsMessageReader reader = new SmsMessageReader(new ByteArrayInputStream(bytes), 1024, 1 << 20)) {
+			for (int i = 0; i < 20000; ++i) {
+				SmsMessage msg = reader.read();
+				assertEquals(message(i).asString(), msg.asString());
+			}
+			assertNull(reader.read());
+			assertEquals(20000, reader.getCount());
+		}
+	}
+
+	@Test
+	public void testTrickle() throws IOException {
+		byte[] bytes = write(50, 16);
+		try (SmsMessageReader reader = new SmsMessageReader(trickle(bytes), 8, 1 << 20)) {
+			List<String> bodies = reader.stream().map(SmsMessage::getBody).collect(Collectors.toList());
+			assertEquals(50, bodies.size());
+			assertEquals("Message number 49", bodies.get(49));
+		}
+	}
+
+	@Test
+	public void testLargeRecords() throws IOException {
+		char[] chars = new char[100000];
+		Arrays.fill(chars, 'x');
+		SmsMessage large = new SmsMessage(new String(chars));
+		ImmutableSmsMessage small = ImmutableSmsMessage.of(message(1));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (SmsMessageWriter writer = new SmsMessageWriter(out, 1024)) {
+			writer.write(small);
+			writer.write(large);
+			writer.write(small);
+		}
+
+		try (SmsMessageReader reader = new SmsMessageReader(new ByteArrayInputStream(out.toByteArray()), 1024, 1 << 20)) {
+			assertEquals(small, ImmutableSmsMessage.of(reader.read()));
+			assertEquals(large.getBody(), reader.read().getBody());
+			assertEquals(small, ImmutableSmsMessage.of(reader.read()));
+			assertNull(reader.read());
+		}
+	}
+
+	@Test
+	public void testEmptyStream() throws IOException {
+		try (SmsMessageReader reader = new SmsMessageReader(new ByteArrayInputStream(new byte[0]))) {
+			assertNull(reader.read());
+		}
+	}
+
+	@Test
+	public void testFlush() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SmsMessageWriter writer = new SmsMessageWriter(out);
+		writer.write(message(0));
+		assertEquals(0, out.size());
+		writer.flush();
+		assertEquals(1 + SmsCodec.encodedSize(message(0)), out.size());
+	}
+
+	@Test(expected = SmsException.class)
+	public void testTruncated() throws IOException {
+		byte[] bytes = write(3, 1024);
+		try (SmsMessageReader reader = new SmsMessageReader(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)))) {
+			reader.read();
+			reader.read();
+			reader.read();
+		}
+	}
+
+	@Test(expected = SmsException.class)
+	public void testRecordTooLarge() throws IOException {
+		byte[] bytes = write(1, 1024);
+		try (SmsMessageReader reader = new SmsMessageReader(new ByteArrayInputStream(bytes), 1024, 10)) {
+			reader.read();
+		}
+	}
+
+	@Test(expected = SmsException.class)
+	public void testTrailingBytesInRecord() throws IOException {
+		try (SmsMessageReader reader = new SmsMessageReader(new ByteArrayInputStream(new byte[] { 4, 1, 0, 0, 0 }))) {
+			reader.read();
+		}
+	}
+}
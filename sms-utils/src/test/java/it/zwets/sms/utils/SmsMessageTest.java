@@ -2,12 +2,14 @@ package it.zwets.sms.utils;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -103,6 +105,17 @@ public class SmsMessageTest {
 		assertEquals(read.getTime(), set.getTime());
 	}
 
+	@Test
+	public void testInstantHeader() {
+		SmsMessage msg = new SmsMessage();
+		assertNull(msg.getTimestampHeader(SmsUtil.HEADER.SENT));
+
+		Instant set = Instant.parse("2024-03-01T09:05:07Z");
+		msg.setTimestampHeader(SmsUtil.HEADER.SENT, set);
+		assertEquals(set, msg.getTimestampHeader(SmsUtil.HEADER.SENT));
+		assertEquals(set, SmsUtil.editMessage(msg).getTimestampHeader(SmsUtil.HEADER.SENT));
+	}
+
 	@Test
 	public void testAddHeader() {
 		SmsMessage msg = new SmsMessage();
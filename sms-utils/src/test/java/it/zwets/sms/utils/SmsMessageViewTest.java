@@ -0,0 +1,141 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SmsMessageViewTest {
+
+	private static SmsMessageView view(String s) {
+		return SmsMessageView.of(ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/* Returns the outcome of reading s as a comparable string: the message, or the exception. */
+	private static String viaRead(String s) {
+		try {
+			SmsMessage msg = new SmsMessage();
+			msg.read(s);
+			return "headers=" + msg.getHeaders() + " body=" + msg.getBody();
+		} catch (SmsException e) {
+			return "error=" + e.getMessage();
+		}
+	}
+
+	private static String viaView(String s) {
+		try {
+			SmsMessage msg = view(s).toSmsMessage();
+			return "headers=" + msg.getHeaders() + " body=" + msg.getBody();
+		} catch (SmsException e) {
+			return "error=" + e.getMessage();
+		}
+	}
+
+	@Test
+	public void testHeadersAndBody() {
+		SmsMessageView view = view("To: 1234\r\nMock:  true \nValid_until: 2030-01-01T00:00:00Z\n\nHello\r\nWorld\n");
+		assertEquals("1234", view.getHeader("To"));
+		assertEquals("true", view.getHeader("Mock"));
+		assertEquals("2030-01-01T00:00:00Z", view.getHeader(SmsUtil.HEADER.VALID_UNTIL));
+		assertTrue(view.hasHeader("Mock"));
+		assertFalse(view.hasHeader("From"));
+		assertNull(view.getHeader("From"));
+		assertEquals("default", view.getHeader("From", "default"));
+		assertEquals("Hello\nWorld", view.getBody());
+	}
+
+	@Test
+	public void testRepeatedAndEmptyHeaders() {
+		SmsMessageView view = view("To: a\nFrom: x\nTo: b\nFrom:\n\n");
+		assertEquals("b", view.getHeader("To"));
+		assertFalse(view.hasHeader("From"));
+		assertEquals("", view.getBody());
+	}
+
+	@Test
+	public void testNonAscii() {
+		SmsMessageView view = view("Subject: caf\u00e9 \u2603\n\n\u00e9t\u00e9\r\n");
+		assertEquals("caf\u00e9 \u2603", view.getHeader("Subject"));
+		assertEquals("\u00e9t\u00e9", view.getBody());
+	}
+
+	@Test(expected = SmsException.class)
+	public void testInvalidHeader() {
+		view("To 1234\n\nbody");
+	}
+
+	@Test(expected = SmsException.class)
+	public void testUnterminatedHeaders() {
+		view("To: 1234\n");
+	}
+
+	@Test(expected = SmsException.class)
+	public void testInvalidUtf8() {
+		byte[] bytes = "Subject: x\n\nbody".getBytes(StandardCharsets.US_ASCII);
+		bytes[bytes.length - 1] = (byte) 0xff;
+		SmsMessageView view = SmsMessageView.of(ByteBuffer.wrap(bytes));
+		assertEquals("x", view.getHeader("Subject"));
+		view.getBody();
+	}
+
+	@Test
+	public void testDirectBufferPosition() {
+		byte[] bytes = "garbageTo: 1\n\nbody".getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+		buffer.position(7);
+		SmsMessageView view = SmsMessageView.of(buffer);
+		assertEquals("1", view.getHeader("To"));
+		assertEquals("body", view.getBody());
+		assertEquals(7, buffer.position());
+	}
+
+	@Test
+	public void testMappedFile() throws IOException {
+		Path file = Files.createTempFile("view", ".sms");
+		try {
+			SmsMessage msg = new SmsMessage("Body\nline two");
+			msg.setHeader("To", "1234");
+			msg.setHeader("From", "Me");
+			msg.writeFile(file);
+
+			SmsMessageView view = SmsMessageView.map(file);
+			assertEquals("1234", view.getHeader("To"));
+			assertEquals(msg.getHeaders(), view.toSmsMessage().getHeaders());
+			assertEquals(msg.getBody(), view.getBody());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testSameAsRead() {
+		String[] inputs = {
+			"", "\n", "\r\n", "To: x", "To: x\n\n", "To: x\n \t \nbody", "To: a\u0085\n\n", "To: a\u0085b\n\n",
+			"To: a\u2028\n\n", "To: \u2029 \n\n", "To : a\n\n", "-To: a\n\n", "T.o: a\n\n", "To: \u0001a\u0001\n\n",
+			"To: a\n\nb\r\n\r\n", "\u00e9: a\n\n", "To: \u00e9\n\n\u00e9",
+		};
+		for (String input : inputs) {
+			assertEquals(input, viaRead(input), viaView(input));
+		}
+
+		char[] alphabet = { 'T', 'o', '-', ':', ' ', '\t', '\n', '\n', '\r', '\u0001', '\u0085', '\u2028', '\u00e9', 'x' };
+		Random random = new Random(13);
+		for (int i = 0; i < 50000; ++i) {
+			char[] chars = new char[random.nextInt(14)];
+			for (int j = 0; j < chars.length; ++j) {
+				chars[j] = alphabet[random.nextInt(alphabet.length)];
+			}
+			String s = new String(chars);
+			assertEquals(s, viaRead(s), viaView(s));
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class SmsParserTest {
+
+	/* The regex based parsing that SmsParser replaces, as the reference for its behaviour. */
+	private static final Pattern HEADER_NAME_REGEX = Pattern.compile("^\\w[\\w-]*$");
+	private static final Pattern HEADER_REGEX = Pattern.compile("^(\\w[\\w-]*)\\s*:\\s*(.*\\S?)\\s*$");
+
+	private static void referenceAddHeader(SmsMessage msg, String line) {
+		Matcher matcher = HEADER_REGEX.matcher(line);
+		if (!matcher.matches()) {
+			throw new SmsException("Invalid message header: '" + line + "'");
+		}
+		msg.setHeader(matcher.group(1), matcher.group(2));
+	}
+
+	private static SmsMessage referenceRead(String s) {
+		SmsMessage msg = new SmsMessage();
+		Iterator<String> iter = new BufferedReader(new StringReader(s)).lines().iterator();
+		while (true) {
+			if (!iter.hasNext()) {
+				throw new SmsException("Invalid message: headers not terminated by empty line");
+			}
+			String line = iter.next().trim();
+			if (line.isEmpty()) {
+				break;
+			}
+			referenceAddHeader(msg, line);
+		}
+		StringBuilder body = new StringBuilder();
+		if (iter.hasNext()) {
+			body.append(iter.next());
+			while (iter.hasNext()) {
+				body.append('\n').append(iter.next());
+			}
+		}
+		msg.setBody(body.toString());
+		return msg;
+	}
+
+	/* Returns the outcome of f as a comparable string: the message, or the exception. */
+	private static String outcome(Runnable f, SmsMessage msg) {
+		try {
+			f.run();
+			return "headers=" + msg.getHeaders() + " body=" + msg.getBody();
+		} catch (SmsException e) {
+			return "error=" + e.getMessage();
+		}
+	}
+
+	private static void assertSameAsReference(String input) {
+		SmsMessage expected = new SmsMessage();
+		String expectedOutcome;
+		try {
+			expected = referenceRead(input);
+			expectedOutcome = "headers=" + expected.getHeaders() + " body=" + expected.getBody();
+		} catch (SmsException e) {
+			expectedOutcome = "error=" + e.getMessage();
+		}
+
+		SmsMessage actual = new SmsMessage();
+		assertEquals(input, expectedOutcome, outcome(() -> actual.read(input), actual));
+	}
+
+	private static void assertSameHeaderAsReference(String line) {
+		SmsMessage expected = new SmsMessage();
+		SmsMessage actual = new SmsMessage();
+		assertEquals(line,
+				outcome(() -> referenceAddHeader(expected, line), expected),
+				outcome(() -> actual.addHeader(line), actual));
+	}
+
+	@Test
+	public void testSimple() {
+		SmsMessage msg = new SmsMessage();
+		msg.read("To: 1234\nFrom:  Me \n\nHello\nWorld\n");
+		assertEquals("1234", msg.getHeader("To"));
+		assertEquals("Me", msg.getHeader("From"));
+		assertEquals("Hello\nWorld", msg.getBody());
+	}
+
+	@Test
+	public void testCrLf() {
+		SmsMessage msg = new SmsMessage();
+		msg.read("To: 1234\r\n\r\nHello\r\nWorld\rAgain\r\n");
+		assertEquals("1234", msg.getHeader("To"));
+		assertEquals("Hello\nWorld\nAgain", msg.getBody());
+	}
+
+	@Test
+	public void testCharBuffer() {
+		SmsMessage msg = new SmsMessage();
+		msg.read(CharBuffer.wrap("To: 1234\n\nBody".toCharArray()));
+		assertEquals("1234", msg.getHeader("To"));
+		assertEquals("Body", msg.getBody());
+	}
+
+	@Test
+	public void testEdgeCases() {
+		String[] inputs = {
+			"", "\n", "\r", "\r\n", "\n\n", "\n\n\n", "\r\r", "To: x", "To: x\n", "To: x\n\n", "To: x\n \t \nbody",
+			"To:\n\n", "To: \u0085\n\n", "To: a\u0085\n\n", "To: a\u0085b\n\n", "To: a\u2028 \n\n", "To: a\u2029\u2029\n\n",
+			"To : a\n\n", "To\t:a\n\n", "-To: a\n\n", "T-o_1: a\n\n", "T.o: a\n\n", ": a\n\n", "To a\n\n", "To:: a\n\n",
+			"To: a\u000b\n\n", "To: \u0001a\u0001\n\n", "\u0001To: a\n\n", "To: a\n\u0001\nbody", "To: a\n\nb\n\n", "To: a\n\nb\r\n\r\n",
+			"To: a\nTo: b\n\n", "To: a\nFrom:\n\n", "\u00e9: a\n\n", "To: \u00e9\n\n", "To: a\n\n\r", "To: a\n\n\n\r\n",
+		};
+		for (String input : inputs) {
+			assertSameAsReference(input);
+		}
+	}
+
+	@Test
+	public void testAddHeaderEdgeCases() {
+		String[] lines = {
+			"To: a", " To: a", "To: a ", "To: a\n", "To: a\n ", "To: a\nb", "To\n: a", "To:\n a", "To: a\r\n",
+			"To: a\u0085", "To: a\u0085\n", "To: a\u0085b", "To: \u2028", "To:", "To: \n", "To: a\r x",
+		};
+		for (String line : lines) {
+			assertSameHeaderAsReference(line);
+		}
+	}
+
+	@Test
+	public void testRandomInputs() {
+		char[] alphabet = { 'T', 'o', '_', '-', '1', ':', ':', ' ', ' ', '\t', '\n', '\n', '\r', '\u000b',
+				'\u0001', '\u0085', '\u2028', '\u00e9', 'x' };
+		Random random = new Random(12);
+		for (int i = 0; i < 100000; ++i) {
+			char[] chars = new char[random.nextInt(16)];
+			for (int j = 0; j < chars.length; ++j) {
+				chars[j] = alphabet[random.nextInt(alphabet.length)];
+			}
+			String s = new String(chars);
+			assertSameAsReference(s);
+			assertSameHeaderAsReference(s);
+		}
+	}
+
+	@Test
+	public void testHeaderName() {
+		String[] names = { "", "a", "A-b_9", "-a", "a b", "a:", "a\n", "\u00e9", "_", "9-" };
+		for (String name : names) {
+			assertEquals(name, HEADER_NAME_REGEX.matcher(name).matches(), SmsParser.isHeaderName(name));
+		}
+		assertTrue(SmsParser.isHeaderName("Valid_until"));
+		assertFalse(SmsParser.isHeaderName("Valid until"));
+	}
+}
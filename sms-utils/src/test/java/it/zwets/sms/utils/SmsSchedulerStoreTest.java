@@ -0,0 +1,299 @@
+package it.zwets.sms.utils;
+
+import static it.zwets.sms.utils.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SmsSchedulerStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+	private final List<String> released = Collections.synchronizedList(new ArrayList<>());
+	private final List<SmsScheduler> schedulers = new ArrayList<>();
+	private final List<SmsSchedulerStore> stores = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		dir = folder.getRoot().toPath();
+	}
+
+	@After
+	public void tearDown() {
+		schedulers.forEach(SmsScheduler::close);
+		stores.forEach(SmsSchedulerStore::close);
+	}
+
+	private SmsScheduler scheduler() {
+		SmsScheduler scheduler = new SmsScheduler((msg) -> released.add(msg.getHeader(SmsUtil.HEADER.MESSAGE_ID)), 1);
+		schedulers.add(scheduler);
+		return scheduler;
+	}
+
+	private SmsSchedulerStore store() {
+		return store(UnaryOperator.identity());
+	}
+
+	/* A store that seals with seal, which must be its own inverse. */
+	private SmsSchedulerStore store(UnaryOperator<byte[]> seal) {
+		SmsSchedulerStore store = new SmsSchedulerStore(dir, 0, seal, seal);
+		stores.add(store);
+		return store;
+	}
+
+	private static byte[] xor(byte[] bytes) {
+		byte[] result = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; ++i) {
+			result[i] = (byte) (bytes[i] ^ 0x5a);
+		}
+		return result;
+	}
+
+	/* Recovers the store into a fresh scheduler, returning the ids of the recovered messages in order. */
+	private List<String> recover() throws IOException {
+		return recover(store());
+	}
+
+	private List<String> recover(SmsSchedulerStore store) throws IOException {
+		List<String> ids = new ArrayList<>();
+		SmsScheduler scheduler = new SmsScheduler((msg) -> {}, 1);
+		scheduler.setObserver(new SmsScheduler.Observer() {
+			@Override
+			public void added(SmsScheduler.Task task) {
+				ids.add(task.getMessage().getHeader(SmsUtil.HEADER.MESSAGE_ID));
+			}
+
+			@Override
+			public void removed(SmsScheduler.Task task) {
+			}
+		});
+		int count = store.recover(scheduler);
+		assertEquals(count, ids.size());
+		assertEquals(count, scheduler.size());
+		return ids;
+	}
+
+	@Test
+	public void testRecoverFromLog() throws IOException {
+		SmsScheduler scheduler = scheduler();
+		SmsSchedulerStore store = store();
+		assertEquals(0, store.recover(scheduler));
+
+		Instant later = Instant.now().plus(Duration.ofHours(1));
+		List<SmsScheduler.Task> tasks = new ArrayList<>();
+		for (int i = 0; i < 1000; ++i) {
+			tasks.add(scheduler.schedule(message(i), later.plusSeconds(i)));
+		}
+		for (int i = 0; i < 1000; i += 2) {
+			tasks.get(i).cancel();
+		}
+		store.close();
+
+		List<String> ids = recover();
+		assertEquals(500, ids.size());
+		assertEquals("id-1", ids.get(0));
+		assertEquals("id-999", ids.get(499));
+	}
+
+	@Test
+	public void testRecoverFromSnapshot() throws IOException {
+		SmsScheduler scheduler = scheduler();
+		SmsSchedulerStore store = store();
+		store.recover(scheduler);
+
+		Instant later = Instant.now().plus(Duration.ofHours(1));
+		List<SmsScheduler.Task> tasks = new ArrayList<>();
+		for (int i = 0; i < 1000; ++i) {
+			tasks.add(scheduler.schedule(message(i), later));
+		}
+		store.snapshot();
+		for (int i = 0; i < 100; ++i) {
+			tasks.get(i).cancel();
+		}
+		scheduler.schedule(message(1000), later);
+		store.snapshot();
+		tasks.get(100).cancel();
+		store.close();
+
+		try (Stream<Path> files = Files.list(dir)) {
+			List<String> names = files.map((p) -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+			assertEquals(2, names.size());
+			assertTrue(names.get(0).startsWith("changes-"));
+			assertTrue(names.get(1).startsWith("snapshot-"));
+		}
+
+		List<String> ids = recover();
+		assertEquals(900, ids.size());
+		assertEquals("id-101", ids.get(0));
+		assertTrue(ids.contains("id-1000"));
+	}
+
+	@Test
+	public void testReleasedNotRecovered() throws IOException, InterruptedException {
+		SmsScheduler scheduler = scheduler();
+		SmsSchedulerStore store = store();
+		store.recover(scheduler);
+		scheduler.start();
+
+		scheduler.schedule(message(1), Instant.now());
+		scheduler.schedule(message(2), Instant.now().plus(Duration.ofHours(1)));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (released.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		scheduler.close();
+		store.close();
+		assertEquals(List.of("id-1"), released);
+
+		assertEquals(List.of("id-2"), recover());
+	}
+
+	@Test
+	public void testTornLog() throws IOException {
+		SmsScheduler scheduler = scheduler();
+		SmsSchedulerStore store = store();
+		store.recover(scheduler);
+		Instant later = Instant.now().plus(Duration.ofHours(1));
+		scheduler.schedule(message(1), later);
+		scheduler.schedule(message(2), later);
+		store.close();
+
+		try (FileChannel channel = FileChannel.open(changeLog(), StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		assertEquals(List.of("id-1"), recover());
+	}
+
+	@Test
+	public void testZeroFilledTail() throws IOException {
+		scheduleTwo();
+		Files.write(changeLog(), new byte[4096], StandardOpenOption.APPEND);
+
+		assertEquals(List.of("id-1", "id-2"), recover());
+	}
+
+	@Test
+	public void testGarbageTail() throws IOException {
+		scheduleTwo();
+		ByteBuffer garbage = ByteBuffer.allocate(64);
+		garbage.putInt(Integer.MAX_VALUE).putInt(0).putInt(-1).putInt(12345);
+		Files.write(changeLog(), garbage.array(), StandardOpenOption.APPEND);
+
+		assertEquals(List.of("id-1", "id-2"), recover());
+	}
+
+	@Test
+	public void testBadChecksum() throws IOException {
+		scheduleTwo();
+		ByteBuffer record = ByteBuffer.allocate(8 + 17);
+		record.putInt(17).putInt(12345).put((byte) 2).putLong(0);
+		Files.write(changeLog(), record.array(), StandardOpenOption.APPEND);
+
+		assertEquals(List.of("id-1", "id-2"), recover());
+	}
+
+	/* Schedules messages 1 and 2 on a fresh store, and closes it. */
+	private void scheduleTwo() throws IOException {
+		SmsScheduler scheduler = scheduler();
+		SmsSchedulerStore store = store();
+		store.recover(scheduler);
+		Instant later = Instant.now().plus(Duration.ofHours(1));
+		scheduler.schedule(message(1), later);
+		scheduler.schedule(message(2), later);
+		store.close();
+	}
+
+	/* The first change log in the store directory. */
+	private Path changeLog() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.filter((p) -> p.getFileName().toString().startsWith("changes-")).sorted().findFirst().get();
+		}
+	}
+
+	@Test
+	public void testSealed() throws IOException {
+		SmsScheduler scheduler = scheduler();
+		SmsSchedulerStore store = store(SmsSchedulerStoreTest::xor);
+		store.recover(scheduler);
+		Instant later = Instant.now().plus(Duration.ofHours(1));
+		scheduler.schedule(message(1), later);
+		store.snapshot();
+		scheduler.schedule(message(2), later);
+		store.close();
+
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path p : (Iterable<Path>) files::iterator) {
+				String content = new String(Files.readAllBytes(p), StandardCharsets.ISO_8859_1);
+				assertFalse(content.contains("Message number"));
+			}
+		}
+
+		assertEquals(List.of("id-1", "id-2"), recover(store(SmsSchedulerStoreTest::xor)));
+	}
+
+	@Test
+	public void testSyncDoesNotBlockScheduler() throws Exception {
+		CountDownLatch sealing = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		SmsScheduler scheduler = scheduler();
+		SmsSchedulerStore store = store((bytes) -> {
+			sealing.countDown();
+			try {
+				proceed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return bytes;
+		});
+		store.recover(scheduler);
+		Instant later = Instant.now().plus(Duration.ofHours(1));
+		scheduler.schedule(message(1), later);
+
+		Thread syncer = new Thread(() -> {
+			try {
+				store.sync();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		syncer.start();
+		assertTrue(sealing.await(5, TimeUnit.SECONDS));
+
+		// The sync is now writing, and must not hold up the scheduler
+		scheduler.schedule(message(2), later).cancel();
+		assertEquals(1, scheduler.size());
+
+		proceed.countDown();
+		syncer.join();
+		store.close();
+		assertEquals(List.of("id-1"), recover());
+	}
+}
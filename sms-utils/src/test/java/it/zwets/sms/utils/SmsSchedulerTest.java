@@ -0,0 +1,168 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SmsSchedulerTest {
+
+	/* A clock that only moves when told to. */
+	private static final class TestClock extends Clock {
+		final AtomicLong millis = new AtomicLong(1_700_000_000_000L);
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(millis.get());
+		}
+
+		void advance(Duration d) {
+			millis.addAndGet(d.toMillis());
+		}
+	}
+
+	private final TestClock clock = new TestClock();
+	private final List<String> released = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> expired = Collections.synchronizedList(new ArrayList<>());
+	private SmsScheduler scheduler;
+
+	@Before
+	public void setUp() {
+		scheduler = new SmsScheduler(new SmsScheduler.Listener() {
+			@Override
+			public void release(SmsMessage message) {
+				released.add(message.getHeader(SmsUtil.HEADER.MESSAGE_ID));
+			}
+
+			@Override
+			public void expire(SmsMessage message) {
+				expired.add(message.getHeader(SmsUtil.HEADER.MESSAGE_ID));
+			}
+		}, 2, 10, clock);
+		scheduler.start();
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.close();
+	}
+
+	private static SmsMessage message(String id) {
+		SmsMessage msg = new SmsMessage("Body of " + id);
+		msg.setHeader(SmsUtil.HEADER.MESSAGE_ID, id);
+		return msg;
+	}
+
+	private Instant in(Duration d) {
+		return clock.instant().plus(d);
+	}
+
+	/* Advances the clock and waits until the scheduler and its workers have caught up. */
+	private void advance(Duration d, int expectedPending) throws InterruptedException {
+		int total = scheduler.size() + released.size() + expired.size();
+		clock.advance(d);
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((scheduler.size() > expectedPending || released.size() + expired.size() < total - expectedPending)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Thread.sleep(50);
+	}
+
+	@Test
+	public void testReleaseInOrder() throws InterruptedException {
+		scheduler.schedule(message("hour"), in(Duration.ofHours(1)));
+		scheduler.schedule(message("second"), in(Duration.ofSeconds(1)));
+		scheduler.schedule(message("days"), in(Duration.ofDays(3)));
+		scheduler.schedule(message("now"), in(Duration.ZERO));
+		assertEquals(4, scheduler.size());
+
+		advance(Duration.ZERO, 3);
+		assertEquals(List.of("now"), released);
+
+		advance(Duration.ofMillis(990), 3);
+		assertEquals(List.of("now"), released);
+		advance(Duration.ofMillis(10), 2);
+		assertEquals(List.of("now", "second"), released);
+
+		advance(Duration.ofMinutes(59), 2);
+		assertEquals(2, released.size());
+		advance(Duration.ofMinutes(1), 1);
+		assertEquals(List.of("now", "second", "hour"), released);
+
+		advance(Duration.ofDays(3), 0);
+		assertEquals(List.of("now", "second", "hour", "days"), released);
+		assertTrue(expired.isEmpty());
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		SmsScheduler.Task task = scheduler.schedule(message("cancelled"), in(Duration.ofMinutes(5)));
+		scheduler.schedule(message("kept"), in(Duration.ofMinutes(5)));
+		assertTrue(task.cancel());
+		assertFalse(task.cancel());
+		assertTrue(task.isDone());
+		assertEquals(1, scheduler.size());
+
+		advance(Duration.ofMinutes(5), 0);
+		assertEquals(List.of("kept"), released);
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		SmsMessage late = message("late");
+		late.setHeader(SmsUtil.HEADER.VALID_UNTIL, in(Duration.ofMinutes(10)).atOffset(ZoneOffset.ofHours(2)).toString());
+		scheduler.schedule(late, in(Duration.ofHours(1)));
+
+		SmsMessage timely = message("timely");
+		timely.setHeader(SmsUtil.HEADER.VALID_UNTIL, in(Duration.ofHours(2)).atOffset(ZoneOffset.UTC).toString());
+		scheduler.schedule(timely, in(Duration.ofHours(1)));
+
+		advance(Duration.ofMinutes(10), 1);
+		assertEquals(List.of("late"), expired);
+		advance(Duration.ofMinutes(50), 0);
+		assertEquals(List.of("timely"), released);
+	}
+
+	@Test
+	public void testMany() throws InterruptedException {
+		for (int i = 0; i < 100000; ++i) {
+			scheduler.schedule(message("m" + i), in(Duration.ofSeconds(i % 1000)));
+		}
+		advance(Duration.ofSeconds(500), 49900);
+		assertEquals(49900, scheduler.size());
+		assertEquals(50100, released.size());
+		advance(Duration.ofSeconds(500), 0);
+		assertEquals(100000, released.size());
+	}
+
+	@Test(expected = SmsException.class)
+	public void testInvalidValidUntil() {
+		SmsMessage msg = message("bad");
+		msg.setHeader(SmsUtil.HEADER.VALID_UNTIL, "tomorrow");
+		scheduler.schedule(msg, in(Duration.ZERO));
+	}
+}
@@ -0,0 +1,120 @@
+package it.zwets.sms.utils;
+
+import static it.zwets.sms.utils.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	@Before
+	public void setUp() {
+		dir = folder.getRoot().toPath();
+	}
+
+	private static String read(Path path) throws IOException {
+		SmsMessage msg = new SmsMessage();
+		msg.read(path);
+		return msg.asString();
+	}
+
+	private long count() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.count();
+		}
+	}
+
+	@Test
+	public void testBatchCommit() throws IOException {
+		try (SpoolWriter writer = new SpoolWriter(dir, 3)) {
+			writer.write("m0", message(0));
+			writer.write("m1", message(1));
+			assertFalse(Files.exists(dir.resolve("m0")));
+			writer.write("m2", message(2));
+			assertTrue(Files.exists(dir.resolve("m0")));
+			assertEquals(3, count());
+			writer.write("m3", message(3));
+		}
+		assertEquals(4, count());
+		for (int i = 0; i < 4; ++i) {
+			assertEquals(message(i).asString(), read(dir.resolve("m" + i)));
+		}
+	}
+
+	@Test
+	public void testAbort() throws IOException {
+		try (SpoolWriter writer = new SpoolWriter(dir)) {
+			writer.write("m0", message(0));
+			writer.abort();
+			assertEquals(0, writer.commit());
+		}
+		assertEquals(0, count());
+	}
+
+	@Test
+	public void testRecover() throws IOException {
+		SpoolWriter writer = new SpoolWriter(dir);
+		writer.write("m0", message(0));
+		writer.abort();
+		Files.createFile(dir.resolve(SpoolWriter.TEMP_PREFIX + "m1-123.tmp"));
+		Files.createFile(dir.resolve("m2"));
+		assertEquals(1, SpoolWriter.recover(dir));
+		assertEquals(1, count());
+	}
+
+	@Test
+	public void testWriteFileReplaces() throws IOException {
+		Path path = dir.resolve("msg");
+		message(0).writeFile(path);
+		message(1).writeFile(path);
+		assertEquals(message(1).asString(), read(path));
+		assertEquals(1, count());
+	}
+
+	@Test
+	public void testWriteFileDotName() throws IOException {
+		Path path = dir.resolve(".msg");
+		message(0).writeFile(path);
+		assertEquals(message(0).asString(), read(path));
+		assertEquals(1, count());
+	}
+
+	@Test
+	public void testDefaultPermissions() throws IOException {
+		Assume.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		Path plain = Files.createFile(dir.resolve("plain"));
+		Path path = dir.resolve("msg");
+		message(0).writeFile(path);
+		assertEquals(Files.getPosixFilePermissions(plain), Files.getPosixFilePermissions(path));
+	}
+
+	@Test(expected = SmsException.class)
+	public void testInvalidName() throws IOException {
+		try (SpoolWriter writer = new SpoolWriter(dir)) {
+			writer.write("../escape", message(0));
+		}
+	}
+
+	@Test(expected = SmsException.class)
+	public void testTempName() throws IOException {
+		try (SpoolWriter writer = new SpoolWriter(dir)) {
+			writer.write(".hidden", message(0));
+		}
+	}
+}
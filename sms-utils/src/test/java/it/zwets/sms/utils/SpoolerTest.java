@@ -0,0 +1,176 @@
+package it.zwets.sms.utils;
+
+import static it.zwets.sms.utils.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path outgoing;
+	private Path sent;
+	private Path failed;
+	private final Set<String> handled = ConcurrentHashMap.newKeySet();
+
+	@Before
+	public void setUp() throws IOException {
+		outgoing = folder.newFolder("outgoing").toPath();
+		sent = folder.newFolder("sent").toPath();
+		failed = folder.newFolder("failed").toPath();
+	}
+
+	private static long count(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.count();
+		}
+	}
+
+	private Spooler spooler(int threads) {
+		return new Spooler(outgoing, sent, failed, (name, msg) -> {
+			if (msg.getBody().equals("Message number 13")) {
+				throw new SmsException("Unlucky");
+			}
+			handled.add(msg.getHeader(SmsUtil.HEADER.TO));
+		}, threads);
+	}
+
+	@Test
+	public void testDrain() throws IOException {
+		try (SpoolWriter writer = new SpoolWriter(outgoing)) {
+			for (int i = 0; i < 20; ++i) {
+				writer.write("m" + i, message(i));
+			}
+		}
+		Files.writeString(outgoing.resolve("bad"), "No header\n\nBody");
+
+		Spooler spooler = spooler(1);
+		assertEquals(21, spooler.drain());
+		assertEquals(19, spooler.getProcessedCount());
+		assertEquals(2, spooler.getFailedCount());
+		assertEquals(19, handled.size());
+		assertEquals(0, count(outgoing));
+		assertEquals(19, count(sent));
+		assertTrue(Files.exists(failed.resolve("m13")));
+		assertTrue(Files.exists(failed.resolve("bad")));
+	}
+
+	@Test
+	public void testWatch() throws IOException, InterruptedException {
+		Files.writeString(outgoing.resolve("early"), message(-1).asString());
+
+		Spooler spooler = spooler(4);
+		spooler.setScanInterval(50);
+		spooler.start();
+		try (SpoolWriter writer = new SpoolWriter(outgoing, 10)) {
+			for (int i = 0; i < 200; ++i) {
+				writer.write("m" + i, message(i));
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (spooler.getProcessedCount() + spooler.getFailedCount() < 201 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		spooler.close();
+
+		assertEquals(200, spooler.getProcessedCount());
+		assertEquals(1, spooler.getFailedCount());
+		assertEquals(0, count(outgoing));
+		assertEquals(200, count(sent));
+		assertTrue(handled.contains("999999"));
+	}
+
+	@Test
+	public void testReleaseClaimed() throws IOException {
+		// No process has this ID, as it exceeds the maximum on all platforms
+		String dead = Integer.MAX_VALUE + Spooler.OWNER.substring(Spooler.OWNER.indexOf('@'));
+		Path stale = outgoing.resolve(Spooler.claimName("m1", dead));
+		Path live = outgoing.resolve(Spooler.claimName("m2", Spooler.OWNER));
+		Path remote = outgoing.resolve(Spooler.claimName("m3", "1@some.other.host"));
+		Files.writeString(stale, message(1).asString());
+		Files.writeString(live, message(2).asString());
+		Files.writeString(remote, message(3).asString());
+
+		Spooler spooler = spooler(1);
+		spooler.start();
+		spooler.close();
+		spooler.drain();
+
+		assertFalse(Files.exists(stale));
+		assertTrue(Files.exists(sent.resolve("m1")));
+		assertTrue(Files.exists(live));
+		assertTrue(Files.exists(remote));
+	}
+
+	@Test
+	public void testSourceTemporarilyMissing() throws IOException, InterruptedException {
+		Spooler spooler = spooler(1);
+		spooler.setScanInterval(20);
+		spooler.start();
+		try {
+			Files.delete(outgoing);
+			Thread.sleep(100);
+			Files.createDirectory(outgoing);
+			Files.writeString(outgoing.resolve("m1"), message(1).asString());
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (spooler.getProcessedCount() < 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		} finally {
+			spooler.close();
+		}
+		assertEquals(1, spooler.getProcessedCount());
+		assertTrue(Files.exists(sent.resolve("m1")));
+	}
+
+	@Test
+	public void testSameNameWhileClaimed() throws IOException, InterruptedException {
+		CountDownLatch handling = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		Spooler spooler = new Spooler(outgoing, sent, failed, (name, msg) -> {
+			handling.countDown();
+			proceed.await();
+			handled.add(msg.getHeader(SmsUtil.HEADER.TO));
+		}, 1);
+		spooler.setScanInterval(20);
+		spooler.start();
+		try (SpoolWriter writer = new SpoolWriter(outgoing)) {
+			writer.write("m1", message(1));
+			writer.commit();
+			assertTrue(handling.await(5, TimeUnit.SECONDS));
+
+			// Arrives while the first is claimed, and must not replace that claim
+			writer.write("m1", message(2));
+			writer.commit();
+			Thread.sleep(100);
+			proceed.countDown();
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (spooler.getProcessedCount() < 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		} finally {
+			spooler.close();
+		}
+		assertEquals(2, spooler.getProcessedCount());
+		assertEquals(Set.of(message(1).getHeader(SmsUtil.HEADER.TO), message(2).getHeader(SmsUtil.HEADER.TO)), handled);
+	}
+}
@@ -0,0 +1,16 @@
+package it.zwets.sms.utils;
+
+/* Messages shared by the tests that need many distinct ones. */
+final class TestMessages {
+
+	private TestMessages() {
+	}
+
+	/* Message number i, with a distinct body, To and Message_id. */
+	static SmsMessage message(int i) {
+		SmsMessage msg = new SmsMessage("Message number " + i);
+		msg.setHeader(SmsUtil.HEADER.TO, Integer.toString(1000000 + i));
+		msg.setHeader(SmsUtil.HEADER.MESSAGE_ID, "id-" + i);
+		return msg;
+	}
+}
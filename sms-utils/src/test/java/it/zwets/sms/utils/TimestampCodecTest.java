@@ -0,0 +1,85 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class TimestampCodecTest {
+
+	private static final ZoneId ROME = ZoneId.of("Europe/Rome");
+
+	@Test
+	public void testFormat() {
+		TimestampCodec codec = new TimestampCodec(ZoneOffset.UTC);
+		assertEquals("24-03-01 09:05:07", codec.format(Instant.parse("2024-03-01T09:05:07.999Z")));
+		assertEquals("70-01-01 00:00:00", codec.format(Instant.EPOCH));
+	}
+
+	@Test
+	public void testMemoised() {
+		TimestampCodec codec = new TimestampCodec(ZoneOffset.UTC);
+		String first = codec.format(Instant.parse("2024-03-01T09:05:07.100Z"));
+		assertSame(first, codec.format(Instant.parse("2024-03-01T09:05:07.900Z")));
+		assertEquals("24-03-01 09:05:08", codec.format(Instant.parse("2024-03-01T09:05:08Z")));
+	}
+
+	@Test
+	public void testMatchesSimpleDateFormat() throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat(TimestampCodec.PATTERN);
+		format.setTimeZone(TimeZone.getTimeZone(ROME));
+		TimestampCodec codec = new TimestampCodec(ROME);
+		for (long t = Instant.parse("2023-01-01T00:00:00Z").getEpochSecond(); t < Instant.parse("2024-01-01T00:00:00Z").getEpochSecond(); t += 3607) {
+			Instant instant = Instant.ofEpochSecond(t);
+			String text = format.format(Date.from(instant));
+			assertEquals(text, codec.format(instant));
+			assertEquals(format.parse(text).toInstant(), codec.parse(text));
+		}
+	}
+
+	@Test
+	public void testParse() {
+		TimestampCodec codec = new TimestampCodec(ZoneOffset.UTC);
+		assertEquals(Instant.parse("2024-03-01T09:05:07Z"), codec.parse("24-03-01 09:05:07"));
+		assertEquals(Instant.parse("1999-12-31T23:59:59Z"), codec.parse("99-12-31 23:59:59"));
+	}
+
+	@Test(expected = SmsException.class)
+	public void testParseBadLayout() {
+		new TimestampCodec(ZoneOffset.UTC).parse("2024-03-01 09:05:07");
+	}
+
+	@Test(expected = SmsException.class)
+	public void testParseBadDigit() {
+		new TimestampCodec(ZoneOffset.UTC).parse("24-03-0x 09:05:07");
+	}
+
+	@Test(expected = SmsException.class)
+	public void testParseBadDate() {
+		new TimestampCodec(ZoneOffset.UTC).parse("24-02-30 09:05:07");
+	}
+
+	@Test
+	public void testConcurrent() {
+		TimestampCodec codec = new TimestampCodec(ROME);
+		Set<String> mismatches = ConcurrentHashMap.newKeySet();
+		IntStream.range(0, 100000).parallel().forEach((i) -> {
+			Instant instant = Instant.ofEpochSecond(1_700_000_000L + i % 50 * 86400 + i % 7);
+			if (!codec.parse(codec.format(instant)).equals(instant)) {
+				mismatches.add(codec.format(instant));
+			}
+		});
+		assertEquals(new ArrayList<String>(), new ArrayList<>(mismatches));
+	}
+}
@@ -0,0 +1,78 @@
+package it.zwets.sms.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ValidityCalculatorTest {
+
+	private static final Instant NOW = Instant.parse("2024-03-01T12:00:00.250Z");
+	private static final Clock CLOCK = Clock.fixed(NOW, ZoneOffset.UTC);
+
+	private static SmsMessage message(Duration left) {
+		SmsMessage msg = new SmsMessage("Body");
+		msg.setHeader(SmsUtil.HEADER.VALID_UNTIL, NOW.plus(left).atOffset(ZoneOffset.ofHours(3)).withNano(0).toString());
+		return msg;
+	}
+
+	@Test
+	public void testTableMatchesConversion() {
+		for (int minutes = -10; minutes < 64 * 7 * 24 * 60 + 10; ++minutes) {
+			assertEquals(SmsUtil.convertToValidity(minutes), ValidityCalculator.toValidity(minutes));
+		}
+	}
+
+	@Test
+	public void testComputeValidity() {
+		ValidityCalculator calculator = new ValidityCalculator(CLOCK);
+		assertEquals(23, calculator.computeValidity(message(Duration.ofHours(2).plusSeconds(1))));
+		assertEquals(ValidityCalculator.EXPIRED, calculator.computeValidity(message(Duration.ofMinutes(3))));
+		assertEquals(ValidityCalculator.EXPIRED, calculator.computeValidity(message(Duration.ofMinutes(-3))));
+		assertEquals(ValidityCalculator.NONE, calculator.computeValidity(new SmsMessage("No header")));
+	}
+
+	@Test
+	public void testMock() {
+		ValidityCalculator calculator = new ValidityCalculator(CLOCK, true);
+		assertEquals(SmsUtil.convertToValidity(7200), calculator.computeValidity(message(Duration.ofHours(2).plusSeconds(1))));
+	}
+
+	@Test
+	public void testInvalidHeader() {
+		SmsMessage msg = new SmsMessage("Body");
+		msg.setHeader(SmsUtil.HEADER.VALID_UNTIL, "next week");
+		assertEquals(ValidityCalculator.EXPIRED, new ValidityCalculator(CLOCK).computeValidity(msg));
+	}
+
+	@Test
+	public void testBatch() {
+		List<SmsMessage> messages = List.of(
+				message(Duration.ofHours(2).plusSeconds(1)),
+				message(Duration.ofMinutes(-1)),
+				new SmsMessage("No header"),
+				message(Duration.ofDays(3).plusSeconds(1)));
+		int[] validities = new int[messages.size()];
+		assertEquals(1, new ValidityCalculator(CLOCK).computeValidity(messages, validities));
+		assertArrayEquals(new int[] { 23, ValidityCalculator.EXPIRED, ValidityCalculator.NONE, 169 }, validities);
+		assertArrayEquals(validities, new ValidityCalculator(CLOCK).computeValidity(messages));
+	}
+
+	@Test
+	public void testCachedHeaderFollowsChanges() {
+		ValidityCalculator calculator = new ValidityCalculator(CLOCK);
+		SmsMessage msg = message(Duration.ofHours(2).plusSeconds(1));
+		assertEquals(23, calculator.computeValidity(msg));
+		assertEquals(23, calculator.computeValidity(msg));
+		msg.setHeader(SmsUtil.HEADER.VALID_UNTIL, NOW.plus(Duration.ofHours(1)).plusSeconds(1).atOffset(ZoneOffset.UTC).withNano(0).toString());
+		assertEquals(11, calculator.computeValidity(msg));
+		msg.removeHeader(SmsUtil.HEADER.VALID_UNTIL);
+		assertEquals(ValidityCalculator.NONE, calculator.computeValidity(msg));
+	}
+}